@@ -0,0 +1,28 @@
+package ninja.egg82.sql.providers;
+
+import java.sql.Connection;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+
+public class HikariConnectionProvider implements IConnectionProvider {
+	//vars
+	private HikariDataSource hikari = null;
+	
+	//constructor
+	public HikariConnectionProvider(HikariConfig config) {
+		if (config == null) {
+			throw new IllegalArgumentException("config cannot be null.");
+		}
+		
+		hikari = new HikariDataSource(config);
+	}
+	
+	//public
+	public Connection getConnection() throws Exception {
+		return hikari.getConnection();
+	}
+	public void close() {
+		hikari.close();
+	}
+}
@@ -0,0 +1,194 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.text.Normalizer;
+import java.util.Locale;
+
+import org.apache.commons.codec.language.DoubleMetaphone;
+import org.apache.commons.codec.language.Nysiis;
+import org.apache.commons.codec.language.Soundex;
+
+import ninja.egg82.enums.PhoneticEncoding;
+import ninja.egg82.utils.StringUtil;
+
+/**
+ * Turns raw strings into the keys used by case-insensitive and phonetic searches: Unicode normalization, locale-aware case folding, optional stop-word stripping, and then a phonetic encoding of the result.
+ * Immutable, so one instance can be shared by any number of threads and databases.
+ */
+public class Analyzer {
+	//vars
+	private Normalizer.Form form = null;
+	private Locale locale = null;
+	private boolean stripCommonWords = false;
+	private PhoneticEncoding encoding = null;
+	private int maxCodeLength = 0;
+	
+	private DoubleMetaphone dm = new DoubleMetaphone();
+	private Soundex soundex = new Soundex();
+	private Nysiis nysiis = new Nysiis(false);
+	
+	//constructor
+	/**
+	 * Creates the analyzer LanguageDatabase has always used: no normalization, lower case in the default locale, no stop words, and double-metaphone codes up to 10 characters long.
+	 */
+	public Analyzer() {
+		this(null, Locale.getDefault(), false, PhoneticEncoding.DOUBLE_METAPHONE, 10);
+	}
+	/**
+	 * Creates a new analyzer.
+	 * 
+	 * @param form The Unicode normalization form to apply first, or null to leave strings as they are
+	 * @param locale The locale to lower-case strings in
+	 * @param stripCommonWords Whether or not to remove common English words (the, of, and..) after lower-casing
+	 * @param encoding The phonetic encoding to use for double-metaphone searches
+	 * @param maxCodeLength The max length of double-metaphone and NYSIIS codes, up to 1024. Soundex codes are always 4 characters
+	 */
+	public Analyzer(Normalizer.Form form, Locale locale, boolean stripCommonWords, PhoneticEncoding encoding, int maxCodeLength) {
+		if (locale == null) {
+			throw new IllegalArgumentException("locale cannot be null.");
+		}
+		if (encoding == null) {
+			throw new IllegalArgumentException("encoding cannot be null.");
+		}
+		if (maxCodeLength < 1 || maxCodeLength > 1024) {
+			// Double metaphone allocates the full length up front on every call
+			throw new IllegalArgumentException("maxCodeLength must be between 1 and 1024.");
+		}
+		
+		this.form = form;
+		this.locale = locale;
+		this.stripCommonWords = stripCommonWords;
+		this.encoding = encoding;
+		this.maxCodeLength = maxCodeLength;
+		dm.setMaxCodeLen(maxCodeLength);
+	}
+	
+	//public
+	/**
+	 * Returns the case-insensitive key for a string.
+	 * 
+	 * @param input The string to fold
+	 * @return The normalized, lower-cased, and (optionally) stop-word-free string. Empty if nothing is left
+	 */
+	public String fold(String input) {
+		if (input == null) {
+			throw new IllegalArgumentException("input cannot be null.");
+		}
+		
+		if (form != null) {
+			input = Normalizer.normalize(input, form);
+		}
+		input = input.toLowerCase(locale);
+		if (stripCommonWords) {
+			input = StringUtil.stripCommonWords(input);
+		}
+		return input;
+	}
+	/**
+	 * Returns the phonetic key for a string that has already gone through fold(). Double-metaphone keys hold both the primary and alternate codes.
+	 * 
+	 * @param folded The folded string to encode
+	 * @return Every code for the string, separated by ';'. Empty if the string has nothing to encode
+	 */
+	public String encode(String folded) {
+		if (folded == null) {
+			throw new IllegalArgumentException("folded cannot be null.");
+		}
+		
+		if (encoding == PhoneticEncoding.DOUBLE_METAPHONE) {
+			// Double metaphone handles the few letters outside of ASCII it knows (C with a cedilla, N with a tilde..) itself, so it gets the string as-is
+			String primary = dm.doubleMetaphone(folded, false);
+			String alternate = dm.doubleMetaphone(folded, true);
+			return (primary.isEmpty() && alternate.isEmpty()) ? "" : primary + ";" + alternate;
+		}
+		
+		// The other encoders only know the English alphabet (Soundex throws on anything else), so accents are dropped and everything else that isn't ASCII is ignored
+		String decomposed = Normalizer.normalize(folded, Normalizer.Form.NFD);
+		StringBuilder ascii = new StringBuilder(decomposed.length());
+		for (int i = 0; i < decomposed.length(); i++) {
+			char c = decomposed.charAt(i);
+			if (c < 128) {
+				ascii.append(c);
+			}
+		}
+		String input = ascii.toString();
+		
+		boolean letters = false;
+		for (int i = 0; i < input.length(); i++) {
+			if (Character.isLetter(input.charAt(i))) {
+				letters = true;
+				break;
+			}
+		}
+		if (!letters) {
+			return "";
+		}
+		
+		if (encoding == PhoneticEncoding.SOUNDEX) {
+			return soundex.encode(input);
+		}
+		String retVal = nysiis.encode(input);
+		return (retVal.length() > maxCodeLength) ? retVal.substring(0, maxCodeLength) : retVal;
+	}
+	
+	public Normalizer.Form getForm() {
+		return form;
+	}
+	public Locale getLocale() {
+		return locale;
+	}
+	public boolean getStripCommonWords() {
+		return stripCommonWords;
+	}
+	public PhoneticEncoding getEncoding() {
+		return encoding;
+	}
+	public int getMaxCodeLength() {
+		return maxCodeLength;
+	}
+	
+	/**
+	 * Writes the analyzer's settings.
+	 * 
+	 * @param out Where to write the settings
+	 * @throws IOException If the settings could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeUTF((form != null) ? form.name() : "");
+		out.writeUTF(locale.toLanguageTag());
+		out.writeBoolean(stripCommonWords);
+		out.writeUTF(encoding.name());
+		out.writeInt(maxCodeLength);
+	}
+	/**
+	 * Reads an analyzer written by write(), starting at the buffer's current position.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @return The analyzer that was read
+	 */
+	public static Analyzer read(ByteBuffer buffer) {
+		String form = readUTF(buffer);
+		Locale locale = Locale.forLanguageTag(readUTF(buffer));
+		boolean stripCommonWords = buffer.get() != 0;
+		PhoneticEncoding encoding = PhoneticEncoding.valueOf(readUTF(buffer));
+		int maxCodeLength = buffer.getInt();
+		
+		return new Analyzer(form.isEmpty() ? null : Normalizer.Form.valueOf(form), locale, stripCommonWords, encoding, maxCodeLength);
+	}
+	
+	//private
+	private static String readUTF(ByteBuffer buffer) {
+		// Settings only ever hold enum names and language tags, which are plain ASCII
+		int length = buffer.getShort() & 0xFFFF;
+		if (length > buffer.remaining()) {
+			throw new IllegalArgumentException("buffer does not contain a valid analyzer.");
+		}
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) buffer.get();
+		}
+		return new String(chars);
+	}
+}
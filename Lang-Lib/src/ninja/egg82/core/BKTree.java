@@ -0,0 +1,406 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import ninja.egg82.patterns.tuples.pair.IntIntPair;
+
+/**
+ * Burkhard-Keller tree of terms under Levenshtein distance, for finding every term within a given distance of a search without comparing against the whole set.
+ * Terms are stored by their dictionary ID.
+ * Removed keys are kept as routing nodes until they make up half the tree, at which point the tree is rebuilt.
+ * Searches don't modify anything, so they can run concurrently as long as nothing is being added or removed at the same time.
+ */
+public class BKTree {
+	//vars
+	private TermDictionary dictionary = null;
+	
+	private Node root = null;
+	private int size = 0;
+	private int removed = 0;
+	
+	//constructor
+	public BKTree(TermDictionary dictionary) {
+		if (dictionary == null) {
+			throw new IllegalArgumentException("dictionary cannot be null.");
+		}
+		
+		this.dictionary = dictionary;
+	}
+	
+	//public
+	public void add(int termId) {
+		String term = dictionary.getTerm(termId);
+		if (term == null) {
+			throw new IllegalArgumentException("termId is not in the dictionary.");
+		}
+		add(termId, term.toCharArray());
+	}
+	public void remove(int termId) {
+		String term = dictionary.getTerm(termId);
+		if (term == null) {
+			throw new IllegalArgumentException("termId is not in the dictionary.");
+		}
+		
+		Node node = find(term.toCharArray());
+		if (node == null || node.removed) {
+			return;
+		}
+		
+		node.removed = true;
+		removed++;
+		size--;
+		
+		if (removed > size) {
+			rebuild();
+		}
+	}
+	
+	/**
+	 * Returns every term within the given distance of the search, along with its distance.
+	 * 
+	 * @param search The string to compare against
+	 * @param maxDistance The largest distance to return
+	 * @return The matching term IDs (left) and their distances (right), in no particular order
+	 */
+	public List<IntIntPair> search(String search, int maxDistance) {
+		if (search == null) {
+			throw new IllegalArgumentException("search cannot be null.");
+		}
+		if (maxDistance < 0) {
+			throw new IllegalArgumentException("maxDistance cannot be negative.");
+		}
+		
+		List<IntIntPair> retVal = new ArrayList<IntIntPair>();
+		if (root == null) {
+			return retVal;
+		}
+		
+		char[] chars = search.toCharArray();
+		int[] previous = new int[chars.length + 1];
+		int[] current = new int[chars.length + 1];
+		
+		Deque<Node> stack = new ArrayDeque<Node>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			
+			// Children only matter if they're within maxDistance of the node's own distance, so there's no need to know any distance past that
+			int maxChild = (node.children == null) ? 0 : node.children.length - 1;
+			int distance = LevenshteinUtil.distance(chars, node.chars, (int) Math.min(Integer.MAX_VALUE, (long) maxDistance + maxChild), previous, current);
+			
+			if (distance <= maxDistance && !node.removed) {
+				retVal.add(new IntIntPair(node.id, distance));
+			}
+			
+			if (node.children == null) {
+				continue;
+			}
+			int hi = (int) Math.min(maxChild, (long) distance + maxDistance);
+			for (int i = Math.max(1, distance - maxDistance); i <= hi; i++) {
+				if (node.children[i] != null) {
+					stack.push(node.children[i]);
+				}
+			}
+		}
+		
+		return retVal;
+	}
+	
+	/**
+	 * Marks the ID of every node, removed ones included, since those still route searches and are written out with the tree.
+	 * 
+	 * @param ids Where to mark the IDs
+	 */
+	public void markTerms(BitSet ids) {
+		Deque<Node> stack = new ArrayDeque<Node>();
+		if (root != null) {
+			stack.push(root);
+		}
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			ids.set(node.id);
+			if (node.children != null) {
+				for (int i = 0; i < node.children.length; i++) {
+					if (node.children[i] != null) {
+						stack.push(node.children[i]);
+					}
+				}
+			}
+		}
+	}
+	/**
+	 * Renumbers every node after the dictionary has been compacted. Nodes keep their place in the tree, since their terms haven't changed.
+	 * 
+	 * @param map Old term ID -> new term ID, as returned by TermDictionary.compact()
+	 */
+	public void remap(int[] map) {
+		Deque<Node> stack = new ArrayDeque<Node>();
+		if (root != null) {
+			stack.push(root);
+		}
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			node.id = map[node.id];
+			if (node.children != null) {
+				for (int i = 0; i < node.children.length; i++) {
+					if (node.children[i] != null) {
+						stack.push(node.children[i]);
+					}
+				}
+			}
+		}
+	}
+	
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Writes the tree's shape as it is, removed nodes included, so reading it back doesn't need to compute any distances.
+	 * 
+	 * @param out Where to write the tree
+	 * @throws IOException If the tree could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(removed);
+		out.writeBoolean(root != null);
+		if (root == null) {
+			return;
+		}
+		
+		// Pre-order, children in ascending distance
+		Deque<Node> stack = new ArrayDeque<Node>();
+		stack.push(root);
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			out.writeInt(node.id);
+			out.writeBoolean(node.removed);
+			
+			int length = (node.children == null) ? 0 : node.children.length;
+			int count = 0;
+			for (int i = 0; i < length; i++) {
+				if (node.children[i] != null) {
+					count++;
+				}
+			}
+			out.writeInt(length);
+			out.writeInt(count);
+			for (int i = 0; i < length; i++) {
+				if (node.children[i] != null) {
+					out.writeInt(i);
+				}
+			}
+			for (int i = length - 1; i >= 0; i--) {
+				if (node.children[i] != null) {
+					stack.push(node.children[i]);
+				}
+			}
+		}
+	}
+	/**
+	 * Reads a tree written by write(), starting at the buffer's current position.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @param dictionary The dictionary the tree's term IDs come from
+	 * @param valid Every term that isn't removed has to pass this
+	 * @return The tree that was read
+	 */
+	public static BKTree read(ByteBuffer buffer, TermDictionary dictionary, IntPredicate valid) {
+		BKTree retVal = new BKTree(dictionary);
+		retVal.size = buffer.getInt();
+		retVal.removed = buffer.getInt();
+		if (buffer.get() == 0) {
+			if (retVal.size != 0 || retVal.removed != 0) {
+				throw new IllegalArgumentException("buffer does not contain a valid tree.");
+			}
+			return retVal;
+		}
+		
+		// No two terms can be further apart than the longest term is long, and a node's children only go up to the furthest one
+		int longest = 0;
+		for (int i = 0; i < dictionary.size(); i++) {
+			longest = Math.max(longest, dictionary.getTerm(i).length());
+		}
+		int live = 0;
+		int dead = 0;
+		
+		// Each entry is a parent and the distance the next node read goes under, in the same order write() visits them
+		Deque<Slot> stack = new ArrayDeque<Slot>();
+		stack.push(new Slot(null, 0));
+		while (!stack.isEmpty()) {
+			Slot slot = stack.pop();
+			
+			int id = buffer.getInt();
+			String term = dictionary.getTerm(id);
+			if (term == null) {
+				throw new IllegalArgumentException("buffer does not contain a valid tree.");
+			}
+			Node node = new Node(id, term.toCharArray());
+			node.removed = buffer.get() != 0;
+			if (node.removed) {
+				dead++;
+			} else if (valid.test(id)) {
+				live++;
+			} else {
+				throw new IllegalArgumentException("buffer does not contain a valid tree.");
+			}
+			
+			int length = buffer.getInt();
+			int count = buffer.getInt();
+			if (length < 0 || length > longest + 1 || count < 0 || count > length) {
+				throw new IllegalArgumentException("buffer does not contain a valid tree.");
+			}
+			if (length > 0) {
+				node.children = new Node[length];
+			}
+			int[] distances = new int[count];
+			for (int i = 0; i < count; i++) {
+				distances[i] = buffer.getInt();
+				if (distances[i] < 1 || distances[i] >= length || (i > 0 && distances[i] <= distances[i - 1])) {
+					throw new IllegalArgumentException("buffer does not contain a valid tree.");
+				}
+			}
+			for (int i = count - 1; i >= 0; i--) {
+				stack.push(new Slot(node, distances[i]));
+			}
+			
+			if (slot.parent == null) {
+				retVal.root = node;
+			} else {
+				slot.parent.children[slot.distance] = node;
+			}
+		}
+		if (live != retVal.size || dead != retVal.removed) {
+			throw new IllegalArgumentException("buffer does not contain a valid tree.");
+		}
+		
+		return retVal;
+	}
+	
+	//private
+	private void add(int id, char[] chars) {
+		if (root == null) {
+			root = new Node(id, chars);
+			size++;
+			return;
+		}
+		
+		int[] previous = new int[chars.length + 1];
+		int[] current = new int[chars.length + 1];
+		
+		Node node = root;
+		while (true) {
+			int distance = LevenshteinUtil.distance(chars, node.chars, Integer.MAX_VALUE, previous, current);
+			if (distance == 0) {
+				if (node.removed) {
+					node.removed = false;
+					removed--;
+					size++;
+				}
+				return;
+			}
+			
+			Node child = node.getChild(distance);
+			if (child == null) {
+				node.setChild(distance, new Node(id, chars));
+				size++;
+				return;
+			}
+			node = child;
+		}
+	}
+	private Node find(char[] chars) {
+		int[] previous = new int[chars.length + 1];
+		int[] current = new int[chars.length + 1];
+		
+		Node node = root;
+		while (node != null) {
+			int distance = LevenshteinUtil.distance(chars, node.chars, Integer.MAX_VALUE, previous, current);
+			if (distance == 0) {
+				return node;
+			}
+			node = node.getChild(distance);
+		}
+		return null;
+	}
+	
+	private void rebuild() {
+		List<Node> nodes = new ArrayList<Node>(size);
+		
+		Deque<Node> stack = new ArrayDeque<Node>();
+		if (root != null) {
+			stack.push(root);
+		}
+		while (!stack.isEmpty()) {
+			Node node = stack.pop();
+			if (!node.removed) {
+				nodes.add(node);
+			}
+			if (node.children != null) {
+				for (int i = 0; i < node.children.length; i++) {
+					if (node.children[i] != null) {
+						stack.push(node.children[i]);
+					}
+				}
+			}
+		}
+		
+		root = null;
+		size = 0;
+		removed = 0;
+		for (Node node : nodes) {
+			add(node.id, node.chars);
+		}
+	}
+	
+	private static class Slot {
+		//vars
+		private Node parent = null;
+		private int distance = 0;
+		
+		//constructor
+		public Slot(Node parent, int distance) {
+			this.parent = parent;
+			this.distance = distance;
+		}
+	}
+	
+	private static class Node {
+		//vars
+		private int id = 0;
+		private char[] chars = null;
+		private boolean removed = false;
+		// Indexed by distance to this node, sized to the largest distance seen
+		private Node[] children = null;
+		
+		//constructor
+		public Node(int id, char[] chars) {
+			this.id = id;
+			this.chars = chars;
+		}
+		
+		//public
+		public Node getChild(int distance) {
+			return (children == null || distance >= children.length) ? null : children[distance];
+		}
+		public void setChild(int distance, Node child) {
+			if (children == null) {
+				children = new Node[distance + 1];
+			} else if (distance >= children.length) {
+				Node[] temp = new Node[distance + 1];
+				System.arraycopy(children, 0, temp, 0, children.length);
+				children = temp;
+			}
+			children[distance] = child;
+		}
+	}
+}
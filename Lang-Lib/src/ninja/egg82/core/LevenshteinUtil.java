@@ -0,0 +1,100 @@
+package ninja.egg82.core;
+
+public final class LevenshteinUtil {
+	//vars
+	
+	//constructor
+	public LevenshteinUtil() {
+		
+	}
+	
+	//public
+	/**
+	 * Returns the Levenshtein distance between two strings, or max + 1 if it's greater than max.
+	 * Only the diagonal band of width 2 * max + 1 is filled in and the computation stops as soon as a whole row is over max,
+	 * so dissimilar strings are rejected after a few characters.
+	 * 
+	 * @param one The first string
+	 * @param two The second string
+	 * @param max The largest distance that matters
+	 * @return The distance, or max + 1 if the distance is greater than max
+	 */
+	public static int distance(char[] one, char[] two, int max) {
+		if (one == null) {
+			throw new IllegalArgumentException("one cannot be null.");
+		}
+		if (two == null) {
+			throw new IllegalArgumentException("two cannot be null.");
+		}
+		
+		return distance(one, two, max, new int[one.length + 1], new int[one.length + 1]);
+	}
+	/**
+	 * Returns the Levenshtein distance between two strings, or max + 1 if it's greater than max.
+	 * Same as distance(one, two, max) but uses the given rows as scratch space so repeated calls don't allocate.
+	 * 
+	 * @param one The first string
+	 * @param two The second string
+	 * @param max The largest distance that matters
+	 * @param previous Scratch row, at least one.length + 1 long
+	 * @param current Scratch row, at least one.length + 1 long
+	 * @return The distance, or max + 1 if the distance is greater than max
+	 */
+	public static int distance(char[] one, char[] two, int max, int[] previous, int[] current) {
+		if (max < 0) {
+			throw new IllegalArgumentException("max cannot be negative.");
+		}
+		
+		int n = one.length;
+		int m = two.length;
+		
+		// The distance can never be more than the longer length, and this keeps max + 1 from overflowing
+		max = Math.min(max, Math.max(n, m));
+		if (Math.abs(n - m) > max) {
+			return max + 1;
+		}
+		
+		// Anything outside of the band is treated as max + 1
+		int outside = max + 1;
+		
+		int hi = Math.min(n, max);
+		for (int i = 0; i <= hi; i++) {
+			previous[i] = i;
+		}
+		if (hi < n) {
+			previous[hi + 1] = outside;
+		}
+		
+		for (int j = 1; j <= m; j++) {
+			char c = two[j - 1];
+			int lo = Math.max(1, j - max);
+			hi = Math.min(n, j + max);
+			
+			current[lo - 1] = (lo == 1) ? j : outside;
+			int rowMin = current[lo - 1];
+			for (int i = lo; i <= hi; i++) {
+				int value = previous[i - 1] + ((one[i - 1] == c) ? 0 : 1);
+				value = Math.min(value, previous[i] + 1);
+				value = Math.min(value, current[i - 1] + 1);
+				current[i] = value;
+				if (value < rowMin) {
+					rowMin = value;
+				}
+			}
+			if (hi < n) {
+				current[hi + 1] = outside;
+			}
+			
+			// Every path from here on goes through this row, so nothing can come back under max
+			if (rowMin > max) {
+				return max + 1;
+			}
+			
+			int[] temp = previous;
+			previous = current;
+			current = temp;
+		}
+		
+		return Math.min(previous[n], max + 1);
+	}
+}
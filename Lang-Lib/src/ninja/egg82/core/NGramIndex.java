@@ -0,0 +1,198 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+
+/**
+ * Inverted index from character n-grams to the IDs of the terms that contain them. Used to narrow down substring searches to a handful of candidates instead of the whole vocabulary.
+ * Searches don't modify anything, so they can run concurrently as long as nothing is being added or removed at the same time.
+ */
+public class NGramIndex {
+	//vars
+	private int n = 0;
+	private TermDictionary dictionary = null;
+	
+	// n-gram (packed into a long, 16 bits per char) -> IDs of terms containing it
+	private Long2ObjectOpenHashMap<PostingList> postings = new Long2ObjectOpenHashMap<PostingList>();
+	
+	//constructor
+	public NGramIndex(int n, TermDictionary dictionary) {
+		if (n < 1 || n > 4) {
+			throw new IllegalArgumentException("n must be between 1 and 4.");
+		}
+		if (dictionary == null) {
+			throw new IllegalArgumentException("dictionary cannot be null.");
+		}
+		
+		this.n = n;
+		this.dictionary = dictionary;
+	}
+	
+	//public
+	public void add(int termId) {
+		String term = dictionary.getTerm(termId);
+		if (term == null) {
+			throw new IllegalArgumentException("termId is not in the dictionary.");
+		}
+		
+		for (LongIterator i = grams(term).iterator(); i.hasNext();) {
+			long gram = i.nextLong();
+			PostingList ids = postings.get(gram);
+			if (ids == null) {
+				ids = new PostingList();
+				postings.put(gram, ids);
+			}
+			ids.add(termId);
+		}
+	}
+	public void remove(int termId) {
+		String term = dictionary.getTerm(termId);
+		if (term == null) {
+			throw new IllegalArgumentException("termId is not in the dictionary.");
+		}
+		
+		for (LongIterator i = grams(term).iterator(); i.hasNext();) {
+			long gram = i.nextLong();
+			PostingList ids = postings.get(gram);
+			if (ids != null && ids.remove(termId) && ids.isEmpty()) {
+				postings.remove(gram);
+			}
+		}
+	}
+	
+	/**
+	 * Renumbers every term after the dictionary has been compacted.
+	 * 
+	 * @param map Old term ID -> new term ID, as returned by TermDictionary.compact()
+	 */
+	public void remap(int[] map) {
+		// Compacting keeps terms in the same order, so every list stays sorted
+		for (PostingList ids : postings.values()) {
+			ids.remap(map);
+		}
+	}
+	
+	/**
+	 * Returns the ID of every term that contains the search string.
+	 * 
+	 * @param search The string to look for
+	 * @return The IDs of the terms containing the search string, in ascending order, or null if the search is shorter than n and can't be answered from the index
+	 */
+	public IntList containing(String search) {
+		if (search == null) {
+			throw new IllegalArgumentException("search cannot be null.");
+		}
+		if (search.length() < n) {
+			return null;
+		}
+		
+		List<PostingList> lists = new ArrayList<PostingList>();
+		for (LongIterator i = grams(search).iterator(); i.hasNext();) {
+			PostingList ids = postings.get(i.nextLong());
+			if (ids == null) {
+				return new IntArrayList();
+			}
+			lists.add(ids);
+		}
+		
+		// Intersect the postings of every n-gram in the search, smallest first so the running result only ever shrinks
+		Collections.sort(lists, (one, two) -> Integer.compare(one.size(), two.size()));
+		int[] ids = lists.get(0).toIntArray();
+		int count = ids.length;
+		for (int i = 1; i < lists.size() && count > 0; i++) {
+			count = intersect(ids, count, lists.get(i).toIntArray());
+		}
+		
+		IntList retVal = new IntArrayList();
+		for (int i = 0; i < count; i++) {
+			// Sharing every n-gram doesn't mean they're in the right order
+			if (dictionary.getTerm(ids[i]).contains(search)) {
+				retVal.add(ids[i]);
+			}
+		}
+		return retVal;
+	}
+	
+	public int getN() {
+		return n;
+	}
+	
+	/**
+	 * Writes every n-gram and its postings.
+	 * 
+	 * @param out Where to write the index
+	 * @throws IOException If the index could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(n);
+		out.writeInt(postings.size());
+		for (Long2ObjectMap.Entry<PostingList> kvp : postings.long2ObjectEntrySet()) {
+			out.writeLong(kvp.getLongKey());
+			kvp.getValue().write(out);
+		}
+	}
+	/**
+	 * Reads an index written by write(), starting at the buffer's current position.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @param dictionary The dictionary the index's term IDs come from
+	 * @param valid Every term ID in the index has to pass this
+	 * @return The index that was read
+	 */
+	public static NGramIndex read(ByteBuffer buffer, TermDictionary dictionary, IntPredicate valid) {
+		NGramIndex retVal = new NGramIndex(buffer.getInt(), dictionary);
+		int count = buffer.getInt();
+		// Every entry is at least an n-gram and an empty posting list, which keeps a bad count from allocating a huge map
+		if (count < 0 || count > buffer.remaining() / 20) {
+			throw new IllegalArgumentException("buffer does not contain a valid index.");
+		}
+		
+		retVal.postings = new Long2ObjectOpenHashMap<PostingList>(count);
+		for (int i = 0; i < count; i++) {
+			long gram = buffer.getLong();
+			retVal.postings.put(gram, PostingList.read(buffer, valid));
+		}
+		return retVal;
+	}
+	
+	//private
+	private LongOpenHashSet grams(String key) {
+		LongOpenHashSet retVal = new LongOpenHashSet();
+		for (int i = 0; i + n <= key.length(); i++) {
+			long gram = 0L;
+			for (int j = i; j < i + n; j++) {
+				gram = (gram << 16) | key.charAt(j);
+			}
+			retVal.add(gram);
+		}
+		return retVal;
+	}
+	
+	private static int intersect(int[] ids, int count, int[] other) {
+		// Both are sorted, so a single merge pass keeps whatever is in both
+		int retVal = 0;
+		int j = 0;
+		for (int i = 0; i < count && j < other.length; i++) {
+			while (j < other.length && other[j] < ids[i]) {
+				j++;
+			}
+			if (j < other.length && other[j] == ids[i]) {
+				ids[retVal++] = ids[i];
+				j++;
+			}
+		}
+		return retVal;
+	}
+}
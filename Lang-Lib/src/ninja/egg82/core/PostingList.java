@@ -0,0 +1,294 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+/**
+ * Sorted set of non-negative ints, stored as variable-length gaps between neighbours.
+ * Ids that mostly arrive in increasing order (row IDs, term IDs) take one or two bytes each and are added without any sorting.
+ * Not thread-safe.
+ */
+public class PostingList {
+	//vars
+	private static final byte[] EMPTY = new byte[0];
+	
+	private byte[] data = EMPTY;
+	private int length = 0;
+	private int size = 0;
+	private int last = -1;
+	
+	//constructor
+	public PostingList() {
+		
+	}
+	
+	//public
+	/**
+	 * Adds an id to the list. Adding an id larger than every other id is a simple append.
+	 * 
+	 * @param id The id to add
+	 * @return true if the id was added, false if it was already in the list
+	 */
+	public boolean add(int id) {
+		if (id < 0) {
+			throw new IllegalArgumentException("id cannot be negative.");
+		}
+		
+		if (id > last) {
+			int gap = id - last;
+			ensureCapacity(length + gapLength(gap));
+			length = writeGap(data, length, gap);
+			last = id;
+			size++;
+			return true;
+		}
+		
+		// Out of order, which is rare enough that rebuilding the list is fine
+		int[] ids = toIntArray();
+		int index = Arrays.binarySearch(ids, id);
+		if (index >= 0) {
+			return false;
+		}
+		index = -index - 1;
+		int[] newIds = new int[ids.length + 1];
+		System.arraycopy(ids, 0, newIds, 0, index);
+		newIds[index] = id;
+		System.arraycopy(ids, index, newIds, index + 1, ids.length - index);
+		set(newIds, newIds.length);
+		return true;
+	}
+	/**
+	 * Removes an id from the list.
+	 * 
+	 * @param id The id to remove
+	 * @return true if the id was removed, false if it wasn't in the list
+	 */
+	public boolean remove(int id) {
+		if (id < 0 || id > last) {
+			return false;
+		}
+		
+		int[] ids = toIntArray();
+		int index = Arrays.binarySearch(ids, id);
+		if (index < 0) {
+			return false;
+		}
+		System.arraycopy(ids, index + 1, ids, index, ids.length - index - 1);
+		set(ids, ids.length - 1);
+		return true;
+	}
+	/**
+	 * Subtracts one from every id greater than the one given, for when the ids refer to positions in a list and an earlier position was removed.
+	 * The id itself must not be in the list.
+	 * 
+	 * @param id The removed position
+	 */
+	public void shiftDown(int id) {
+		if (id >= last) {
+			return;
+		}
+		
+		// Only the gap leading up to the first larger id changes, everything after it keeps the same distance
+		int position = 0;
+		int previous = -1;
+		while (position < length) {
+			int start = position;
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			int current = previous + gap;
+			if (current > id) {
+				replaceGap(start, position, gap - 1);
+				last--;
+				return;
+			}
+			previous = current;
+		}
+	}
+	
+	public boolean contains(int id) {
+		if (id < 0 || id > last) {
+			return false;
+		}
+		
+		int position = 0;
+		int current = -1;
+		while (position < length) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			current += gap;
+			if (current >= id) {
+				return current == id;
+			}
+		}
+		return false;
+	}
+	/**
+	 * Replaces every id with the one it maps to. The map must keep the ids in the same order, and must not drop any that are in the list.
+	 * 
+	 * @param map Old id -> new id
+	 */
+	public void remap(int[] map) {
+		int[] ids = toIntArray();
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = map[ids[i]];
+		}
+		set(ids, ids.length);
+	}
+	
+	public int[] toIntArray() {
+		int[] retVal = new int[size];
+		
+		int position = 0;
+		int current = -1;
+		for (int i = 0; i < size; i++) {
+			int gap = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = data[position++];
+				gap |= (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			current += gap;
+			retVal[i] = current;
+		}
+		
+		return retVal;
+	}
+	
+	public int size() {
+		return size;
+	}
+	public boolean isEmpty() {
+		return size == 0;
+	}
+	
+	/**
+	 * Writes the list in its encoded form, so reading it back doesn't need to decode or sort anything.
+	 * 
+	 * @param out Where to write the list
+	 * @throws IOException If the list could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(size);
+		out.writeInt(last);
+		out.writeInt(length);
+		out.write(data, 0, length);
+	}
+	/**
+	 * Reads a list written by write(), starting at the buffer's current position.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @param valid Every id in the list has to pass this
+	 * @return The list that was read
+	 */
+	public static PostingList read(ByteBuffer buffer, IntPredicate valid) {
+		PostingList retVal = new PostingList();
+		retVal.size = buffer.getInt();
+		retVal.last = buffer.getInt();
+		retVal.length = buffer.getInt();
+		if (retVal.size < 0 || retVal.length < retVal.size || retVal.length > buffer.remaining()) {
+			throw new IllegalArgumentException("buffer does not contain a valid list.");
+		}
+		retVal.data = new byte[retVal.length];
+		buffer.get(retVal.data);
+		
+		// Decoded once up front, since a bad gap or id would otherwise only show up in the middle of a search
+		int position = 0;
+		long current = -1L;
+		for (int i = 0; i < retVal.size; i++) {
+			long gap = 0L;
+			int shift = 0;
+			byte b;
+			do {
+				if (position >= retVal.length || shift > 28) {
+					throw new IllegalArgumentException("buffer does not contain a valid list.");
+				}
+				b = retVal.data[position++];
+				gap |= (long) (b & 0x7F) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			
+			current += gap;
+			if (gap < 1L || current > Integer.MAX_VALUE || !valid.test((int) current)) {
+				throw new IllegalArgumentException("buffer does not contain a valid list.");
+			}
+		}
+		if (position != retVal.length || current != retVal.last) {
+			throw new IllegalArgumentException("buffer does not contain a valid list.");
+		}
+		
+		return retVal;
+	}
+	
+	//private
+	private void set(int[] ids, int count) {
+		byte[] temp = new byte[count * 5];
+		int position = 0;
+		int previous = -1;
+		for (int i = 0; i < count; i++) {
+			position = writeGap(temp, position, ids[i] - previous);
+			previous = ids[i];
+		}
+		
+		data = new byte[position];
+		System.arraycopy(temp, 0, data, 0, position);
+		length = position;
+		size = count;
+		last = previous;
+	}
+	private void replaceGap(int start, int end, int gap) {
+		// Gaps only ever shrink by one here, so the encoding can only get shorter and the rest of the list just moves up
+		int newEnd = writeGap(data, start, gap);
+		if (newEnd < end) {
+			System.arraycopy(data, end, data, newEnd, length - end);
+			length -= end - newEnd;
+		}
+	}
+	
+	private void ensureCapacity(int capacity) {
+		if (data.length >= capacity) {
+			return;
+		}
+		
+		// Most lists only ever hold one or two ids, so the first one is sized exactly and growth is by half after that
+		byte[] temp = new byte[Math.max(capacity, data.length + (data.length >> 1))];
+		System.arraycopy(data, 0, temp, 0, length);
+		data = temp;
+	}
+	
+	private static int gapLength(int gap) {
+		int retVal = 1;
+		while ((gap & ~0x7F) != 0) {
+			gap >>>= 7;
+			retVal++;
+		}
+		return retVal;
+	}
+	private static int writeGap(byte[] buffer, int position, int gap) {
+		while ((gap & ~0x7F) != 0) {
+			buffer[position++] = (byte) ((gap & 0x7F) | 0x80);
+			gap >>>= 7;
+		}
+		buffer[position++] = (byte) gap;
+		return position;
+	}
+}
@@ -0,0 +1,150 @@
+package ninja.egg82.core;
+
+/**
+ * Binary heap of (score, ID) pairs where lower scores rank higher and ties go to the lower ID.
+ * The root is always the lowest-ranked entry, so a heap with a limit keeps the best entries offered to it and can tell in O(1) whether a new one would make the cut.
+ * Scores are compared with Double.compare, so NaN ranks below everything else. Nothing is boxed. Not thread-safe.
+ */
+public class RankedHeap {
+	//vars
+	private int limit = 0;
+	private double[] scores = null;
+	private int[] ids = null;
+	private int size = 0;
+	
+	//constructor
+	public RankedHeap(int limit) {
+		if (limit < 0) {
+			throw new IllegalArgumentException("limit cannot be negative.");
+		}
+		
+		this.limit = limit;
+		scores = new double[Math.min(limit, 16)];
+		ids = new int[scores.length];
+	}
+	
+	//public
+	/**
+	 * Adds an entry if the heap isn't full yet, or if it ranks higher than the lowest-ranked entry, which it then replaces.
+	 * 
+	 * @param score The entry's score, lower is better
+	 * @param id The entry's ID
+	 * @return true if the entry was added, false if it didn't rank high enough
+	 */
+	public boolean offer(double score, int id) {
+		if (size < limit) {
+			if (size == scores.length) {
+				grow();
+			}
+			scores[size] = score;
+			ids[size] = id;
+			siftUp(size);
+			size++;
+			return true;
+		}
+		
+		if (size == 0 || compare(score, id, scores[0], ids[0]) >= 0) {
+			return false;
+		}
+		scores[0] = score;
+		ids[0] = id;
+		siftDown(0);
+		return true;
+	}
+	/**
+	 * Removes every entry and returns their IDs.
+	 * 
+	 * @return The IDs, highest-ranked first
+	 */
+	public int[] drain() {
+		int[] retVal = new int[size];
+		
+		for (int i = size - 1; i >= 0; i--) {
+			retVal[i] = ids[0];
+			size--;
+			scores[0] = scores[size];
+			ids[0] = ids[size];
+			siftDown(0);
+		}
+		
+		return retVal;
+	}
+	
+	public boolean isFull() {
+		return size >= limit;
+	}
+	public int size() {
+		return size;
+	}
+	/**
+	 * Returns the score of the lowest-ranked entry, which anything new has to beat once the heap is full.
+	 * 
+	 * @return The lowest-ranked entry's score
+	 */
+	public double getWorstScore() {
+		if (size == 0) {
+			throw new IllegalStateException("Heap is empty.");
+		}
+		return scores[0];
+	}
+	public int getWorstId() {
+		if (size == 0) {
+			throw new IllegalStateException("Heap is empty.");
+		}
+		return ids[0];
+	}
+	
+	//private
+	private void siftUp(int i) {
+		while (i > 0) {
+			int parent = (i - 1) >>> 1;
+			if (compare(i, parent) <= 0) {
+				return;
+			}
+			swap(i, parent);
+			i = parent;
+		}
+	}
+	private void siftDown(int i) {
+		while (true) {
+			int child = 2 * i + 1;
+			if (child >= size) {
+				return;
+			}
+			if (child + 1 < size && compare(child + 1, child) > 0) {
+				child++;
+			}
+			if (compare(child, i) <= 0) {
+				return;
+			}
+			swap(i, child);
+			i = child;
+		}
+	}
+	
+	private int compare(int one, int two) {
+		return compare(scores[one], ids[one], scores[two], ids[two]);
+	}
+	private static int compare(double oneScore, int oneId, double twoScore, int twoId) {
+		int retVal = Double.compare(oneScore, twoScore);
+		return (retVal != 0) ? retVal : Integer.compare(oneId, twoId);
+	}
+	
+	private void swap(int one, int two) {
+		double score = scores[one];
+		scores[one] = scores[two];
+		scores[two] = score;
+		int id = ids[one];
+		ids[one] = ids[two];
+		ids[two] = id;
+	}
+	private void grow() {
+		int capacity = (int) Math.min(limit, Math.max(16L, scores.length * 2L));
+		double[] newScores = new double[capacity];
+		int[] newIds = new int[capacity];
+		System.arraycopy(scores, 0, newScores, 0, size);
+		System.arraycopy(ids, 0, newIds, 0, size);
+		scores = newScores;
+		ids = newIds;
+	}
+}
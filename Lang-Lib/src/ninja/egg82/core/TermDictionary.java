@@ -0,0 +1,158 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+
+/**
+ * Assigns every distinct string a dense int ID so that rows and indexes can store ints instead of string references.
+ * IDs are handed out in order starting at 0. A term keeps its ID even if nothing refers to it anymore, until compact() drops it and renumbers the terms after it.
+ */
+public class TermDictionary {
+	//vars
+	private Object2IntOpenHashMap<String> ids = new Object2IntOpenHashMap<String>();
+	private ObjectArrayList<String> terms = new ObjectArrayList<String>();
+	
+	//constructor
+	public TermDictionary() {
+		ids.defaultReturnValue(-1);
+	}
+	
+	//public
+	/**
+	 * Returns the ID of a term, giving it a new one if it doesn't have one yet.
+	 * 
+	 * @param term The term to look up
+	 * @return The term's ID
+	 */
+	public int add(String term) {
+		if (term == null) {
+			throw new IllegalArgumentException("term cannot be null.");
+		}
+		
+		int retVal = ids.getInt(term);
+		if (retVal == -1) {
+			retVal = terms.size();
+			ids.put(term, retVal);
+			terms.add(term);
+		}
+		return retVal;
+	}
+	/**
+	 * Returns the ID of a term.
+	 * 
+	 * @param term The term to look up
+	 * @return The term's ID, or -1 if it doesn't have one
+	 */
+	public int get(String term) {
+		if (term == null) {
+			return -1;
+		}
+		return ids.getInt(term);
+	}
+	/**
+	 * Returns the term with the given ID.
+	 * 
+	 * @param id The term ID
+	 * @return The term, or null if no term has that ID
+	 */
+	public String getTerm(int id) {
+		if (id < 0 || id >= terms.size()) {
+			return null;
+		}
+		return terms.get(id);
+	}
+	
+	public int size() {
+		return terms.size();
+	}
+	
+	/**
+	 * Drops every term that isn't kept and gives the rest new, contiguous IDs in the same order they had before.
+	 * Anything holding on to the old IDs has to be renumbered with the returned map.
+	 * 
+	 * @param keep The IDs of the terms to keep
+	 * @return Old ID -> new ID, or -1 for terms that were dropped
+	 */
+	public int[] compact(BitSet keep) {
+		if (keep == null) {
+			throw new IllegalArgumentException("keep cannot be null.");
+		}
+		
+		int[] retVal = new int[terms.size()];
+		int count = keep.cardinality();
+		ObjectArrayList<String> newTerms = new ObjectArrayList<String>(count);
+		Object2IntOpenHashMap<String> newIds = new Object2IntOpenHashMap<String>(count);
+		newIds.defaultReturnValue(-1);
+		for (int i = 0; i < terms.size(); i++) {
+			if (!keep.get(i)) {
+				retVal[i] = -1;
+				continue;
+			}
+			retVal[i] = newTerms.size();
+			newIds.put(terms.get(i), retVal[i]);
+			newTerms.add(terms.get(i));
+		}
+		
+		ids = newIds;
+		terms = newTerms;
+		return retVal;
+	}
+	
+	/**
+	 * Writes every term in ID order.
+	 * 
+	 * @param out Where to write the terms
+	 * @throws IOException If the terms could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(terms.size());
+		for (int i = 0; i < terms.size(); i++) {
+			String term = terms.get(i);
+			out.writeInt(term.length());
+			out.writeChars(term);
+		}
+	}
+	/**
+	 * Reads a dictionary written by write(), starting at the buffer's current position. Every term gets back the ID it was written with.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @return The dictionary that was read
+	 */
+	public static TermDictionary read(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		// Every term is at least its length
+		if (count < 0 || count > buffer.remaining() / 4) {
+			throw new IllegalArgumentException("buffer does not contain a valid dictionary.");
+		}
+		
+		TermDictionary retVal = new TermDictionary();
+		retVal.ids = new Object2IntOpenHashMap<String>(count);
+		retVal.ids.defaultReturnValue(-1);
+		retVal.terms = new ObjectArrayList<String>(count);
+		
+		char[] chars = new char[16];
+		for (int i = 0; i < count; i++) {
+			int length = buffer.getInt();
+			if (length < 0 || length > buffer.remaining() / 2) {
+				throw new IllegalArgumentException("buffer does not contain a valid dictionary.");
+			}
+			if (chars.length < length) {
+				chars = new char[Math.max(length, chars.length * 2)];
+			}
+			for (int j = 0; j < length; j++) {
+				chars[j] = buffer.getChar();
+			}
+			
+			String term = new String(chars, 0, length);
+			retVal.ids.put(term, i);
+			retVal.terms.add(term);
+		}
+		
+		return retVal;
+	}
+}
@@ -0,0 +1,296 @@
+package ninja.egg82.core;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.ObjectArrayList;
+import ninja.egg82.patterns.tuples.pair.IntIntPair;
+
+/**
+ * Maps term IDs to the rows they appear in, along with the n-gram index (and optionally the BK-tree) over every term that currently has rows.
+ * Terms are indexed when they get their first row and dropped when they lose their last one.
+ * Searches don't modify anything, so they can run concurrently as long as nothing is being added or removed at the same time.
+ */
+public class TermIndex {
+	//vars
+	private TermDictionary dictionary = null;
+	
+	// Term ID -> rows, null for terms that aren't in this index
+	private ObjectArrayList<PostingList> postings = new ObjectArrayList<PostingList>();
+	private int size = 0;
+	private NGramIndex grams = null; // Narrows down substring searches
+	private BKTree tree = null; // Levenshtein searches, if enabled
+	
+	//constructor
+	public TermIndex(TermDictionary dictionary, boolean fuzzy) {
+		if (dictionary == null) {
+			throw new IllegalArgumentException("dictionary cannot be null.");
+		}
+		
+		this.dictionary = dictionary;
+		grams = new NGramIndex(3, dictionary);
+		if (fuzzy) {
+			tree = new BKTree(dictionary);
+		}
+	}
+	
+	//public
+	public void add(int termId, int row) {
+		if (termId < 0 || termId >= dictionary.size()) {
+			throw new IllegalArgumentException("termId is not in the dictionary.");
+		}
+		
+		// size(int) grows the backing array to exactly the new size, add() grows it geometrically
+		while (postings.size() <= termId) {
+			postings.add(null);
+		}
+		
+		PostingList rows = postings.get(termId);
+		if (rows == null) {
+			rows = new PostingList();
+			postings.set(termId, rows);
+			size++;
+			grams.add(termId);
+			if (tree != null) {
+				tree.add(termId);
+			}
+		}
+		rows.add(row);
+	}
+	/**
+	 * Removes a row from a term, dropping the term from the index if that was its last row.
+	 * 
+	 * @param termId The term ID
+	 * @param row The row to remove
+	 * @return true if the row was removed, false if the term didn't have that row
+	 */
+	public boolean remove(int termId, int row) {
+		PostingList rows = get(termId);
+		if (rows == null || !rows.remove(row)) {
+			return false;
+		}
+		
+		if (rows.isEmpty()) {
+			// Drop terms with no rows left so they stop showing up as search candidates
+			postings.set(termId, null);
+			size--;
+			grams.remove(termId);
+			if (tree != null) {
+				tree.remove(termId);
+			}
+		}
+		return true;
+	}
+	/**
+	 * Renumbers every row after a removed one so row numbers stay contiguous.
+	 * 
+	 * @param row The removed row, which must not be in the index anymore
+	 */
+	public void shiftDown(int row) {
+		for (int i = 0; i < postings.size(); i++) {
+			PostingList rows = postings.get(i);
+			if (rows != null) {
+				rows.shiftDown(row);
+			}
+		}
+	}
+	
+	/**
+	 * Marks every term the index still refers to, including any the BK-tree keeps around for routing.
+	 * 
+	 * @param ids Where to mark the term IDs
+	 */
+	public void markTerms(BitSet ids) {
+		for (int i = 0; i < postings.size(); i++) {
+			if (postings.get(i) != null) {
+				ids.set(i);
+			}
+		}
+		if (tree != null) {
+			tree.markTerms(ids);
+		}
+	}
+	/**
+	 * Renumbers every term after the dictionary has been compacted. Every term marked by markTerms() has to have been kept.
+	 * 
+	 * @param map Old term ID -> new term ID, as returned by TermDictionary.compact()
+	 */
+	public void remap(int[] map) {
+		int last = postings.size() - 1;
+		while (last >= 0 && postings.get(last) == null) {
+			last--;
+		}
+		
+		// Sized once up front, growing it one term at a time would copy the whole array each time
+		ObjectArrayList<PostingList> newPostings = new ObjectArrayList<PostingList>((last == -1) ? 0 : map[last] + 1);
+		newPostings.size((last == -1) ? 0 : map[last] + 1);
+		for (int i = 0; i <= last; i++) {
+			PostingList rows = postings.get(i);
+			if (rows != null) {
+				newPostings.set(map[i], rows);
+			}
+		}
+		postings = newPostings;
+		
+		grams.remap(map);
+		if (tree != null) {
+			tree.remap(map);
+		}
+	}
+	
+	public PostingList get(int termId) {
+		return (termId < 0 || termId >= postings.size()) ? null : postings.get(termId);
+	}
+	public PostingList get(String term) {
+		return get(dictionary.get(term));
+	}
+	
+	/**
+	 * Returns every term in the index that contains the search string.
+	 * 
+	 * @param search The string to look for
+	 * @return The terms containing the search string
+	 */
+	public List<String> containing(String search) {
+		if (search == null) {
+			throw new IllegalArgumentException("search cannot be null.");
+		}
+		
+		List<String> retVal = new ArrayList<String>();
+		
+		IntList ids = grams.containing(search);
+		if (ids != null) {
+			for (int i = 0; i < ids.size(); i++) {
+				retVal.add(dictionary.getTerm(ids.getInt(i)));
+			}
+		} else {
+			// Too short to have any n-grams, fall back to a scan
+			for (int i = 0; i < postings.size(); i++) {
+				if (postings.get(i) != null) {
+					String term = dictionary.getTerm(i);
+					if (term.contains(search)) {
+						retVal.add(term);
+					}
+				}
+			}
+		}
+		
+		return retVal;
+	}
+	/**
+	 * Returns every term in the index that either contains the search string or is contained in it.
+	 * 
+	 * @param search The string to look for
+	 * @return The matching terms
+	 */
+	public Collection<String> substringCandidates(String search) {
+		Set<String> retVal = new LinkedHashSet<String>(containing(search));
+		
+		// Terms contained in the search
+		for (int i = 0; i < search.length(); i++) {
+			for (int j = i + 1; j <= search.length(); j++) {
+				String sub = search.substring(i, j);
+				if (get(sub) != null) {
+					retVal.add(sub);
+				}
+			}
+		}
+		
+		return retVal;
+	}
+	/**
+	 * Returns every term in the index within the given Levenshtein distance of the search string.
+	 * 
+	 * @param search The string to compare against
+	 * @param maxDistance The largest distance to return
+	 * @return The matching term IDs (left) and their distances (right), in no particular order
+	 */
+	public List<IntIntPair> similar(String search, int maxDistance) {
+		if (tree == null) {
+			throw new IllegalStateException("Index was not created with fuzzy searches enabled.");
+		}
+		return tree.search(search, maxDistance);
+	}
+	
+	/**
+	 * Returns the number of terms that have at least one row.
+	 * 
+	 * @return The number of terms in the index
+	 */
+	public int size() {
+		return size;
+	}
+	
+	/**
+	 * Writes the postings of every term along with the n-gram index and BK-tree, so reading them back doesn't need to rebuild anything.
+	 * 
+	 * @param out Where to write the index
+	 * @throws IOException If the index could not be written
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeBoolean(tree != null);
+		out.writeInt(postings.size());
+		out.writeInt(size);
+		for (int i = 0; i < postings.size(); i++) {
+			PostingList rows = postings.get(i);
+			if (rows != null) {
+				out.writeInt(i);
+				rows.write(out);
+			}
+		}
+		grams.write(out);
+		if (tree != null) {
+			tree.write(out);
+		}
+	}
+	/**
+	 * Reads an index written by write(), starting at the buffer's current position.
+	 * 
+	 * @param buffer The buffer to read from
+	 * @param dictionary The dictionary the index's term IDs come from
+	 * @param rows The number of rows in the database. Every row in the index has to be below this
+	 * @return The index that was read
+	 */
+	public static TermIndex read(ByteBuffer buffer, TermDictionary dictionary, int rows) {
+		TermIndex retVal = new TermIndex(dictionary, buffer.get() != 0);
+		int slots = buffer.getInt();
+		int count = buffer.getInt();
+		if (slots < 0 || slots > dictionary.size() || count < 0 || count > slots) {
+			throw new IllegalArgumentException("buffer does not contain a valid index.");
+		}
+		
+		retVal.postings = new ObjectArrayList<PostingList>(slots);
+		retVal.postings.size(slots);
+		// Which terms have rows, for checking the n-grams and tree below. Much faster than going through the postings for every ID
+		BitSet indexed = new BitSet(slots);
+		for (int i = 0; i < count; i++) {
+			int termId = buffer.getInt();
+			if (termId < 0 || termId >= slots) {
+				throw new IllegalArgumentException("buffer does not contain a valid index.");
+			}
+			PostingList termRows = PostingList.read(buffer, row -> row < rows);
+			if (termRows.isEmpty() || retVal.postings.get(termId) != null) {
+				throw new IllegalArgumentException("buffer does not contain a valid index.");
+			}
+			retVal.postings.set(termId, termRows);
+			indexed.set(termId);
+		}
+		retVal.size = count;
+		
+		// Searches look up the rows of whatever the n-grams and the tree hand back without checking, so those terms have to be in this index
+		retVal.grams = NGramIndex.read(buffer, dictionary, indexed::get);
+		if (retVal.tree != null) {
+			retVal.tree = BKTree.read(buffer, dictionary, indexed::get);
+		}
+		
+		return retVal;
+	}
+}
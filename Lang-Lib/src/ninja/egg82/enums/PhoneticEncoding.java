@@ -0,0 +1,7 @@
+package ninja.egg82.enums;
+
+public enum PhoneticEncoding {
+	DOUBLE_METAPHONE,
+	SOUNDEX,
+	NYSIIS
+}
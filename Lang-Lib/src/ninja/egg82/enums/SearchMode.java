@@ -0,0 +1,8 @@
+package ninja.egg82.enums;
+
+public enum SearchMode {
+	EXACT,
+	SUBSTRING,
+	LEVENSHTEIN,
+	DOUBLE_METAPHONE
+}
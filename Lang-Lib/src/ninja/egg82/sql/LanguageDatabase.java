@@ -1,17 +1,27 @@
 package ninja.egg82.sql;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.HashSet;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
-import org.apache.commons.codec.language.DoubleMetaphone;
 import org.apache.commons.lang.StringUtils;
 
 import com.github.benmanes.caffeine.cache.Cache;
@@ -19,30 +29,67 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 
 import it.unimi.dsi.fastutil.ints.IntArrayList;
 import it.unimi.dsi.fastutil.ints.IntList;
-import ninja.egg82.patterns.tuples.pair.Double2Pair;
-import ninja.egg82.patterns.tuples.pair.Int2Pair;
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import ninja.egg82.core.Analyzer;
+import ninja.egg82.core.LevenshteinUtil;
+import ninja.egg82.core.PostingList;
+import ninja.egg82.core.RankedHeap;
+import ninja.egg82.core.TermDictionary;
+import ninja.egg82.core.TermIndex;
+import ninja.egg82.enums.SearchMode;
 import ninja.egg82.patterns.tuples.pair.IntIntPair;
 import ninja.egg82.patterns.tuples.pair.Pair;
 
 public class LanguageDatabase {
 	//vars
-	private DoubleMetaphone dm = new DoubleMetaphone();
+	private static final int MAX_INCREMENTAL_TERMS = 1000;
+	private static final int MIN_COMPACT_TERMS = 65536;
+	// "LANG", followed by the format version. Bump the version whenever the layout changes
+	private static final int SNAPSHOT_MAGIC = 0x4C414E47;
+	private static final int SNAPSHOT_VERSION = 2;
 	
-	private List<List<String>> rows = new ArrayList<List<String>>(); // Plaintext table
-	private List<List<String>> ciRows = new ArrayList<List<String>>(); // Case-insensitive table
-	private List<List<String>> dmRows = new ArrayList<List<String>>(); // DM table
-	private Map<String, IntList> containsRows = new ConcurrentHashMap<String, IntList>(); // Needed for fast exact & contains matches
-	private Map<String, IntList> containsCiRows = new ConcurrentHashMap<String, IntList>(); // Case-insensitive version
-	private Map<String, IntList> containsDmRows = new ConcurrentHashMap<String, IntList>(); // There may be multiple rows with the same values, hence the list
+	private Analyzer analyzer = null; // Turns plaintext into case-insensitive and phonetic keys
+	// Searches only read, so any number of them can run at once. Adding or removing rows waits for them and blocks them
+	private ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	private TermDictionary dictionary = new TermDictionary(); // Every distinct plaintext, case-insensitive, and phonetic string, by ID
+	private IntArrayList rowStarts = new IntArrayList(new int[] { 0 }); // Row i's columns are rowTerms[rowStarts[i]] up to rowTerms[rowStarts[i + 1]]
+	private IntArrayList rowTerms = new IntArrayList(); // Plaintext table, as term IDs, one row after another
+	private IntArrayList ciOf = new IntArrayList(); // Plaintext term ID -> case-insensitive term ID, -1 if it hasn't been used as a column
+	private IntArrayList dmOf = new IntArrayList(); // Plaintext term ID -> phonetic term ID
+	private TermIndex csIndex = new TermIndex(dictionary, true); // Needed for fast exact & contains matches
+	private TermIndex ciIndex = new TermIndex(dictionary, true); // Case-insensitive version
+	private TermIndex dmIndex = new TermIndex(dictionary, false); // There may be multiple rows with the same values, hence the posting lists
+	// Terms of removed rows keep their IDs (and their slots in ciOf, dmOf, and the indexes) until the dictionary is compacted
+	private int compactAt = MIN_COMPACT_TERMS; // Dictionary size that triggers the next compaction
+	private boolean rowsRemoved = false; // Whether anything could have been orphaned since the last compaction
 	
 	private Cache<String, List<Pair<String, IntIntPair>>> exactCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Last 1000 single-word searches
+	private Cache<String, List<Pair<String, IntIntPair>>> exactCiCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Case-insensitive version
 	private Cache<String, List<Pair<String, IntIntPair>>> containsCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Last 1000 single-word searches
+	private Cache<String, List<Pair<String, IntIntPair>>> containsCiCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Case-insensitive version
 	private Cache<String, List<Pair<String, IntIntPair>>> levenshteinCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Last 1000 single-word searches
+	private Cache<String, List<Pair<String, IntIntPair>>> levenshteinCiCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Case-insensitive version
 	private Cache<String, List<Pair<String, IntIntPair>>> dmCache = Caffeine.newBuilder().maximumSize(1000L).build(); // Last 1000 single-word searches
 	
 	//constructor
 	public LanguageDatabase() {
-		dm.setMaxCodeLen(10);
+		this(new Analyzer());
+	}
+	/**
+	 * Creates a database that builds its case-insensitive and phonetic keys with the given analyzer.
+	 * Every key is worked out once per distinct value when it's added, and queries for values that are already in the database reuse them.
+	 * Case-sensitive searches always match values exactly as they were added.
+	 * 
+	 * @param analyzer The analyzer to use
+	 */
+	public LanguageDatabase(Analyzer analyzer) {
+		if (analyzer == null) {
+			throw new IllegalArgumentException("analyzer cannot be null.");
+		}
+		
+		this.analyzer = analyzer;
 	}
 	
 	//public
@@ -52,101 +99,135 @@ public class LanguageDatabase {
 	 * @param columns Any columns to give the row. The number of columns does not have to match any previous rows given
 	 * @return The row ID/index of the newly-added columns
 	 */
-	public synchronized int addRow(String... columns) {
+	public int addRow(String... columns) {
 		if (columns == null) {
 			throw new IllegalArgumentException("columns cannot be null.");
 		}
 		
-		columns = stripBlanksAndDuplicates(columns);
-		if (columns.length == 0) {
-			return -1;
+		lock.writeLock().lock();
+		try {
+			List<String> terms = new ArrayList<String>();
+			List<String> dmTerms = new ArrayList<String>();
+			int index = add(columns, terms, dmTerms);
+			compactIfNeeded();
+			invalidate(terms, dmTerms);
+			return index;
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
-		int index = rows.size();
-		
-		List<String> cs = Arrays.asList(columns);
-		List<String> ci = Arrays.asList(columns);
-		List<String> dm = generateDm(columns);
-		
-		for (int i = 0; i < ci.size(); i++) {
-			ci.set(i, ci.get(i).toLowerCase());
+	}
+	/**
+	 * Adds several rows to the database at once and returns their indices (row IDs).
+	 * Cached search results are only invalidated once, after every row is in, which makes this much faster than calling addRow in a loop while searches are also running.
+	 * 
+	 * @param newRows The rows to add, each one being the columns addRow takes
+	 * @return The row ID/index of each row, in the same order. Rows with no non-empty columns get -1
+	 */
+	public int[] addRows(Collection<String[]> newRows) {
+		if (newRows == null) {
+			throw new IllegalArgumentException("newRows cannot be null.");
+		}
+		for (String[] columns : newRows) {
+			if (columns == null) {
+				throw new IllegalArgumentException("newRows cannot contain null.");
+			}
 		}
 		
-		rows.add(cs);
-		ciRows.add(ci);
-		dmRows.add(dm);
-		
-		for (int i = 0; i < cs.size(); i++) {
-			String csString = cs.get(i);
-			String ciString = ci.get(i);
-			String dmString = dm.get(i);
+		lock.writeLock().lock();
+		try {
+			int[] retVal = new int[newRows.size()];
+			rowStarts.ensureCapacity(rowStarts.size() + newRows.size());
+			List<String> terms = new ArrayList<String>();
+			List<String> dmTerms = new ArrayList<String>();
 			
-			if (containsRows.containsKey(csString)) {
-				IntList values = containsRows.get(csString);
-				if (!values.contains(index)) {
-					values.add(index);
-					Collections.sort(values);
-				}
-			} else {
-				containsRows.put(csString, new IntArrayList(new int[] { index }));
-			}
-			if (containsCiRows.containsKey(ciString)) {
-				IntList values = containsCiRows.get(ciString);
-				if (!values.contains(index)) {
-					values.add(index);
-					Collections.sort(values);
-				}
-			} else {
-				containsCiRows.put(ciString, new IntArrayList(new int[] { index }));
+			int i = 0;
+			for (String[] columns : newRows) {
+				retVal[i] = add(columns, terms, dmTerms);
+				i++;
 			}
-			if (containsDmRows.containsKey(dmString)) {
-				IntList values = containsDmRows.get(dmString);
-				if (!values.contains(index)) {
-					values.add(index);
-					Collections.sort(values);
-				}
+			compactIfNeeded();
+			
+			// Past this point checking each cached search against every term costs more than re-running the searches
+			if (terms.size() + dmTerms.size() > MAX_INCREMENTAL_TERMS) {
+				exactCache.invalidateAll();
+				exactCiCache.invalidateAll();
+				containsCache.invalidateAll();
+				containsCiCache.invalidateAll();
+				levenshteinCache.invalidateAll();
+				levenshteinCiCache.invalidateAll();
+				dmCache.invalidateAll();
 			} else {
-				containsDmRows.put(dmString, new IntArrayList(new int[] { index }));
+				invalidate(terms, dmTerms);
 			}
+			
+			return retVal;
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
-		exactCache.invalidateAll();
-		containsCache.invalidateAll();
-		levenshteinCache.invalidateAll();
-		dmCache.invalidateAll();
-		
-		return index;
 	}
 	/**
 	 * Removes a row by the given index.
+	 * Values no other row uses keep their place in the term dictionary until it's compacted, which happens while adding rows once the dictionary has doubled in size.
 	 * 
 	 * @param rowIndex The row ID to retrieve
 	 */
-	public synchronized void removeRow(int rowIndex) {
-		if (rowIndex < 0 || rowIndex >= rows.size()) {
-			return;
+	public void removeRow(int rowIndex) {
+		lock.writeLock().lock();
+		try {
+			if (rowIndex < 0 || rowIndex >= rowStarts.size() - 1) {
+				return;
+			}
+			
+			int start = rowStarts.getInt(rowIndex);
+			int end = rowStarts.getInt(rowIndex + 1);
+			
+			List<String> terms = new ArrayList<String>();
+			List<String> dmTerms = new ArrayList<String>();
+			for (int i = start; i < end; i++) {
+				int csId = rowTerms.getInt(i);
+				int ciId = ciOf.getInt(csId);
+				int dmId = dmOf.getInt(csId);
+				
+				csIndex.remove(csId, rowIndex);
+				terms.add(dictionary.getTerm(csId));
+				// Empty keys were never indexed
+				if (ciIndex.remove(ciId, rowIndex)) {
+					terms.add(dictionary.getTerm(ciId));
+				}
+				if (dmIndex.remove(dmId, rowIndex)) {
+					dmTerms.add(dictionary.getTerm(dmId));
+				}
+			}
+			
+			rowTerms.removeElements(start, end);
+			rowStarts.removeInt(rowIndex);
+			for (int i = rowIndex; i < rowStarts.size(); i++) {
+				rowStarts.set(i, rowStarts.getInt(i) - (end - start));
+			}
+			
+			// Every row after this one moves up by one
+			csIndex.shiftDown(rowIndex);
+			ciIndex.shiftDown(rowIndex);
+			dmIndex.shiftDown(rowIndex);
+			rowsRemoved = true;
+			
+			invalidate(terms, dmTerms);
+		} finally {
+			lock.writeLock().unlock();
 		}
-		
-		rows.remove(rowIndex);
-		ciRows.remove(rowIndex);
-		dmRows.remove(rowIndex);
-		
-		removeFromMap(containsRows, rowIndex);
-		removeFromMap(containsCiRows, rowIndex);
-		removeFromMap(containsDmRows, rowIndex);
-		
-		exactCache.invalidateAll();
-		containsCache.invalidateAll();
-		levenshteinCache.invalidateAll();
-		dmCache.invalidateAll();
 	}
 	/**
 	 * Returns the number of rows currently in the database.
 	 * 
 	 * @return The number of rows currently in the database
 	 */
-	public synchronized int numRows() {
-		return rows.size();
+	public int numRows() {
+		lock.readLock().lock();
+		try {
+			return rowStarts.size() - 1;
+		} finally {
+			lock.readLock().unlock();
+		}
 	}
 	/**
 	 * Returns the number of columns for a given row in the database.
@@ -154,11 +235,29 @@ public class LanguageDatabase {
 	 * @param rowIndex The row ID
 	 * @return The number of columns in the specified row ID
 	 */
-	public synchronized int numColumns(int rowIndex) {
-		if (rowIndex < 0 || rowIndex >= rows.size()) {
-			return -1;
+	public int numColumns(int rowIndex) {
+		lock.readLock().lock();
+		try {
+			if (rowIndex < 0 || rowIndex >= rowStarts.size() - 1) {
+				return -1;
+			}
+			return rowStarts.getInt(rowIndex + 1) - rowStarts.getInt(rowIndex);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	/**
+	 * Returns the analyzer used to build case-insensitive and phonetic keys.
+	 * 
+	 * @return The database's analyzer
+	 */
+	public Analyzer getAnalyzer() {
+		lock.readLock().lock();
+		try {
+			return analyzer;
+		} finally {
+			lock.readLock().unlock();
 		}
-		return rows.get(rowIndex).size();
 	}
 	
 	/**
@@ -168,7 +267,7 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] exact(String search, boolean caseSensitive) {
+	public int[] exact(String search, boolean caseSensitive) {
 		return exact(new String[] {search}, caseSensitive);
 	}
 	/**
@@ -179,7 +278,7 @@ public class LanguageDatabase {
 	 * @param delimiter An optional delimiter to split the string into several searches
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] exact(String search, boolean caseSensitive, char delimiter) {
+	public int[] exact(String search, boolean caseSensitive, char delimiter) {
 		return exact(search.split("\\" + delimiter), caseSensitive);
 	}
 	/**
@@ -189,170 +288,8 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] exact(String[] search, boolean caseSensitive) {
-		IntList ids = new IntArrayList();
-		ArrayList<Int2Pair<String>> keyColumn = new ArrayList<Int2Pair<String>>();
-		ArrayList<Double2Pair<String>> keyScore = new ArrayList<Double2Pair<String>>();
-		double maxColumn = 0.0d;
-		double maxSize = 0.0d;
-		double maxFrequency = 0.0d;
-		
-		if (!caseSensitive) {
-			for (int i = 0; i < search.length; i++) {
-				search[i] = search[i].toLowerCase();
-			}
-		}
-		
-		HashSet<String> searchSet = new HashSet<String>(Arrays.asList(search));
-		searchSet.remove(null);
-		searchSet.remove("");
-		
-		if (caseSensitive) {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = exactCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyColumn.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentColumn = result.get(i).getRight().getLeft();
-						if (maxColumn < currentColumn) {
-							maxColumn = currentColumn;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsRows.entrySet()) {
-						String key = kvp.getKey();
-						if (s.equals(key)) {
-							int currentColumn = Integer.MAX_VALUE;
-							for (int id : kvp.getValue()) {
-								List<String> row = rows.get(id);
-								for (int i = 0; i < row.size(); i++) {
-									if (s.equals(row.get(i))) {
-										if (i < currentColumn) {
-											currentColumn = i;
-										}
-									}
-								}
-							}
-							
-							keyColumn.add(new Int2Pair<String>(key, currentColumn));
-							if (maxColumn < currentColumn) {
-								maxColumn = currentColumn;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(exactCache, s, key, currentColumn, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyColumn.size(); i++) {
-				int frequency = Collections.frequency(keyColumn, keyColumn.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyColumn.size(); i++) {
-				double score = keyColumn.get(i).getRight() / maxColumn;
-				score -= (containsRows.get(keyColumn.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyColumn, keyColumn.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyColumn.get(i).getLeft(), score));
-			}
-		} else {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = exactCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyColumn.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentColumn = result.get(i).getRight().getLeft();
-						if (maxColumn < currentColumn) {
-							maxColumn = currentColumn;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsCiRows.entrySet()) {
-						String key = kvp.getKey();
-						if (key.contains(s) || s.contains(key)) {
-							int currentColumn = Integer.MAX_VALUE;
-							for (int id : kvp.getValue()) {
-								List<String> row = ciRows.get(id);
-								for (int i = 0; i < row.size(); i++) {
-									if (s.equals(row.get(i))) {
-										if (i < currentColumn) {
-											currentColumn = i;
-										}
-									}
-								}
-							}
-							
-							keyColumn.add(new Int2Pair<String>(key, currentColumn));
-							if (maxColumn < currentColumn) {
-								maxColumn = currentColumn;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(exactCache, s, key, currentColumn, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyColumn.size(); i++) {
-				int frequency = Collections.frequency(keyColumn, keyColumn.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyColumn.size(); i++) {
-				double score = keyColumn.get(i).getRight() / maxColumn;
-				score -= (containsCiRows.get(keyColumn.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyColumn, keyColumn.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyColumn.get(i).getLeft(), score));
-			}
-		}
-		
-		keyScore.sort(new Comparator<Double2Pair<String>>() {
-			@Override
-			public int compare(Double2Pair<String> one, Double2Pair<String> two) {
-				return Double.compare(one.getRight(), two.getRight());
-			}
-		});
-		
-		if (caseSensitive) {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		} else {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsCiRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		}
-		
-		return ids.toIntArray();
+	public int[] exact(String[] search, boolean caseSensitive) {
+		return search(search, SearchMode.EXACT, caseSensitive, 0, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -362,7 +299,7 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] substring(String search, boolean caseSensitive) {
+	public int[] substring(String search, boolean caseSensitive) {
 		return substring(new String[] {search}, caseSensitive);
 	}
 	/**
@@ -373,7 +310,7 @@ public class LanguageDatabase {
 	 * @param delimiter An optional delimiter to split the string into several searches
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] substring(String search, boolean caseSensitive, char delimiter) {
+	public int[] substring(String search, boolean caseSensitive, char delimiter) {
 		return substring(search.split("\\" + delimiter), caseSensitive);
 	}
 	/**
@@ -383,148 +320,8 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] substring(String[] search, boolean caseSensitive) {
-		IntList ids = new IntArrayList();
-		ArrayList<Int2Pair<String>> keyLevenshtein = new ArrayList<Int2Pair<String>>();
-		ArrayList<Double2Pair<String>> keyScore = new ArrayList<Double2Pair<String>>();
-		double maxLevenshtein = 0.0d;
-		double maxSize = 0.0d;
-		double maxFrequency = 0.0d;
-		
-		if (!caseSensitive) {
-			for (int i = 0; i < search.length; i++) {
-				search[i] = search[i].toLowerCase();
-			}
-		}
-		
-		HashSet<String> searchSet = new HashSet<String>(Arrays.asList(search));
-		searchSet.remove(null);
-		searchSet.remove("");
-		
-		if (caseSensitive) {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = containsCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyLevenshtein.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentDistance = result.get(i).getRight().getLeft();
-						if (maxLevenshtein < currentDistance) {
-							maxLevenshtein = currentDistance;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsRows.entrySet()) {
-						String key = kvp.getKey();
-						if (key.contains(s) || s.contains(key)) {
-							int currentDistance = StringUtils.getLevenshteinDistance(key, s);
-							keyLevenshtein.add(new Int2Pair<String>(key, currentDistance));
-							if (maxLevenshtein < currentDistance) {
-								maxLevenshtein = currentDistance;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(containsCache, s, key, currentDistance, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				int frequency = Collections.frequency(keyLevenshtein, keyLevenshtein.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				double score = keyLevenshtein.get(i).getRight() / maxLevenshtein;
-				score -= (containsRows.get(keyLevenshtein.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyLevenshtein, keyLevenshtein.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyLevenshtein.get(i).getLeft(), score));
-			}
-		} else {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = containsCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyLevenshtein.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentDistance = result.get(i).getRight().getLeft();
-						if (maxLevenshtein < currentDistance) {
-							maxLevenshtein = currentDistance;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsCiRows.entrySet()) {
-						String key = kvp.getKey();
-						if (key.contains(s) || s.contains(key)) {
-							int currentDistance = StringUtils.getLevenshteinDistance(key, s);
-							keyLevenshtein.add(new Int2Pair<String>(key, currentDistance));
-							if (maxLevenshtein < currentDistance) {
-								maxLevenshtein = currentDistance;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(containsCache, s, key, currentDistance, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				int frequency = Collections.frequency(keyLevenshtein, keyLevenshtein.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				double score = keyLevenshtein.get(i).getRight() / maxLevenshtein;
-				score -= (containsCiRows.get(keyLevenshtein.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyLevenshtein, keyLevenshtein.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyLevenshtein.get(i).getLeft(), score));
-			}
-		}
-		
-		keyScore.sort(new Comparator<Double2Pair<String>>() {
-			@Override
-			public int compare(Double2Pair<String> one, Double2Pair<String> two) {
-				return Double.compare(one.getRight(), two.getRight());
-			}
-		});
-		
-		if (caseSensitive) {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		} else {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsCiRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		}
-		
-		return ids.toIntArray();
+	public int[] substring(String[] search, boolean caseSensitive) {
+		return search(search, SearchMode.SUBSTRING, caseSensitive, 0, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -534,8 +331,19 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] levenshtein(String search, boolean caseSensitive) {
-		return levenshtein(new String[] {search}, caseSensitive);
+	public int[] levenshtein(String search, boolean caseSensitive) {
+		return levenshtein(new String[] {search}, caseSensitive, 3);
+	}
+	/**
+	 * Returns the row IDs of any levenshtein distances <= maxDistance and sorts the results by a relevance score descending and ID ascending.
+	 * 
+	 * @param search The search query
+	 * @param caseSensitive Whether or not the search is case-sensitive
+	 * @param maxDistance The largest levenshtein distance to match
+	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] levenshtein(String search, boolean caseSensitive, int maxDistance) {
+		return levenshtein(new String[] {search}, caseSensitive, maxDistance);
 	}
 	/**
 	 * Returns the row IDs of any levenshtein distances <= 3 and sorts the results by a relevance score descending and ID ascending.
@@ -545,8 +353,20 @@ public class LanguageDatabase {
 	 * @param delimiter An optional delimiter to split the string into several searches
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] levenshtein(String search, boolean caseSensitive, char delimiter) {
-		return levenshtein(search.split("\\" + delimiter), caseSensitive);
+	public int[] levenshtein(String search, boolean caseSensitive, char delimiter) {
+		return levenshtein(search.split("\\" + delimiter), caseSensitive, 3);
+	}
+	/**
+	 * Returns the row IDs of any levenshtein distances <= maxDistance and sorts the results by a relevance score descending and ID ascending.
+	 * 
+	 * @param search The search query
+	 * @param caseSensitive Whether or not the search is case-sensitive
+	 * @param delimiter An optional delimiter to split the string into several searches
+	 * @param maxDistance The largest levenshtein distance to match
+	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] levenshtein(String search, boolean caseSensitive, char delimiter, int maxDistance) {
+		return levenshtein(search.split("\\" + delimiter), caseSensitive, maxDistance);
 	}
 	/**
 	 * Returns the row IDs of any levenshtein distances <= 3 and sorts the results by a relevance score descending and ID ascending.
@@ -555,148 +375,19 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] levenshtein(String[] search, boolean caseSensitive) {
-		IntList ids = new IntArrayList();
-		ArrayList<Int2Pair<String>> keyLevenshtein = new ArrayList<Int2Pair<String>>();
-		ArrayList<Double2Pair<String>> keyScore = new ArrayList<Double2Pair<String>>();
-		double maxLevenshtein = 0.0d;
-		double maxSize = 0.0d;
-		double maxFrequency = 0.0d;
-		
-		if (!caseSensitive) {
-			for (int i = 0; i < search.length; i++) {
-				search[i] = search[i].toLowerCase();
-			}
-		}
-		
-		HashSet<String> searchSet = new HashSet<String>(Arrays.asList(search));
-		searchSet.remove(null);
-		searchSet.remove("");
-		
-		if (caseSensitive) {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = levenshteinCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyLevenshtein.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentDistance = result.get(i).getRight().getLeft();
-						if (maxLevenshtein < currentDistance) {
-							maxLevenshtein = currentDistance;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsRows.entrySet()) {
-						String key = kvp.getKey();
-						int currentDistance = StringUtils.getLevenshteinDistance(key, s);
-						if (currentDistance <= 3) {
-							keyLevenshtein.add(new Int2Pair<String>(key, currentDistance));
-							if (maxLevenshtein < currentDistance) {
-								maxLevenshtein = currentDistance;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(levenshteinCache, s, key, currentDistance, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				int frequency = Collections.frequency(keyLevenshtein, keyLevenshtein.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				double score = keyLevenshtein.get(i).getRight() / maxLevenshtein;
-				score -= (containsRows.get(keyLevenshtein.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyLevenshtein, keyLevenshtein.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyLevenshtein.get(i).getLeft(), score));
-			}
-		} else {
-			for (String s : searchSet) {
-				List<Pair<String, IntIntPair>> result = levenshteinCache.getIfPresent(s);
-				if (result != null) {
-					for (int i = 0; i < result.size(); i++) {
-						keyLevenshtein.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-						int currentDistance = result.get(i).getRight().getLeft();
-						if (maxLevenshtein < currentDistance) {
-							maxLevenshtein = currentDistance;
-						}
-						int size = result.get(i).getRight().getRight();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-					}
-				} else {
-					for (Entry<String, IntList> kvp : containsCiRows.entrySet()) {
-						String key = kvp.getKey();
-						int currentDistance = StringUtils.getLevenshteinDistance(key, s);
-						if (currentDistance <= 3) {
-							keyLevenshtein.add(new Int2Pair<String>(key, currentDistance));
-							if (maxLevenshtein < currentDistance) {
-								maxLevenshtein = currentDistance;
-							}
-							int size = kvp.getValue().size();
-							if (maxSize < size) {
-								maxSize = size;
-							}
-							
-							addToCache(levenshteinCache, s, key, currentDistance, size);
-						}
-					}
-				}
-			}
-			
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				int frequency = Collections.frequency(keyLevenshtein, keyLevenshtein.get(i));
-				if (maxFrequency < frequency) {
-					maxFrequency = frequency;
-				}
-			}
-			for (int i = 0; i < keyLevenshtein.size(); i++) {
-				double score = keyLevenshtein.get(i).getRight() / maxLevenshtein;
-				score -= (containsCiRows.get(keyLevenshtein.get(i).getLeft()).size() / maxSize) / 5.0d;
-				score -= ((Collections.frequency(keyLevenshtein, keyLevenshtein.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-				keyScore.add(new Double2Pair<String>(keyLevenshtein.get(i).getLeft(), score));
-			}
-		}
-		
-		keyScore.sort(new Comparator<Double2Pair<String>>() {
-			@Override
-			public int compare(Double2Pair<String> one, Double2Pair<String> two) {
-				return Double.compare(one.getRight(), two.getRight());
-			}
-		});
-		
-		if (caseSensitive) {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		} else {
-			for (int i = 0; i < keyScore.size(); i++) {
-				IntList temp = containsCiRows.get(keyScore.get(i).getLeft());
-				for (int j = 0; j < temp.size(); j++) {
-					if (!ids.contains(temp.getInt(j))) {
-						ids.add(temp.getInt(j));
-					}
-				}
-			}
-		}
-		
-		return ids.toIntArray();
+	public int[] levenshtein(String[] search, boolean caseSensitive) {
+		return levenshtein(search, caseSensitive, 3);
+	}
+	/**
+	 * Returns the row IDs of any levenshtein distances <= maxDistance and sorts the results by a relevance score descending and ID ascending.
+	 * 
+	 * @param search The search query
+	 * @param caseSensitive Whether or not the search is case-sensitive
+	 * @param maxDistance The largest levenshtein distance to match
+	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] levenshtein(String[] search, boolean caseSensitive, int maxDistance) {
+		return search(search, SearchMode.LEVENSHTEIN, caseSensitive, maxDistance, Integer.MAX_VALUE);
 	}
 	
 	/**
@@ -705,7 +396,7 @@ public class LanguageDatabase {
 	 * @param search The search query
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] doubleMetaphone(String search) {
+	public int[] doubleMetaphone(String search) {
 		return doubleMetaphone(new String[] {search});
 	}
 	/**
@@ -715,7 +406,7 @@ public class LanguageDatabase {
 	 * @param delimiter An optional delimiter to split the string into several searches
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] doubleMetaphone(String search, char delimiter) {
+	public int[] doubleMetaphone(String search, char delimiter) {
 		return doubleMetaphone(search.split("\\" + delimiter));
 	}
 	/**
@@ -724,89 +415,262 @@ public class LanguageDatabase {
 	 * @param search The search query
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] doubleMetaphone(String[] search) {
-		IntList ids = new IntArrayList();
-		ArrayList<Int2Pair<String>> keyLevenshtein = new ArrayList<Int2Pair<String>>();
-		ArrayList<Double2Pair<String>> keyScore = new ArrayList<Double2Pair<String>>();
-		double maxLevenshtein = 0.0d;
-		double maxSize = 0.0d;
-		double maxFrequency = 0.0d;
-		
-		String[] searchDm = new String[search.length * 2];
-		for (int i = 0; i < search.length; i++) {
-			searchDm[i * 2] = dm.doubleMetaphone(search[i], false);
-			searchDm[i * 2 + 1] = dm.doubleMetaphone(search[i], true);
+	public int[] doubleMetaphone(String[] search) {
+		return search(search, SearchMode.DOUBLE_METAPHONE, false, 0, Integer.MAX_VALUE);
+	}
+	/**
+	 * Returns the k most relevant row IDs for a case-insensitive search. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param search The search query
+	 * @param mode The kind of search to run
+	 * @param k The max number of row IDs to return
+	 * @return Up to k row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] search(String search, SearchMode mode, int k) {
+		return search(new String[] {search}, mode, false, 3, k);
+	}
+	/**
+	 * Returns the k most relevant row IDs for a search. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param search The search query
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the search is case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param k The max number of row IDs to return
+	 * @return Up to k row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] search(String search, SearchMode mode, boolean caseSensitive, int k) {
+		return search(new String[] {search}, mode, caseSensitive, 3, k);
+	}
+	/**
+	 * Returns the k most relevant row IDs for a search. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param search The search query
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the search is case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param delimiter An optional delimiter to split the string into several searches
+	 * @param k The max number of row IDs to return
+	 * @return Up to k row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] search(String search, SearchMode mode, boolean caseSensitive, char delimiter, int k) {
+		return search(search.split("\\" + delimiter), mode, caseSensitive, 3, k);
+	}
+	/**
+	 * Returns the k most relevant row IDs for a search. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param search The search query
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the search is case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param k The max number of row IDs to return
+	 * @return Up to k row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] search(String[] search, SearchMode mode, boolean caseSensitive, int k) {
+		return search(search, mode, caseSensitive, 3, k);
+	}
+	/**
+	 * Returns the k most relevant row IDs for a search, scored the same way as exact(), substring(), levenshtein() and doubleMetaphone().
+	 * Matching terms are visited best-first and rows are kept in a heap of size k, so once the heap is full and the next term can't beat its worst row the rest are never looked at.
+	 * 
+	 * @param search The search query
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the search is case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param maxDistance The largest levenshtein distance to match. Only used by levenshtein searches
+	 * @param k The max number of row IDs to return
+	 * @return Up to k row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
+	 */
+	public int[] search(String[] search, SearchMode mode, boolean caseSensitive, int maxDistance, int k) {
+		if (search == null) {
+			throw new IllegalArgumentException("search cannot be null.");
+		}
+		if (mode == null) {
+			throw new IllegalArgumentException("mode cannot be null.");
+		}
+		if (maxDistance < 0) {
+			throw new IllegalArgumentException("maxDistance cannot be negative.");
+		}
+		if (k < 0) {
+			throw new IllegalArgumentException("k cannot be negative.");
 		}
 		
-		HashSet<String> searchSet = new HashSet<String>(Arrays.asList(searchDm));
-		searchSet.remove(null);
-		searchSet.remove("");
-		
-		for (String s : searchSet) {
-			List<Pair<String, IntIntPair>> result = dmCache.getIfPresent(s);
-			if (result != null) {
+		lock.readLock().lock();
+		try {
+			LinkedHashSet<String> searchSet = new LinkedHashSet<String>();
+			for (int i = 0; i < search.length; i++) {
+				if (search[i] == null) {
+					continue;
+				}
+				if (mode == SearchMode.DOUBLE_METAPHONE) {
+					// Each code is searched for separately
+					searchSet.addAll(Arrays.asList(encodeQuery(search[i]).split(";")));
+				} else {
+					searchSet.add(caseSensitive ? search[i] : foldQuery(search[i]));
+				}
+			}
+			searchSet.remove("");
+			
+			TermIndex index = (mode == SearchMode.DOUBLE_METAPHONE) ? dmIndex : (caseSensitive ? csIndex : ciIndex);
+			
+			// Every key that matched, with its column or distance. The same key can show up once per search term
+			List<PostingList> keyRows = new ArrayList<PostingList>();
+			IntList keyTerms = new IntArrayList();
+			IntList keyMetrics = new IntArrayList();
+			double maxMetric = 0.0d;
+			double maxSize = 0.0d;
+			
+			for (String s : searchSet) {
+				List<Pair<String, IntIntPair>> result = matches(s, mode, caseSensitive, maxDistance);
 				for (int i = 0; i < result.size(); i++) {
-					keyLevenshtein.add(new Int2Pair<String>(result.get(i).getLeft(), result.get(i).getRight().getLeft()));
-					int currentDistance = result.get(i).getRight().getLeft();
-					if (maxLevenshtein < currentDistance) {
-						maxLevenshtein = currentDistance;
+					String key = result.get(i).getLeft();
+					int metric = result.get(i).getRight().getLeft();
+					if (maxMetric < metric) {
+						maxMetric = metric;
 					}
 					int size = result.get(i).getRight().getRight();
 					if (maxSize < size) {
 						maxSize = size;
 					}
-				}
-			} else {
-				for (Entry<String, IntList> kvp : containsDmRows.entrySet()) {
-					String key = kvp.getKey();
-					if (key.contains(s)) {
-						int currentDistance = StringUtils.getLevenshteinDistance(key, s);
-						keyLevenshtein.add(new Int2Pair<String>(key, currentDistance));
-						if (maxLevenshtein < currentDistance) {
-							maxLevenshtein = currentDistance;
-						}
-						int size = kvp.getValue().size();
-						if (maxSize < size) {
-							maxSize = size;
-						}
-						
-						addToCache(dmCache, s, key, currentDistance, size);
-					}
+					
+					keyRows.add(index.get(key));
+					keyTerms.add(dictionary.get(key));
+					keyMetrics.add(metric);
 				}
 			}
+			
+			return rank(keyRows, keyTerms, keyMetrics, maxMetric, maxSize, k);
+		} finally {
+			lock.readLock().unlock();
 		}
-		
-		for (int i = 0; i < keyLevenshtein.size(); i++) {
-			int frequency = Collections.frequency(keyLevenshtein, keyLevenshtein.get(i));
-			if (maxFrequency < frequency) {
-				maxFrequency = frequency;
-			}
+	}
+	
+	/**
+	 * Runs a separate search for every token in a message on the common ForkJoinPool and returns the k most relevant row IDs for each one. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param message The message to search for
+	 * @param delimiter The delimiter to split the message into tokens with
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the searches are case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param k The max number of row IDs to return per token
+	 * @return Up to k row IDs for each token, in the same order as the tokens
+	 */
+	public int[][] searchBatch(String message, char delimiter, SearchMode mode, boolean caseSensitive, int k) {
+		if (message == null) {
+			throw new IllegalArgumentException("message cannot be null.");
+		}
+		return searchBatch(message.split("\\" + delimiter), mode, caseSensitive, 3, k, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Runs a separate search for every query on the common ForkJoinPool and returns the k most relevant row IDs for each one. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param queries The queries to search for
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the searches are case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param k The max number of row IDs to return per query
+	 * @return Up to k row IDs for each query, in the same order as the queries
+	 */
+	public int[][] searchBatch(String[] queries, SearchMode mode, boolean caseSensitive, int k) {
+		return searchBatch(queries, mode, caseSensitive, 3, k, ForkJoinPool.commonPool());
+	}
+	/**
+	 * Runs a separate search for every query on the given executor and returns the k most relevant row IDs for each one. Levenshtein searches match distances <= 3.
+	 * 
+	 * @param queries The queries to search for
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the searches are case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param k The max number of row IDs to return per query
+	 * @param executor The executor to run the searches on
+	 * @return Up to k row IDs for each query, in the same order as the queries
+	 */
+	public int[][] searchBatch(String[] queries, SearchMode mode, boolean caseSensitive, int k, Executor executor) {
+		return searchBatch(queries, mode, caseSensitive, 3, k, executor);
+	}
+	/**
+	 * Runs a separate search for every query on the given executor and returns the k most relevant row IDs for each one, same as calling search() once per query.
+	 * Queries that would search for the same thing (the same token once case is folded, or the same double-metaphone codes) are only searched once and share their result.
+	 * 
+	 * @param queries The queries to search for. Null queries get an empty result
+	 * @param mode The kind of search to run
+	 * @param caseSensitive Whether or not the searches are case-sensitive. Double-metaphone searches are always case-insensitive
+	 * @param maxDistance The largest levenshtein distance to match. Only used by levenshtein searches
+	 * @param k The max number of row IDs to return per query
+	 * @param executor The executor to run the searches on
+	 * @return Up to k row IDs for each query, in the same order as the queries
+	 */
+	public int[][] searchBatch(String[] queries, SearchMode mode, boolean caseSensitive, int maxDistance, int k, Executor executor) {
+		if (queries == null) {
+			throw new IllegalArgumentException("queries cannot be null.");
+		}
+		if (mode == null) {
+			throw new IllegalArgumentException("mode cannot be null.");
+		}
+		if (maxDistance < 0) {
+			throw new IllegalArgumentException("maxDistance cannot be negative.");
+		}
+		if (k < 0) {
+			throw new IllegalArgumentException("k cannot be negative.");
 		}
-		for (int i = 0; i < keyLevenshtein.size(); i++) {
-			double score = keyLevenshtein.get(i).getRight() / maxLevenshtein;
-			score -= (containsDmRows.get(keyLevenshtein.get(i).getLeft()).size() / maxSize) / 5.0d;
-			score -= ((Collections.frequency(keyLevenshtein, keyLevenshtein.get(i)) - 1.0d) / maxFrequency) / 5.0d;
-			keyScore.add(new Double2Pair<String>(keyLevenshtein.get(i).getLeft(), score));
+		if (executor == null) {
+			throw new IllegalArgumentException("executor cannot be null.");
 		}
 		
-		keyScore.sort(new Comparator<Double2Pair<String>>() {
-			@Override
-			public int compare(Double2Pair<String> one, Double2Pair<String> two) {
-				return Double.compare(one.getRight(), two.getRight());
+		// Group the queries by what they'll actually search for, so repeated tokens only run once
+		Map<String, IntList> groups = new LinkedHashMap<String, IntList>();
+		lock.readLock().lock();
+		try {
+			for (int i = 0; i < queries.length; i++) {
+				if (queries[i] == null) {
+					continue;
+				}
+				String key;
+				if (mode == SearchMode.DOUBLE_METAPHONE) {
+					key = encodeQuery(queries[i]);
+				} else {
+					key = caseSensitive ? queries[i] : foldQuery(queries[i]);
+				}
+				IntList members = groups.get(key);
+				if (members == null) {
+					members = new IntArrayList();
+					groups.put(key, members);
+				}
+				members.add(i);
 			}
-		});
+		} finally {
+			// Can't be held while waiting on the searches below: a writer queued behind it would block their read locks, and they'd never finish
+			lock.readLock().unlock();
+		}
 		
-		for (int i = 0; i < keyScore.size(); i++) {
-			IntList temp = containsDmRows.get(keyScore.get(i).getLeft());
-			for (int j = 0; j < temp.size(); j++) {
-				if (!ids.contains(temp.getInt(j))) {
-					ids.add(temp.getInt(j));
+		List<IntList> members = new ArrayList<IntList>(groups.values());
+		List<CompletableFuture<int[]>> futures = new ArrayList<CompletableFuture<int[]>>(members.size());
+		for (IntList group : members) {
+			String query = queries[group.getInt(0)];
+			futures.add(CompletableFuture.supplyAsync(() -> search(new String[] {query}, mode, caseSensitive, maxDistance, k), executor));
+		}
+		
+		int[][] retVal = new int[queries.length][];
+		for (int i = 0; i < futures.size(); i++) {
+			int[] result;
+			try {
+				result = futures.get(i).join();
+			} catch (CompletionException ex) {
+				if (ex.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) ex.getCause();
 				}
+				throw ex;
+			}
+			
+			IntList group = members.get(i);
+			retVal[group.getInt(0)] = result;
+			for (int j = 1; j < group.size(); j++) {
+				retVal[group.getInt(j)] = result.clone();
+			}
+		}
+		for (int i = 0; i < retVal.length; i++) {
+			if (retVal[i] == null) {
+				retVal[i] = new int[0];
 			}
 		}
 		
-		return ids.toIntArray();
+		return retVal;
 	}
+	
 	/**
 	 * Combines exact, substring, and double-metaphone searches and sorts the results by a relevance score descending and ID ascending, then returns those results.
 	 * 
@@ -814,7 +678,7 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] naturalLanguage(String search, boolean caseSensitive) {
+	public int[] naturalLanguage(String search, boolean caseSensitive) {
 		return naturalLanguage(new String[] {search}, caseSensitive);
 	}
 	/**
@@ -825,7 +689,7 @@ public class LanguageDatabase {
 	 * @param delimiter An optional delimiter to split the string into several searches
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] naturalLanguage(String search, boolean caseSensitive, char delimiter) {
+	public int[] naturalLanguage(String search, boolean caseSensitive, char delimiter) {
 		return naturalLanguage(search.split("\\" + delimiter), caseSensitive);
 	}
 	/**
@@ -835,36 +699,44 @@ public class LanguageDatabase {
 	 * @param caseSensitive Whether or not the search is case-sensitive
 	 * @return A list of row IDs that contain the specified query, ordered by relevance score descending and then ID ascending
 	 */
-	public synchronized int[] naturalLanguage(String[] search, boolean caseSensitive) {
-		IntList ids = new IntArrayList();
-		
-		int[] exactMatches = exact(search, caseSensitive);
-		for (int i = 0; i < exactMatches.length; i++) {
-			ids.add(exactMatches[i]);
-		}
-		
-		int[] substringMatches = substring(search, caseSensitive);
-		for (int i = 0; i < substringMatches.length; i++) {
-			if (!ids.contains(substringMatches[i])) {
-				ids.add(substringMatches[i]);
+	public int[] naturalLanguage(String[] search, boolean caseSensitive) {
+		lock.readLock().lock();
+		try {
+			IntList ids = new IntArrayList();
+			IntSet found = new IntOpenHashSet();
+			
+			int[] exactMatches = exact(search, caseSensitive);
+			for (int i = 0; i < exactMatches.length; i++) {
+				if (found.add(exactMatches[i])) {
+					ids.add(exactMatches[i]);
+				}
 			}
-		}
-		
-		int[] levenshteinMatches = levenshtein(search, caseSensitive);
-		for (int i = 0; i < levenshteinMatches.length; i++) {
-			if (!ids.contains(levenshteinMatches[i])) {
-				ids.add(levenshteinMatches[i]);
+			
+			int[] substringMatches = substring(search, caseSensitive);
+			for (int i = 0; i < substringMatches.length; i++) {
+				if (found.add(substringMatches[i])) {
+					ids.add(substringMatches[i]);
+				}
 			}
-		}
-		
-		int[] metaphoneMatches = doubleMetaphone(search);
-		for (int i = 0; i < metaphoneMatches.length; i++) {
-			if (!ids.contains(metaphoneMatches[i])) {
-				ids.add(metaphoneMatches[i]);
+			
+			int[] levenshteinMatches = levenshtein(search, caseSensitive);
+			for (int i = 0; i < levenshteinMatches.length; i++) {
+				if (found.add(levenshteinMatches[i])) {
+					ids.add(levenshteinMatches[i]);
+				}
 			}
+			
+			int[] metaphoneMatches = doubleMetaphone(search);
+			for (int i = 0; i < metaphoneMatches.length; i++) {
+				if (found.add(metaphoneMatches[i])) {
+					ids.add(metaphoneMatches[i]);
+				}
+			}
+			
+			return ids.toIntArray();
+		} finally {
+			lock.readLock().unlock();
 		}
-		
-		return ids.toIntArray();
 	}
 	
 	/**
@@ -874,16 +746,21 @@ public class LanguageDatabase {
 	 * @param columnIndex The index of the column to retrieve
 	 * @return The value of the cell retrieved by row and column ID
 	 */
-	public synchronized String getValue(int rowIndex, int columnIndex) {
-		if (columnIndex < 0 || rowIndex < 0 || rowIndex >= rows.size()) {
-			return null;
-		}
-		List<String> row = rows.get(rowIndex);
-		if (columnIndex >= row.size()) {
-			return null;
+	public String getValue(int rowIndex, int columnIndex) {
+		lock.readLock().lock();
+		try {
+			if (columnIndex < 0 || rowIndex < 0 || rowIndex >= rowStarts.size() - 1) {
+				return null;
+			}
+			int cell = rowStarts.getInt(rowIndex) + columnIndex;
+			if (cell >= rowStarts.getInt(rowIndex + 1)) {
+				return null;
+			}
+			
+			return dictionary.getTerm(rowTerms.getInt(cell));
+		} finally {
+			lock.readLock().unlock();
 		}
-		
-		return row.get(columnIndex);
 	}
 	/**
 	 * Gets the values of any cells retrieved by multiple row indices and a single column index.
@@ -892,58 +769,524 @@ public class LanguageDatabase {
 	 * @param columnIndex The index of the column to retrieve
 	 * @return The values of the cells retrieved by row IDs and column ID
 	 */
-	public synchronized String[] getValues(int[] rowIndices, int columnIndex) {
-		if (rowIndices == null) {
-			return null;
+	public String[] getValues(int[] rowIndices, int columnIndex) {
+		lock.readLock().lock();
+		try {
+			if (rowIndices == null) {
+				return null;
+			}
+			if (rowIndices.length == 0 || columnIndex < 0) {
+				return new String[0];
+			}
+			
+			ArrayList<String> values = new ArrayList<String>();
+			for (int i = 0; i < rowIndices.length; i++) {
+				if (rowIndices[i] >= rowStarts.size() - 1) {
+					continue;
+				}
+				int cell = rowStarts.getInt(rowIndices[i]) + columnIndex;
+				if (cell >= rowStarts.getInt(rowIndices[i] + 1)) {
+					continue;
+				}
+				values.add(dictionary.getTerm(rowTerms.getInt(cell)));
+			}
+			
+			return values.toArray(new String[0]);
+		} finally {
+			lock.readLock().unlock();
 		}
-		if (rowIndices.length == 0 || columnIndex < 0) {
-			return new String[0];
+	}
+	
+	/**
+	 * Writes the whole database (analyzer settings, rows, term dictionary, postings, phonetic codes, and search indexes) to a file, replacing it if it exists.
+	 * The file is written next to the path first and moved into place once complete, so a crash never leaves a half-written snapshot behind.
+	 * 
+	 * @param path The file to write to
+	 * @throws IOException If the file could not be written
+	 */
+	public void save(Path path) throws IOException {
+		if (path == null) {
+			throw new IllegalArgumentException("path cannot be null.");
 		}
 		
-		ArrayList<String> values = new ArrayList<String>();
-		for (int i = 0; i < rowIndices.length; i++) {
-			if (rowIndices[i] >= rows.size()) {
-				continue;
+		Path temp = path.resolveSibling(path.getFileName() + ".tmp");
+		lock.readLock().lock();
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 65536))) {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			analyzer.write(out);
+			
+			dictionary.write(out);
+			writeInts(out, rowStarts);
+			writeInts(out, rowTerms);
+			writeInts(out, ciOf);
+			writeInts(out, dmOf);
+			csIndex.write(out);
+			ciIndex.write(out);
+			dmIndex.write(out);
+		} catch (IOException ex) {
+			Files.deleteIfExists(temp);
+			throw ex;
+		} finally {
+			lock.readLock().unlock();
+		}
+		
+		Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+	}
+	/**
+	 * Replaces everything in the database with a snapshot written by save().
+	 * Nothing is recomputed or re-sorted, so this is much faster than adding the rows again.
+	 * The file is read into memory and closed before anything is decoded, so it can be overwritten by save() right away.
+	 * The snapshot's keys were built by the analyzer it was saved with, so that analyzer replaces the current one.
+	 * 
+	 * @param path The file to read from
+	 * @throws IOException If the file could not be read or isn't a valid snapshot
+	 */
+	public void load(Path path) throws IOException {
+		if (path == null) {
+			throw new IllegalArgumentException("path cannot be null.");
+		}
+		
+		// Everything is decoded onto the heap anyway, so a mapping would only hold the file open (and locked, on Windows) for nothing
+		if (Files.size(path) > Integer.MAX_VALUE - 8) {
+			throw new IOException("Snapshot is too large to read.");
+		}
+		ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+		
+		Analyzer newAnalyzer = null;
+		TermDictionary newDictionary = null;
+		IntArrayList newRowStarts = null;
+		IntArrayList newRowTerms = null;
+		IntArrayList newCiOf = null;
+		IntArrayList newDmOf = null;
+		TermIndex newCsIndex = null;
+		TermIndex newCiIndex = null;
+		TermIndex newDmIndex = null;
+		
+		try {
+			if (buffer.remaining() < 12 || buffer.getInt() != SNAPSHOT_MAGIC) {
+				throw new IOException("File is not a snapshot.");
 			}
-			List<String> row = rows.get(rowIndices[i]);
-			if (columnIndex >= row.size()) {
-				continue;
+			int version = buffer.getInt();
+			if (version != SNAPSHOT_VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + ".");
 			}
-			values.add(row.get(columnIndex));
+			newAnalyzer = Analyzer.read(buffer);
+			newDictionary = TermDictionary.read(buffer);
+			newRowStarts = readInts(buffer);
+			newRowTerms = readInts(buffer);
+			newCiOf = readInts(buffer);
+			newDmOf = readInts(buffer);
+			int rows = Math.max(0, newRowStarts.size() - 1);
+			newCsIndex = TermIndex.read(buffer, newDictionary, rows);
+			newCiIndex = TermIndex.read(buffer, newDictionary, rows);
+			newDmIndex = TermIndex.read(buffer, newDictionary, rows);
+		} catch (BufferUnderflowException | IllegalArgumentException ex) {
+			throw new IOException("Snapshot is corrupt.", ex);
+		}
+		
+		// Checked before anything is swapped in, so a bad snapshot leaves the database as it was instead of failing searches later
+		if (!isConsistent(newDictionary, newRowStarts, newRowTerms, newCiOf, newDmOf)) {
+			throw new IOException("Snapshot is corrupt.");
 		}
 		
-		return values.toArray(new String[0]);
+		lock.writeLock().lock();
+		try {
+			analyzer = newAnalyzer;
+			dictionary = newDictionary;
+			rowStarts = newRowStarts;
+			rowTerms = newRowTerms;
+			ciOf = newCiOf;
+			dmOf = newDmOf;
+			csIndex = newCsIndex;
+			ciIndex = newCiIndex;
+			dmIndex = newDmIndex;
+			// Whoever saved the snapshot may have removed rows since their last compaction
+			compactAt = (int) Math.max(MIN_COMPACT_TERMS, Math.min(Integer.MAX_VALUE, dictionary.size() * 2L));
+			rowsRemoved = true;
+			
+			exactCache.invalidateAll();
+			exactCiCache.invalidateAll();
+			containsCache.invalidateAll();
+			containsCiCache.invalidateAll();
+			levenshteinCache.invalidateAll();
+			levenshteinCiCache.invalidateAll();
+			dmCache.invalidateAll();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 	
 	//private
-	private List<String> generateDm(String[] input) {
-		ArrayList<String> retVal = new ArrayList<String>();
+	private int add(String[] columns, List<String> terms, List<String> dmTerms) {
+		columns = stripBlanksAndDuplicates(columns);
+		if (columns.length == 0) {
+			return -1;
+		}
 		
-		for (int i = 0; i < input.length; i++) {
-			retVal.add(dm.doubleMetaphone(input[i], false) + ";" + dm.doubleMetaphone(input[i], true));
+		int index = rowStarts.size() - 1;
+		
+		// Rows only ever go on the end, so every posting list stays sorted without having to sort anything
+		for (int i = 0; i < columns.length; i++) {
+			int csId = dictionary.add(columns[i]);
+			int ciId = ciId(csId);
+			int dmId = dmOf.getInt(csId);
+			
+			rowTerms.add(csId);
+			csIndex.add(csId, index);
+			// Values that are nothing but stop words (or have nothing to encode) are still stored, just not searchable that way
+			terms.add(columns[i]);
+			if (!dictionary.getTerm(ciId).isEmpty()) {
+				ciIndex.add(ciId, index);
+				terms.add(dictionary.getTerm(ciId));
+			}
+			if (!dictionary.getTerm(dmId).isEmpty()) {
+				dmIndex.add(dmId, index);
+				dmTerms.add(dictionary.getTerm(dmId));
+			}
+		}
+		rowStarts.add(rowTerms.size());
+		
+		return index;
+	}
+	private int ciId(int csId) {
+		// The case-insensitive and phonetic versions only depend on the term, so they're worked out once per distinct term instead of once per cell
+		if (csId < ciOf.size() && ciOf.getInt(csId) != -1) {
+			return ciOf.getInt(csId);
+		}
+		
+		String folded = analyzer.fold(dictionary.getTerm(csId));
+		int ciId = dictionary.add(folded);
+		int dmId = dictionary.add(analyzer.encode(folded));
+		
+		while (ciOf.size() <= csId) {
+			ciOf.add(-1);
+			dmOf.add(-1);
+		}
+		ciOf.set(csId, ciId);
+		dmOf.set(csId, dmId);
+		
+		return ciId;
+	}
+	private void compactIfNeeded() {
+		// The dictionary has to double in between, so the cost of going through everything is spread over all the terms added since
+		if (dictionary.size() < compactAt) {
+			return;
+		}
+		if (rowsRemoved) {
+			compact();
+		}
+		compactAt = (int) Math.max(MIN_COMPACT_TERMS, Math.min(Integer.MAX_VALUE, dictionary.size() * 2L));
+	}
+	private void compact() {
+		// A term is still needed if a row uses it (along with its case-insensitive and phonetic versions) or an index does
+		BitSet live = new BitSet(dictionary.size());
+		for (int i = 0; i < rowTerms.size(); i++) {
+			int csId = rowTerms.getInt(i);
+			live.set(csId);
+			live.set(ciOf.getInt(csId));
+			live.set(dmOf.getInt(csId));
+		}
+		csIndex.markTerms(live);
+		ciIndex.markTerms(live);
+		dmIndex.markTerms(live);
+		
+		int[] map = dictionary.compact(live);
+		for (int i = 0; i < rowTerms.size(); i++) {
+			rowTerms.set(i, map[rowTerms.getInt(i)]);
+		}
+		
+		IntArrayList newCiOf = new IntArrayList(dictionary.size());
+		IntArrayList newDmOf = new IntArrayList(dictionary.size());
+		newCiOf.size(dictionary.size());
+		newDmOf.size(dictionary.size());
+		Arrays.fill(newCiOf.elements(), 0, dictionary.size(), -1);
+		Arrays.fill(newDmOf.elements(), 0, dictionary.size(), -1);
+		for (int i = 0; i < ciOf.size(); i++) {
+			// Both are worked out again (by ciId()) if either was dropped and the term is ever used as a column again
+			if (map[i] == -1 || ciOf.getInt(i) == -1 || dmOf.getInt(i) == -1 || map[ciOf.getInt(i)] == -1 || map[dmOf.getInt(i)] == -1) {
+				continue;
+			}
+			newCiOf.set(map[i], map[ciOf.getInt(i)]);
+			newDmOf.set(map[i], map[dmOf.getInt(i)]);
+		}
+		ciOf = newCiOf;
+		dmOf = newDmOf;
+		
+		csIndex.remap(map);
+		ciIndex.remap(map);
+		dmIndex.remap(map);
+		rowsRemoved = false;
+	}
+	
+	private String foldQuery(String query) {
+		// Searching for a value that's already in the database is common enough that it's worth skipping the analyzer
+		int csId = dictionary.get(query);
+		if (csId != -1 && csId < ciOf.size() && ciOf.getInt(csId) != -1) {
+			return dictionary.getTerm(ciOf.getInt(csId));
+		}
+		return analyzer.fold(query);
+	}
+	private String encodeQuery(String query) {
+		int csId = dictionary.get(query);
+		if (csId != -1 && csId < dmOf.size() && dmOf.getInt(csId) != -1) {
+			return dictionary.getTerm(dmOf.getInt(csId));
+		}
+		return analyzer.encode(analyzer.fold(query));
+	}
+	private int firstColumn(PostingList rowIds, int termId, boolean caseSensitive) {
+		int retVal = Integer.MAX_VALUE;
+		if (termId == -1) {
+			return retVal;
+		}
+		
+		for (int row : rowIds.toIntArray()) {
+			int start = rowStarts.getInt(row);
+			int end = rowStarts.getInt(row + 1);
+			for (int i = start; i < end && i - start < retVal; i++) {
+				int id = rowTerms.getInt(i);
+				if (!caseSensitive) {
+					id = ciOf.getInt(id);
+				}
+				if (id == termId) {
+					retVal = i - start;
+					break;
+				}
+			}
 		}
 		
 		return retVal;
 	}
-	private void removeFromMap(Map<String, IntList> m, int index) {
-		for (Entry<String, IntList> kvp : m.entrySet()) {
-			IntList value = kvp.getValue();
-			
-			int ind = value.indexOf(index);
-			if (ind > -1) {
-				value.removeInt(ind);
-				kvp.setValue(value);
+	
+	private void invalidate(Collection<String> terms, Collection<String> dmTerms) {
+		// Cached results only hold keys that matched the search (and their row counts), so only searches that could match a changed key need to go
+		exactCache.asMap().keySet().removeIf(s -> containsEither(terms, s));
+		exactCiCache.asMap().keySet().removeIf(s -> containsEither(terms, s));
+		containsCache.asMap().keySet().removeIf(s -> containsEither(terms, s));
+		containsCiCache.asMap().keySet().removeIf(s -> containsEither(terms, s));
+		if (levenshteinCache.estimatedSize() > 0L || levenshteinCiCache.estimatedSize() > 0L) {
+			List<char[]> termChars = new ArrayList<char[]>();
+			for (String term : terms) {
+				termChars.add(term.toCharArray());
 			}
+			invalidateLevenshtein(levenshteinCache, termChars);
+			invalidateLevenshtein(levenshteinCiCache, termChars);
 		}
+		dmCache.asMap().keySet().removeIf(s -> {
+			for (String term : dmTerms) {
+				if (term.contains(s)) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+	private void invalidateLevenshtein(Cache<String, List<Pair<String, IntIntPair>>> cache, List<char[]> termChars) {
+		cache.asMap().keySet().removeIf(k -> {
+			// Keys are "distance;search"
+			int split = k.indexOf(';');
+			int maxDistance = Integer.parseInt(k.substring(0, split));
+			int length = k.length() - split - 1;
+			char[] search = null;
+			int[] previous = null;
+			int[] current = null;
+			for (char[] term : termChars) {
+				if (Math.abs(term.length - length) > maxDistance) {
+					continue;
+				}
+				if (search == null) {
+					search = k.substring(split + 1).toCharArray();
+					previous = new int[search.length + 1];
+					current = new int[search.length + 1];
+				}
+				if (LevenshteinUtil.distance(search, term, maxDistance, previous, current) <= maxDistance) {
+					return true;
+				}
+			}
+			return false;
+		});
+	}
+	private boolean containsEither(Collection<String> terms, String search) {
+		for (String term : terms) {
+			if (term.contains(search) || search.contains(term)) {
+				return true;
+			}
+		}
+		return false;
 	}
 	
-	private void addToCache(Cache<String, List<Pair<String, IntIntPair>>> cache, String key, String dbKey, int distance, int size) {
-		List<Pair<String, IntIntPair>> value = cache.getIfPresent(key);
-		if (value != null) {
-			value.add(new Pair<String, IntIntPair>(dbKey, new IntIntPair(distance, size)));
+	private List<Pair<String, IntIntPair>> matches(String s, SearchMode mode, boolean caseSensitive, int maxDistance) {
+		Cache<String, List<Pair<String, IntIntPair>>> cache = null;
+		String cacheKey = s;
+		if (mode == SearchMode.EXACT) {
+			cache = caseSensitive ? exactCache : exactCiCache;
+		} else if (mode == SearchMode.SUBSTRING) {
+			cache = caseSensitive ? containsCache : containsCiCache;
+		} else if (mode == SearchMode.LEVENSHTEIN) {
+			cache = caseSensitive ? levenshteinCache : levenshteinCiCache;
+			// Results depend on the distance as well as the search
+			cacheKey = maxDistance + ";" + s;
+		} else {
+			cache = dmCache;
+		}
+		
+		List<Pair<String, IntIntPair>> retVal = cache.getIfPresent(cacheKey);
+		if (retVal != null) {
+			return retVal;
+		}
+		
+		// Each match is the key, then its column or distance and number of rows
+		retVal = new ArrayList<Pair<String, IntIntPair>>();
+		if (mode == SearchMode.EXACT) {
+			int termId = dictionary.get(s);
+			if (caseSensitive) {
+				PostingList rowIds = csIndex.get(termId);
+				if (rowIds != null) {
+					retVal.add(new Pair<String, IntIntPair>(s, new IntIntPair(firstColumn(rowIds, termId, true), rowIds.size())));
+				}
+			} else {
+				for (String key : ciIndex.substringCandidates(s)) {
+					PostingList rowIds = ciIndex.get(key);
+					retVal.add(new Pair<String, IntIntPair>(key, new IntIntPair(firstColumn(rowIds, termId, false), rowIds.size())));
+				}
+			}
+		} else if (mode == SearchMode.SUBSTRING) {
+			TermIndex index = caseSensitive ? csIndex : ciIndex;
+			for (String key : index.substringCandidates(s)) {
+				retVal.add(new Pair<String, IntIntPair>(key, new IntIntPair(StringUtils.getLevenshteinDistance(key, s), index.get(key).size())));
+			}
+		} else if (mode == SearchMode.LEVENSHTEIN) {
+			TermIndex index = caseSensitive ? csIndex : ciIndex;
+			for (IntIntPair match : index.similar(s, maxDistance)) {
+				retVal.add(new Pair<String, IntIntPair>(dictionary.getTerm(match.getLeft()), new IntIntPair(match.getRight(), index.get(match.getLeft()).size())));
+			}
 		} else {
-			cache.put(key, new ArrayList<Pair<String, IntIntPair>>(Arrays.asList(new Pair<String, IntIntPair>(dbKey, new IntIntPair(distance, size)))));
+			for (String key : dmIndex.containing(s)) {
+				retVal.add(new Pair<String, IntIntPair>(key, new IntIntPair(StringUtils.getLevenshteinDistance(key, s), dmIndex.get(key).size())));
+			}
+		}
+		
+		if (!retVal.isEmpty()) {
+			cache.put(cacheKey, retVal);
+		}
+		return retVal;
+	}
+	private int[] rank(List<PostingList> keyRows, IntList keyTerms, IntList keyMetrics, double maxMetric, double maxSize, int k) {
+		int count = keyRows.size();
+		
+		// Keys that matched more than one search term with the same column or distance count against themselves.
+		// Sorting the packed (key, metric) pairs and measuring runs gets those counts without boxing anything into a map
+		long[] pairs = new long[count];
+		for (int i = 0; i < count; i++) {
+			pairs[i] = ((long) keyTerms.getInt(i) << 32) | (keyMetrics.getInt(i) & 0xFFFFFFFFL);
+		}
+		long[] sorted = pairs.clone();
+		Arrays.sort(sorted);
+		int[] runs = new int[count];
+		for (int i = 0; i < count;) {
+			int j = i + 1;
+			while (j < count && sorted[j] == sorted[i]) {
+				j++;
+			}
+			Arrays.fill(runs, i, j, j - i);
+			i = j;
+		}
+		
+		int[] frequencies = new int[count];
+		double maxFrequency = 0.0d;
+		for (int i = 0; i < count; i++) {
+			frequencies[i] = runs[Arrays.binarySearch(sorted, pairs[i])];
+			if (maxFrequency < frequencies[i]) {
+				maxFrequency = frequencies[i];
+			}
+		}
+		
+		double[] scores = new double[count];
+		RankedHeap keys = new RankedHeap(count);
+		for (int i = 0; i < count; i++) {
+			scores[i] = keyMetrics.getInt(i) / maxMetric;
+			scores[i] -= (keyRows.get(i).size() / maxSize) / 5.0d;
+			scores[i] -= ((frequencies[i] - 1.0d) / maxFrequency) / 5.0d;
+			keys.offer(scores[i], i);
 		}
+		
+		// A row ranks by the best key it's in, so going through keys best-first means the first time a row is seen is the only time that matters
+		RankedHeap top = new RankedHeap(k);
+		IntSet kept = new IntOpenHashSet();
+		for (int key : keys.drain()) {
+			// Every key after this one scores the same or worse, so once this one can't beat the worst kept row nothing else can either
+			if (top.isFull() && (top.size() == 0 || Double.compare(scores[key], top.getWorstScore()) > 0)) {
+				break;
+			}
+			
+			int[] rowIds = keyRows.get(key).toIntArray();
+			for (int j = 0; j < rowIds.length; j++) {
+				if (kept.contains(rowIds[j])) {
+					continue;
+				}
+				boolean full = top.isFull();
+				int worst = full ? top.getWorstId() : -1;
+				if (!top.offer(scores[key], rowIds[j])) {
+					// Same score and ascending IDs, so the rest of this key's rows rank lower still
+					break;
+				}
+				kept.add(rowIds[j]);
+				if (full) {
+					kept.remove(worst);
+				}
+			}
+		}
+		
+		return top.drain();
+	}
+	
+	private static void writeInts(DataOutputStream out, IntArrayList list) throws IOException {
+		out.writeInt(list.size());
+		for (int i = 0; i < list.size(); i++) {
+			out.writeInt(list.getInt(i));
+		}
+	}
+	private static boolean isConsistent(TermDictionary dictionary, IntArrayList rowStarts, IntArrayList rowTerms, IntArrayList ciOf, IntArrayList dmOf) {
+		// Row boundaries have to start at 0, never go backwards, and end exactly at the last cell
+		if (rowStarts.isEmpty() || rowStarts.getInt(0) != 0 || rowStarts.getInt(rowStarts.size() - 1) != rowTerms.size()) {
+			return false;
+		}
+		for (int i = 1; i < rowStarts.size(); i++) {
+			if (rowStarts.getInt(i) < rowStarts.getInt(i - 1)) {
+				return false;
+			}
+		}
+		
+		// ciOf and dmOf are grown together, and every entry is either unused (-1) or a real term
+		if (ciOf.size() != dmOf.size() || ciOf.size() > dictionary.size()) {
+			return false;
+		}
+		for (int i = 0; i < ciOf.size(); i++) {
+			if (ciOf.getInt(i) < -1 || ciOf.getInt(i) >= dictionary.size() || dmOf.getInt(i) < -1 || dmOf.getInt(i) >= dictionary.size()) {
+				return false;
+			}
+		}
+		
+		// Every cell is a real term, and has its case-insensitive and phonetic versions worked out
+		for (int i = 0; i < rowTerms.size(); i++) {
+			int csId = rowTerms.getInt(i);
+			if (csId < 0 || csId >= ciOf.size() || ciOf.getInt(csId) == -1 || dmOf.getInt(csId) == -1) {
+				return false;
+			}
+		}
+		
+		return true;
+	}
+	private static IntArrayList readInts(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() / 4) {
+			throw new IllegalArgumentException("buffer does not contain a valid list.");
+		}
+		
+		int[] retVal = new int[count];
+		buffer.asIntBuffer().get(retVal);
+		buffer.position(buffer.position() + count * 4);
+		return IntArrayList.wrap(retVal);
 	}
 	
 	private String[] stripBlanksAndDuplicates(String[] input) {
@@ -0,0 +1,14 @@
+package ninja.egg82.core;
+
+public interface ITransactionCallback<T> {
+	//functions
+	/**
+	 * Runs the statements of a transaction. Everything is committed once this returns, or rolled back if it throws.
+	 * May be called more than once if the transaction is retried, so it shouldn't have side effects outside the database.
+	 * 
+	 * @param transaction The transaction to run statements on. Only valid until this returns
+	 * @return The result to complete the transaction's future with
+	 * @throws Exception If something went wrong, rolling back the transaction
+	 */
+	T run(SQLTransaction transaction) throws Exception;
+}
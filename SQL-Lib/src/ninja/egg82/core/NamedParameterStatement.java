@@ -3,41 +3,51 @@ package ninja.egg82.core;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class NamedParameterStatement {
 	//vars
-	private static final Pattern FIND_PATTERN = Pattern.compile("(?<!')(:[\\w]*)(?!')");
-	
 	private PreparedStatement statement = null;
-	private List<String> fields = new ArrayList<String>();
+	private NamedParameterTemplate template = null;
 	
 	//constructor
 	public NamedParameterStatement(Connection conn, String statementWithNames) throws SQLException {
-		Matcher matcher = FIND_PATTERN.matcher(statementWithNames);
-		while (matcher.find()) {
-			fields.add(matcher.group().substring(1));
-		}
-		statement = conn.prepareStatement(statementWithNames.replaceAll(FIND_PATTERN.pattern(), "?"));
+		this(conn, statementWithNames, false);
+	}
+	public NamedParameterStatement(Connection conn, String statementWithNames, boolean backslashEscapes) throws SQLException {
+		template = NamedParameterTemplate.get(statementWithNames, backslashEscapes);
+		statement = conn.prepareStatement(template.getSql());
+	}
+	public NamedParameterStatement(PreparedStatementCache cache, String statementWithNames) throws SQLException {
+		this(cache, statementWithNames, false);
+	}
+	public NamedParameterStatement(PreparedStatementCache cache, String statementWithNames, boolean backslashEscapes) throws SQLException {
+		template = NamedParameterTemplate.get(statementWithNames, backslashEscapes);
+		// Cached by the rewritten SQL, so the same statement is shared with equivalent unnamed queries
+		statement = cache.prepare(template.getSql());
 	}
 	
 	//public
 	public PreparedStatement getPreparedStatement() {
 		return statement;
 	}
+	public NamedParameterTemplate getTemplate() {
+		return template;
+	}
 	public void close() throws SQLException {
 		statement.close();
 	}
 	
 	public void setObject(String name, Object value) throws SQLException {
-		statement.setObject(getIndex(name), value);
+		int[] indices = template.getIndices(name);
+		if (indices == null) {
+			throw new SQLException("Parameter \"" + name + "\" does not exist.");
+		}
+		
+		for (int i = 0; i < indices.length; i++) {
+			statement.setObject(indices[i], value);
+		}
 	}
 	
 	//private
-	private int getIndex(String name) {
-		return fields.indexOf(name) + 1;
-	}
+	
 }
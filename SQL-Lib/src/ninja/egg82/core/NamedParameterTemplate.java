@@ -0,0 +1,172 @@
+package ninja.egg82.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+public class NamedParameterTemplate {
+	//vars
+	
+	// Parsed templates by their original SQL. Flushed entirely if it grows too large, which only happens with dynamically-built SQL
+	private static final int MAX_CACHED = 1024;
+	private static Map<String, NamedParameterTemplate> templates = new ConcurrentHashMap<String, NamedParameterTemplate>();
+	// Same, for SQL parsed with backslash escapes (MySQL's default). The same SQL can parse differently in each mode
+	private static Map<String, NamedParameterTemplate> backslashTemplates = new ConcurrentHashMap<String, NamedParameterTemplate>();
+	
+	// The SQL with every named parameter replaced by ?
+	private String sql = null;
+	// Parameter name -> the (1-based) JDBC indices it binds to. A name used more than once binds to each of its places
+	private Map<String, int[]> indices = null;
+	private int parameterCount = 0;
+	
+	//constructor
+	private NamedParameterTemplate(String sql, Map<String, int[]> indices, int parameterCount) {
+		this.sql = sql;
+		this.indices = indices;
+		this.parameterCount = parameterCount;
+	}
+	
+	//public
+	/**
+	 * Returns the parsed template for the given SQL, parsing it only the first time it's seen.
+	 * String literals are parsed the ANSI way, where only a doubled quote is an escaped quote.
+	 * 
+	 * @param statementWithNames The SQL, with :name parameters
+	 * @return The parsed template
+	 */
+	public static NamedParameterTemplate get(String statementWithNames) {
+		return get(statementWithNames, false);
+	}
+	/**
+	 * Returns the parsed template for the given SQL, parsing it only the first time it's seen.
+	 * 
+	 * @param statementWithNames The SQL, with :name parameters
+	 * @param backslashEscapes Whether or not a backslash escapes the next character inside '..' and ".." literals, as it does in MySQL unless NO_BACKSLASH_ESCAPES (or ANSI) is set
+	 * @return The parsed template
+	 */
+	public static NamedParameterTemplate get(String statementWithNames, boolean backslashEscapes) {
+		if (statementWithNames == null) {
+			throw new IllegalArgumentException("statementWithNames cannot be null.");
+		}
+		
+		Map<String, NamedParameterTemplate> cache = (backslashEscapes) ? backslashTemplates : templates;
+		
+		NamedParameterTemplate retVal = cache.get(statementWithNames);
+		if (retVal != null) {
+			return retVal;
+		}
+		
+		retVal = parse(statementWithNames, backslashEscapes);
+		if (cache.size() >= MAX_CACHED) {
+			cache.clear();
+		}
+		cache.put(statementWithNames, retVal);
+		return retVal;
+	}
+	
+	public String getSql() {
+		return sql;
+	}
+	/**
+	 * Returns the JDBC indices a named parameter binds to.
+	 * 
+	 * @param name The parameter name, without the leading colon
+	 * @return The 1-based indices, or null if the parameter doesn't exist
+	 */
+	public int[] getIndices(String name) {
+		return indices.get(name);
+	}
+	public int getParameterCount() {
+		return parameterCount;
+	}
+	
+	//private
+	private static NamedParameterTemplate parse(String in, boolean backslashEscapes) {
+		StringBuilder out = new StringBuilder(in.length());
+		Map<String, List<Integer>> found = new HashMap<String, List<Integer>>();
+		int count = 0;
+		
+		int length = in.length();
+		int i = 0;
+		while (i < length) {
+			char c = in.charAt(i);
+			
+			if (c == '\'' || c == '"' || c == '`') {
+				// String literal or quoted identifier. Copied as-is, a doubled quote is an escaped quote
+				boolean escapes = backslashEscapes && c != '`';
+				int end = i + 1;
+				while (end < length) {
+					if (escapes && in.charAt(end) == '\\') {
+						// Backslash escape (it\'s), skip whatever comes next
+						end += 2;
+						continue;
+					}
+					if (in.charAt(end) == c) {
+						if (end + 1 < length && in.charAt(end + 1) == c) {
+							end += 2;
+							continue;
+						}
+						break;
+					}
+					end++;
+				}
+				end = Math.min(end + 1, length);
+				out.append(in, i, end);
+				i = end;
+			} else if (c == '-' && i + 1 < length && in.charAt(i + 1) == '-') {
+				// Line comment
+				int end = in.indexOf('\n', i);
+				end = (end == -1) ? length : end;
+				out.append(in, i, end);
+				i = end;
+			} else if (c == '/' && i + 1 < length && in.charAt(i + 1) == '*') {
+				// Block comment
+				int end = in.indexOf("*/", i + 2);
+				end = (end == -1) ? length : end + 2;
+				out.append(in, i, end);
+				i = end;
+			} else if (c == ':' && i + 1 < length && in.charAt(i + 1) == ':') {
+				// Postgres-style cast (value::type), not a parameter
+				out.append("::");
+				i += 2;
+			} else if (c == ':' && i + 1 < length && isNamePart(in.charAt(i + 1))) {
+				int end = i + 1;
+				while (end < length && isNamePart(in.charAt(end))) {
+					end++;
+				}
+				
+				String name = in.substring(i + 1, end);
+				List<Integer> places = found.get(name);
+				if (places == null) {
+					places = new ArrayList<Integer>();
+					found.put(name, places);
+				}
+				count++;
+				places.add(Integer.valueOf(count));
+				
+				out.append('?');
+				i = end;
+			} else {
+				out.append(c);
+				i++;
+			}
+		}
+		
+		Map<String, int[]> indices = new HashMap<String, int[]>();
+		for (Map.Entry<String, List<Integer>> kvp : found.entrySet()) {
+			int[] places = new int[kvp.getValue().size()];
+			for (int j = 0; j < places.length; j++) {
+				places[j] = kvp.getValue().get(j).intValue();
+			}
+			indices.put(kvp.getKey(), places);
+		}
+		
+		return new NamedParameterTemplate(out.toString(), indices, count);
+	}
+	
+	private static boolean isNamePart(char c) {
+		return Character.isLetterOrDigit(c) || c == '_';
+	}
+}
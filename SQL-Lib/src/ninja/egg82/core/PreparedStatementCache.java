@@ -0,0 +1,180 @@
+package ninja.egg82.core;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PreparedStatementCache {
+	//vars
+	// Default number of statements cached per connection
+	public static final int DEFAULT_CAPACITY = 64;
+	
+	// The connection all cached statements belong to
+	private Connection conn = null;
+	// Max number of statements to keep open. 0 disables caching entirely
+	private int capacity = 0;
+	
+	// Hit/miss counters. These are shared between all caches of a single ISQL so they survive connection flushes
+	private AtomicLong hits = null;
+	private AtomicLong misses = null;
+	
+	// Access-ordered map, which gives us LRU eviction for free. Only ever touched by the thread currently holding the connection
+	private LinkedHashMap<String, PreparedStatement> statements = null;
+	
+	//constructor
+	public PreparedStatementCache(Connection conn, int capacity, AtomicLong hits, AtomicLong misses) {
+		if (conn == null) {
+			throw new IllegalArgumentException("conn cannot be null.");
+		}
+		if (capacity < 0) {
+			capacity = 0;
+		}
+		
+		this.conn = conn;
+		this.capacity = capacity;
+		this.hits = (hits != null) ? hits : new AtomicLong(0L);
+		this.misses = (misses != null) ? misses : new AtomicLong(0L);
+		
+		statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+			private static final long serialVersionUID = 2963508207456127386L;
+			
+			protected boolean removeEldestEntry(Entry<String, PreparedStatement> eldest) {
+				if (size() <= PreparedStatementCache.this.capacity) {
+					return false;
+				}
+				
+				// Evicted, so nobody is going to use it again
+				close(eldest.getValue());
+				return true;
+			}
+		};
+	}
+	
+	//public
+	/**
+	 * Returns an open statement for the given SQL, preparing (and caching) a new one only if needed.
+	 * 
+	 * @param query The SQL text of the statement
+	 * @return A ready-to-use prepared statement
+	 * @throws SQLException If the statement could not be prepared
+	 */
+	public PreparedStatement prepare(String query) throws SQLException {
+		PreparedStatement statement = statements.get(query);
+		if (statement != null) {
+			if (!isClosed(statement)) {
+				hits.incrementAndGet();
+				return statement;
+			}
+			statements.remove(query);
+		}
+		
+		misses.incrementAndGet();
+		statement = conn.prepareStatement(query);
+		if (capacity > 0) {
+			statements.put(query, statement);
+		}
+		return statement;
+	}
+	/**
+	 * Hands a statement back once its results have been consumed. Cached statements are reset and kept open, anything else is closed.
+	 * 
+	 * @param statement The statement returned from prepare
+	 */
+	public void release(PreparedStatement statement) {
+		if (statement == null) {
+			return;
+		}
+		
+		if (!statements.containsValue(statement)) {
+			close(statement);
+			return;
+		}
+		
+		try {
+			ResultSet results = statement.getResultSet();
+			if (results != null) {
+				results.close();
+			}
+			statement.clearParameters();
+		} catch (Exception ex) {
+			// The statement is in a bad state, get rid of it
+			invalidate(statement);
+		}
+	}
+	/**
+	 * Removes and closes a statement. Used when a statement errored and shouldn't be re-used.
+	 * 
+	 * @param statement The statement to remove
+	 */
+	public void invalidate(PreparedStatement statement) {
+		if (statement == null) {
+			return;
+		}
+		
+		for (Iterator<PreparedStatement> i = statements.values().iterator(); i.hasNext();) {
+			if (i.next() == statement) {
+				i.remove();
+				break;
+			}
+		}
+		close(statement);
+	}
+	/**
+	 * Closes and removes all cached statements.
+	 */
+	public void clear() {
+		for (PreparedStatement statement : statements.values()) {
+			close(statement);
+		}
+		statements.clear();
+	}
+	
+	public Connection getConnection() {
+		return conn;
+	}
+	public int size() {
+		return statements.size();
+	}
+	public int getCapacity() {
+		return capacity;
+	}
+	public long getHits() {
+		return hits.get();
+	}
+	public long getMisses() {
+		return misses.get();
+	}
+	/**
+	 * Closes and removes every cache in the map. Helper for drivers, which keep one cache per pooled connection.
+	 * 
+	 * @param caches The caches to flush
+	 */
+	public static void clearAll(Map<Connection, PreparedStatementCache> caches) {
+		for (Iterator<PreparedStatementCache> i = caches.values().iterator(); i.hasNext();) {
+			i.next().clear();
+			i.remove();
+		}
+	}
+	
+	//private
+	private static boolean isClosed(PreparedStatement statement) {
+		try {
+			return statement.isClosed();
+		} catch (Exception ex) {
+			return true;
+		}
+	}
+	private static void close(PreparedStatement statement) {
+		try {
+			statement.close();
+		} catch (Exception ex) {
+			
+		}
+	}
+}
@@ -0,0 +1,454 @@
+package ninja.egg82.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Inserts a large number of rows into a single table, on a single connection.
+ * 
+ * On MySQL the rows are streamed through LOAD DATA LOCAL INFILE, straight from the iterator, without a temp file.
+ * Binary columns (going by the table's metadata) are sent hex-encoded and decoded with UNHEX() on the way in.
+ * Otherwise (and on MySQL drivers that can't take an input stream) rows go out as multi-row INSERTs, each as large as the database allows:
+ * max_allowed_packet and 65535 placeholders on MySQL, the variable limit on SQLite.
+ * 
+ * Note that LOAD DATA LOCAL turns duplicate-key errors into warnings and skips the row, where a multi-row INSERT fails.
+ */
+public class SQLBulkLoader {
+	//vars
+	
+	// Rows between progress reports when streaming through LOAD DATA. INSERTs report once per statement
+	private static final int PROGRESS_INTERVAL = 10000;
+	// Leeway for the statement text and protocol headers when filling a MySQL packet
+	private static final long PACKET_OVERHEAD = 16L * 1024L;
+	private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+	
+	private PreparedStatementCache cache = null;
+	private Consumer<SQLBulkProgress> progress = null;
+	
+	private long rows = 0L;
+	private long start = 0L;
+	
+	//constructor
+	public SQLBulkLoader(PreparedStatementCache cache, Consumer<SQLBulkProgress> progress) {
+		if (cache == null) {
+			throw new IllegalArgumentException("cache cannot be null.");
+		}
+		
+		this.cache = cache;
+		this.progress = progress;
+	}
+	
+	//public
+	/**
+	 * Sends every row to the table. Doesn't commit, so run it inside a transaction to get all-or-nothing (and a lot faster) loads.
+	 * 
+	 * @param table The table to insert into
+	 * @param columns The columns each row has values for, in order
+	 * @param rows The rows to insert. Each row needs exactly one value per column
+	 * @return The total number of records inserted
+	 * @throws SQLException If any of the rows could not be inserted
+	 */
+	public SQLData load(String table, String[] columns, Iterator<Object[]> rows) throws SQLException {
+		if (table == null || table.isEmpty()) {
+			throw new IllegalArgumentException("table cannot be null or empty.");
+		}
+		if (columns == null || columns.length == 0) {
+			throw new IllegalArgumentException("columns cannot be null or empty.");
+		}
+		if (rows == null) {
+			throw new IllegalArgumentException("rows cannot be null.");
+		}
+		
+		this.rows = 0L;
+		start = System.nanoTime();
+		
+		SQLData retVal = new SQLData();
+		retVal.columns = new String[0];
+		retVal.data = new Object[0][];
+		
+		if (!rows.hasNext()) {
+			retVal.recordsAffected = 0;
+			report(true);
+			return retVal;
+		}
+		
+		Connection conn = cache.getConnection();
+		String product = conn.getMetaData().getDatabaseProductName();
+		boolean mysql = product != null && (product.equalsIgnoreCase("MySQL") || product.equalsIgnoreCase("MariaDB"));
+		
+		long affected = -1L;
+		if (mysql) {
+			// Which columns are binary has to be known before the first row goes out, since there's no going back once the stream has started
+			boolean[] binary = getBinaryColumns(conn, table, columns);
+			if (binary != null) {
+				affected = loadData(conn, table, columns, binary, rows);
+			}
+		}
+		if (affected < 0L) {
+			affected = (mysql) ? insertMySQL(conn, table, columns, rows) : insert(table, columns, rows, getSQLiteVariableLimit(conn), Long.MAX_VALUE);
+		}
+		
+		retVal.recordsAffected = (int) Math.min(affected, Integer.MAX_VALUE);
+		report(true);
+		return retVal;
+	}
+	
+	//private
+	private long loadData(Connection conn, String table, String[] columns, boolean[] binary, Iterator<Object[]> rows) throws SQLException {
+		StringBuilder q = new StringBuilder();
+		q.append("LOAD DATA LOCAL INFILE 'stream' INTO TABLE ").append(table);
+		q.append(" CHARACTER SET utf8mb4 FIELDS TERMINATED BY '\\t' ESCAPED BY '\\\\' LINES TERMINATED BY '\\n' (");
+		// Binary columns go through a user variable as hex, so arbitrary bytes survive the character set conversion
+		StringBuilder set = new StringBuilder();
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				q.append(", ");
+			}
+			if (binary[i]) {
+				q.append("@bin").append(i);
+				set.append((set.length() > 0) ? ", " : " SET ").append(columns[i]).append(" = UNHEX(@bin").append(i).append(')');
+			} else {
+				q.append(columns[i]);
+			}
+		}
+		q.append(')').append(set);
+		
+		try (Statement command = conn.createStatement()) {
+			// Connector/J takes the file contents from a stream if we give it one. It's not part of JDBC, and pools wrap the statement, so find it by name on the driver's own statement
+			Object target = command.unwrap(Statement.class);
+			Method setStream = null;
+			try {
+				setStream = target.getClass().getMethod("setLocalInfileInputStream", InputStream.class);
+			} catch (NoSuchMethodException ex) {
+				return -1L;
+			}
+			
+			RowInputStream stream = new RowInputStream(rows, binary);
+			try {
+				setStream.invoke(target, stream);
+			} catch (IllegalAccessException | InvocationTargetException ex) {
+				return -1L;
+			}
+			
+			try {
+				return command.executeUpdate(q.toString());
+			} catch (SQLException ex) {
+				// LOAD DATA LOCAL is disabled on the server (1148, 3948) or the client (2068). Nothing has been read yet, so the rows can still go out as INSERTs
+				if (!stream.isStarted() && (ex.getErrorCode() == 1148 || ex.getErrorCode() == 3948 || ex.getErrorCode() == 2068)) {
+					return -1L;
+				}
+				throw ex;
+			}
+		}
+	}
+	private long insertMySQL(Connection conn, String table, String[] columns, Iterator<Object[]> rows) throws SQLException {
+		long packetSize = 1024L * 1024L;
+		try (Statement command = conn.createStatement(); ResultSet results = command.executeQuery("SELECT @@max_allowed_packet")) {
+			if (results.next()) {
+				packetSize = results.getLong(1);
+			}
+		}
+		
+		return insert(table, columns, rows, 65535, Math.max(packetSize - PACKET_OVERHEAD, packetSize / 2L));
+	}
+	private long insert(String table, String[] columns, Iterator<Object[]> rows, int maxVariables, long maxBytes) throws SQLException {
+		int maxRows = Math.max(1, maxVariables / columns.length);
+		long retVal = 0L;
+		
+		List<Object[]> chunk = new ArrayList<Object[]>();
+		long bytes = 0L;
+		while (rows.hasNext()) {
+			Object[] row = checkRow(rows.next(), columns.length);
+			long rowBytes = estimateBytes(row);
+			
+			if (!chunk.isEmpty() && (chunk.size() >= maxRows || bytes + rowBytes > maxBytes)) {
+				retVal += insertChunk(table, columns, chunk);
+				chunk.clear();
+				bytes = 0L;
+			}
+			
+			chunk.add(row);
+			bytes += rowBytes;
+		}
+		if (!chunk.isEmpty()) {
+			retVal += insertChunk(table, columns, chunk);
+		}
+		
+		return retVal;
+	}
+	private int insertChunk(String table, String[] columns, List<Object[]> chunk) throws SQLException {
+		StringBuilder q = new StringBuilder();
+		q.append("INSERT INTO ").append(table).append(" (");
+		appendColumns(q, columns);
+		q.append(") VALUES ");
+		
+		StringBuilder placeholders = new StringBuilder(columns.length * 3);
+		placeholders.append('(');
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				placeholders.append(", ");
+			}
+			placeholders.append('?');
+		}
+		placeholders.append(')');
+		
+		for (int i = 0; i < chunk.size(); i++) {
+			if (i > 0) {
+				q.append(", ");
+			}
+			q.append(placeholders);
+		}
+		
+		// Full chunks all have the same text, so the statement is only prepared once
+		PreparedStatement command = cache.prepare(q.toString());
+		try {
+			int index = 1;
+			for (Object[] row : chunk) {
+				for (int i = 0; i < row.length; i++) {
+					command.setObject(index++, row[i]);
+				}
+			}
+			int retVal = command.executeUpdate();
+			cache.release(command);
+			
+			rows += chunk.size();
+			report(false);
+			return retVal;
+		} catch (SQLException ex) {
+			cache.invalidate(command);
+			throw ex;
+		}
+	}
+	
+	private void report(boolean done) {
+		if (progress != null) {
+			progress.accept(new SQLBulkProgress(rows, System.nanoTime() - start, done));
+		}
+	}
+	
+	private static int getSQLiteVariableLimit(Connection conn) throws SQLException {
+		// SQLITE_MAX_VARIABLE_NUMBER went from 999 to 32766 in 3.32.0
+		try (Statement command = conn.createStatement(); ResultSet results = command.executeQuery("SELECT sqlite_version()")) {
+			if (results.next()) {
+				String[] version = results.getString(1).split("\\.");
+				try {
+					int major = Integer.parseInt(version[0]);
+					int minor = (version.length > 1) ? Integer.parseInt(version[1]) : 0;
+					if (major > 3 || (major == 3 && minor >= 32)) {
+						return 32766;
+					}
+				} catch (NumberFormatException ex) {
+					
+				}
+			}
+		} catch (SQLException ex) {
+			// Not SQLite after all. Stick to the lowest common limit
+		}
+		return 999;
+	}
+	
+	private static void appendColumns(StringBuilder builder, String[] columns) {
+		for (int i = 0; i < columns.length; i++) {
+			if (i > 0) {
+				builder.append(", ");
+			}
+			builder.append(columns[i]);
+		}
+	}
+	private static boolean[] getBinaryColumns(Connection conn, String table, String[] columns) {
+		StringBuilder q = new StringBuilder();
+		q.append("SELECT ");
+		appendColumns(q, columns);
+		q.append(" FROM ").append(table).append(" WHERE 1 = 0");
+		
+		try (Statement command = conn.createStatement(); ResultSet results = command.executeQuery(q.toString())) {
+			ResultSetMetaData metaData = results.getMetaData();
+			if (metaData.getColumnCount() != columns.length) {
+				return null;
+			}
+			
+			boolean[] retVal = new boolean[columns.length];
+			for (int i = 0; i < columns.length; i++) {
+				int type = metaData.getColumnType(i + 1);
+				retVal[i] = type == Types.BINARY || type == Types.VARBINARY || type == Types.LONGVARBINARY || type == Types.BLOB;
+			}
+			return retVal;
+		} catch (SQLException ex) {
+			// Can't tell, so don't risk the stream. INSERTs take any value
+			return null;
+		}
+	}
+	private static Object[] checkRow(Object[] row, int columns) throws SQLException {
+		if (row == null || row.length != columns) {
+			throw new SQLException("Row has " + ((row != null) ? row.length : 0) + " values, expected " + columns + ".");
+		}
+		return row;
+	}
+	// Rough size of a row on the wire, for packing MySQL packets. Errs high
+	private static long estimateBytes(Object[] row) {
+		long retVal = 0L;
+		for (Object value : row) {
+			if (value == null) {
+				retVal += 1L;
+			} else if (value instanceof String) {
+				retVal += 9L + ((String) value).length() * 4L;
+			} else if (value instanceof byte[]) {
+				retVal += 9L + ((byte[]) value).length;
+			} else if (value instanceof Number || value instanceof Boolean) {
+				retVal += 9L;
+			} else {
+				retVal += 9L + value.toString().length() * 4L;
+			}
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Encodes rows as LOAD DATA's default text format (tab-separated, backslash-escaped, \N for NULL) as the driver reads them.
+	 * Values for binary columns are written as hex.
+	 */
+	private class RowInputStream extends InputStream {
+		//vars
+		private Iterator<Object[]> rows = null;
+		private boolean[] binary = null;
+		
+		private byte[] buffer = new byte[0];
+		private int position = 0;
+		private StringBuilder line = new StringBuilder();
+		private boolean started = false;
+		
+		//constructor
+		public RowInputStream(Iterator<Object[]> rows, boolean[] binary) {
+			this.rows = rows;
+			this.binary = binary;
+		}
+		
+		//public
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return buffer[position++] & 0xFF;
+		}
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			
+			int read = 0;
+			while (read < len && fill()) {
+				int count = Math.min(len - read, buffer.length - position);
+				System.arraycopy(buffer, position, b, off + read, count);
+				position += count;
+				read += count;
+			}
+			return (read == 0) ? -1 : read;
+		}
+		public boolean isStarted() {
+			return started;
+		}
+		
+		//private
+		private boolean fill() throws IOException {
+			while (position >= buffer.length) {
+				if (!rows.hasNext()) {
+					return false;
+				}
+				
+				started = true;
+				Object[] row = rows.next();
+				if (row == null || row.length != binary.length) {
+					throw new IOException("Row has " + ((row != null) ? row.length : 0) + " values, expected " + binary.length + ".");
+				}
+				
+				line.setLength(0);
+				for (int i = 0; i < row.length; i++) {
+					if (i > 0) {
+						line.append('\t');
+					}
+					if (binary[i] && row[i] != null) {
+						appendHex((row[i] instanceof byte[]) ? (byte[]) row[i] : text(row[i]).getBytes(StandardCharsets.UTF_8));
+					} else {
+						append(row[i]);
+					}
+				}
+				line.append('\n');
+				
+				buffer = line.toString().getBytes(StandardCharsets.UTF_8);
+				position = 0;
+				
+				SQLBulkLoader.this.rows++;
+				if (SQLBulkLoader.this.rows % PROGRESS_INTERVAL == 0L) {
+					report(false);
+				}
+			}
+			return true;
+		}
+		private void append(Object value) {
+			if (value == null) {
+				line.append("\\N");
+				return;
+			}
+			
+			String text = text(value);
+			for (int i = 0; i < text.length(); i++) {
+				char c = text.charAt(i);
+				switch (c) {
+					case '\\':
+						line.append("\\\\");
+						break;
+					case '\t':
+						line.append("\\t");
+						break;
+					case '\n':
+						line.append("\\n");
+						break;
+					case '\r':
+						line.append("\\r");
+						break;
+					case '\0':
+						line.append("\\0");
+						break;
+					default:
+						line.append(c);
+						break;
+				}
+			}
+		}
+		private void appendHex(byte[] value) {
+			for (int i = 0; i < value.length; i++) {
+				line.append(HEX[(value[i] >> 4) & 0x0F]).append(HEX[value[i] & 0x0F]);
+			}
+		}
+		private String text(Object value) {
+			if (value instanceof Boolean) {
+				return ((Boolean) value).booleanValue() ? "1" : "0";
+			} else if (value instanceof BigDecimal) {
+				return ((BigDecimal) value).toPlainString();
+			} else if (value instanceof java.util.Date && !(value instanceof Timestamp) && !(value instanceof java.sql.Date) && !(value instanceof java.sql.Time)) {
+				return new Timestamp(((java.util.Date) value).getTime()).toString();
+			} else if (value instanceof byte[]) {
+				// Bytes for a text column, which the server reads in the connection's character set
+				return new String((byte[]) value, StandardCharsets.UTF_8);
+			}
+			// Numbers and java.sql date/time types already print the way MySQL parses them
+			return value.toString();
+		}
+	}
+}
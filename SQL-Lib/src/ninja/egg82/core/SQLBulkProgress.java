@@ -0,0 +1,44 @@
+package ninja.egg82.core;
+
+public class SQLBulkProgress {
+	//vars
+	private long rows = 0L;
+	private long elapsedNanos = 0L;
+	private boolean done = false;
+	
+	//constructor
+	public SQLBulkProgress(long rows, long elapsedNanos, boolean done) {
+		this.rows = rows;
+		this.elapsedNanos = elapsedNanos;
+		this.done = done;
+	}
+	
+	//public
+	/**
+	 * The number of rows sent to the database so far.
+	 * 
+	 * @return The rows sent
+	 */
+	public long getRows() {
+		return rows;
+	}
+	public long getElapsedMillis() {
+		return elapsedNanos / 1000000L;
+	}
+	/**
+	 * Average throughput since the load started.
+	 * 
+	 * @return Rows sent per second
+	 */
+	public double getRowsPerSecond() {
+		return (elapsedNanos > 0L) ? rows * 1000000000.0d / elapsedNanos : 0.0d;
+	}
+	/**
+	 * Whether or not every row has been sent. The last report of a load is always marked done, and comes before the commit.
+	 * 
+	 * @return true if this is the final report
+	 */
+	public boolean isDone() {
+		return done;
+	}
+}
@@ -0,0 +1,232 @@
+package ninja.egg82.core;
+
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Collects streamed rows into a SQLColumnarData. Hand it to streamQuery as the row consumer, then call build once the query completes.
+ * Not thread-safe, but streamed rows are only ever handed over from one thread.
+ */
+public class SQLColumnarBuilder implements Consumer<SQLRow> {
+	//vars
+	
+	// Columns with more distinct strings than this stop being deduplicated, since the lookup would cost more than it saves
+	private static final int MAX_DISTINCT_STRINGS = 65536;
+	
+	private String[] columns = null;
+	private int[] types = null;
+	private byte[] kinds = null;
+	private Object[] values = null;
+	private long[][] nulls = null;
+	// Per-column string dedup. Local rather than String.intern(), so it goes away with the builder
+	private List<Map<String, String>> strings = null;
+	private int rowCount = 0;
+	private int capacity = 0;
+	
+	//constructor
+	public SQLColumnarBuilder() {
+		
+	}
+	
+	//public
+	public void accept(SQLRow row) {
+		if (columns == null) {
+			init(row);
+		}
+		if (rowCount == capacity) {
+			grow();
+		}
+		
+		try {
+			for (int i = 0; i < columns.length; i++) {
+				read(row, i);
+			}
+		} catch (SQLException ex) {
+			throw new RuntimeException("Could not read row.", ex);
+		}
+		rowCount++;
+	}
+	
+	/**
+	 * Builds the result from the rows collected so far.
+	 * 
+	 * @param columns The column names, used if no rows were collected. The streamed SQLData's columns work
+	 * @return The columnar result
+	 */
+	public SQLColumnarData build(String[] columns) {
+		if (this.columns == null) {
+			// No rows, so no column types either
+			String[] names = (columns != null) ? columns : new String[0];
+			int[] emptyTypes = new int[names.length];
+			byte[] emptyKinds = new byte[names.length];
+			Object[] emptyValues = new Object[names.length];
+			long[][] emptyNulls = new long[names.length][0];
+			for (int i = 0; i < names.length; i++) {
+				emptyTypes[i] = Types.OTHER;
+				emptyKinds[i] = SQLColumnarData.KIND_OBJECT;
+				emptyValues[i] = new Object[0];
+			}
+			return new SQLColumnarData(names, emptyTypes, emptyKinds, emptyValues, emptyNulls, 0);
+		}
+		
+		// Trim everything down to size
+		Object[] trimmedValues = new Object[this.columns.length];
+		long[][] trimmedNulls = new long[this.columns.length][];
+		for (int i = 0; i < this.columns.length; i++) {
+			trimmedValues[i] = resize(values[i], kinds[i], rowCount);
+			trimmedNulls[i] = Arrays.copyOf(nulls[i], (rowCount + 63) >>> 6);
+		}
+		return new SQLColumnarData(this.columns, types, kinds, trimmedValues, trimmedNulls, rowCount);
+	}
+	
+	//private
+	private void init(SQLRow row) {
+		columns = row.getColumns();
+		types = new int[columns.length];
+		kinds = new byte[columns.length];
+		values = new Object[columns.length];
+		nulls = new long[columns.length][];
+		strings = new ArrayList<Map<String, String>>(columns.length);
+		
+		capacity = 64;
+		for (int i = 0; i < columns.length; i++) {
+			types[i] = row.getColumnType(i);
+			kinds[i] = getKind(types[i]);
+			values[i] = resize(null, kinds[i], capacity);
+			nulls[i] = new long[capacity >>> 6];
+			strings.add((kinds[i] == SQLColumnarData.KIND_STRING) ? new HashMap<String, String>() : null);
+		}
+	}
+	private void grow() {
+		capacity *= 2;
+		for (int i = 0; i < columns.length; i++) {
+			values[i] = resize(values[i], kinds[i], capacity);
+			nulls[i] = Arrays.copyOf(nulls[i], capacity >>> 6);
+		}
+	}
+	
+	private void read(SQLRow row, int column) throws SQLException {
+		switch (kinds[column]) {
+			case SQLColumnarData.KIND_INT: {
+				long value = row.getLong(column);
+				if (row.wasNull()) {
+					setNull(column);
+				} else if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+					// SQLite reports INTEGER for 64-bit values too. Switch the column over to longs
+					int[] old = (int[]) values[column];
+					long[] promoted = new long[capacity];
+					for (int i = 0; i < rowCount; i++) {
+						promoted[i] = old[i];
+					}
+					values[column] = promoted;
+					kinds[column] = SQLColumnarData.KIND_LONG;
+					promoted[rowCount] = value;
+				} else {
+					((int[]) values[column])[rowCount] = (int) value;
+				}
+				break;
+			}
+			case SQLColumnarData.KIND_LONG: {
+				long value = row.getLong(column);
+				if (row.wasNull()) {
+					setNull(column);
+				} else {
+					((long[]) values[column])[rowCount] = value;
+				}
+				break;
+			}
+			case SQLColumnarData.KIND_DOUBLE: {
+				double value = row.getDouble(column);
+				if (row.wasNull()) {
+					setNull(column);
+				} else {
+					((double[]) values[column])[rowCount] = value;
+				}
+				break;
+			}
+			case SQLColumnarData.KIND_STRING: {
+				String value = row.getString(column);
+				if (value == null) {
+					setNull(column);
+				} else {
+					((String[]) values[column])[rowCount] = dedupe(column, value);
+				}
+				break;
+			}
+			default: {
+				Object value = row.getObject(column);
+				if (value == null) {
+					setNull(column);
+				} else {
+					((Object[]) values[column])[rowCount] = value;
+				}
+				break;
+			}
+		}
+	}
+	private void setNull(int column) {
+		nulls[column][rowCount >>> 6] |= 1L << rowCount;
+	}
+	private String dedupe(int column, String value) {
+		Map<String, String> seen = strings.get(column);
+		if (seen == null) {
+			return value;
+		}
+		
+		String retVal = seen.get(value);
+		if (retVal != null) {
+			return retVal;
+		}
+		if (seen.size() >= MAX_DISTINCT_STRINGS) {
+			strings.set(column, null);
+		} else {
+			seen.put(value, value);
+		}
+		return value;
+	}
+	
+	private static byte getKind(int type) {
+		switch (type) {
+			case Types.TINYINT:
+			case Types.SMALLINT:
+			case Types.INTEGER:
+				return SQLColumnarData.KIND_INT;
+			case Types.BIGINT:
+				return SQLColumnarData.KIND_LONG;
+			case Types.REAL:
+			case Types.FLOAT:
+			case Types.DOUBLE:
+				return SQLColumnarData.KIND_DOUBLE;
+			case Types.CHAR:
+			case Types.VARCHAR:
+			case Types.LONGVARCHAR:
+			case Types.NCHAR:
+			case Types.NVARCHAR:
+			case Types.LONGNVARCHAR:
+				return SQLColumnarData.KIND_STRING;
+			default:
+				// DECIMAL/NUMERIC included. Squeezing them into a double would lose precision
+				return SQLColumnarData.KIND_OBJECT;
+		}
+	}
+	private static Object resize(Object array, byte kind, int length) {
+		switch (kind) {
+			case SQLColumnarData.KIND_INT:
+				return (array != null) ? Arrays.copyOf((int[]) array, length) : new int[length];
+			case SQLColumnarData.KIND_LONG:
+				return (array != null) ? Arrays.copyOf((long[]) array, length) : new long[length];
+			case SQLColumnarData.KIND_DOUBLE:
+				return (array != null) ? Arrays.copyOf((double[]) array, length) : new double[length];
+			case SQLColumnarData.KIND_STRING:
+				return (array != null) ? Arrays.copyOf((String[]) array, length) : new String[length];
+			default:
+				return (array != null) ? Arrays.copyOf((Object[]) array, length) : new Object[length];
+		}
+	}
+}
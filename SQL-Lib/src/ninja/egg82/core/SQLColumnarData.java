@@ -0,0 +1,238 @@
+package ninja.egg82.core;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A query result stored column by column. Integer and floating-point columns are kept in primitive arrays, with a bitmap marking NULLs,
+ * so large results don't cost one boxed object per cell and one array per row. Repeated strings in a column share a single instance.
+ * 
+ * Built by SQLColumnarBuilder, through the columnarQuery methods.
+ */
+public class SQLColumnarData {
+	//vars
+	
+	// How each column is stored
+	public static final byte KIND_INT = 0;
+	public static final byte KIND_LONG = 1;
+	public static final byte KIND_DOUBLE = 2;
+	public static final byte KIND_STRING = 3;
+	public static final byte KIND_OBJECT = 4;
+	
+	private String[] columns = null;
+	// Column types, as defined in java.sql.Types
+	private int[] types = null;
+	private byte[] kinds = null;
+	// One of int[], long[], double[], String[] or Object[] per column, depending on its kind. Exactly rowCount long
+	private Object[] values = null;
+	// One bit per row per column, set when the value is NULL
+	private long[][] nulls = null;
+	private int rowCount = 0;
+	
+	// Column name -> index lookup, built on first use
+	private Map<String, Integer> columnIndices = null;
+	
+	//constructor
+	public SQLColumnarData(String[] columns, int[] types, byte[] kinds, Object[] values, long[][] nulls, int rowCount) {
+		if (columns == null) {
+			throw new IllegalArgumentException("columns cannot be null.");
+		}
+		if (types == null || types.length != columns.length || kinds == null || kinds.length != columns.length || values == null || values.length != columns.length || nulls == null || nulls.length != columns.length) {
+			throw new IllegalArgumentException("types, kinds, values and nulls must match columns.");
+		}
+		if (rowCount < 0) {
+			throw new IllegalArgumentException("rowCount cannot be negative.");
+		}
+		
+		this.columns = columns;
+		this.types = types;
+		this.kinds = kinds;
+		this.values = values;
+		this.nulls = nulls;
+		this.rowCount = rowCount;
+	}
+	
+	//public
+	public String[] getColumns() {
+		return columns;
+	}
+	public int getColumnCount() {
+		return columns.length;
+	}
+	public int getRowCount() {
+		return rowCount;
+	}
+	/**
+	 * Returns the SQL type of a column.
+	 * 
+	 * @param column The zero-based column index
+	 * @return The column type, as defined in java.sql.Types
+	 */
+	public int getColumnType(int column) {
+		return types[column];
+	}
+	/**
+	 * Returns how a column is stored, which decides which of the column getters can be used.
+	 * 
+	 * @param column The zero-based column index
+	 * @return One of the KIND_ constants
+	 */
+	public byte getColumnKind(int column) {
+		return kinds[column];
+	}
+	/**
+	 * Returns the index of a column by name.
+	 * 
+	 * @param name The column name
+	 * @return The zero-based column index, or -1 if the column doesn't exist
+	 */
+	public int getColumnIndex(String name) {
+		if (columnIndices == null) {
+			Map<String, Integer> indices = new HashMap<String, Integer>();
+			for (int i = columns.length - 1; i >= 0; i--) {
+				indices.put(columns[i], Integer.valueOf(i));
+			}
+			columnIndices = indices;
+		}
+		
+		Integer index = columnIndices.get(name);
+		return (index != null) ? index.intValue() : -1;
+	}
+	
+	public boolean isNull(int row, int column) {
+		checkRow(row);
+		return (nulls[column][row >>> 6] & (1L << row)) != 0L;
+	}
+	// Primitive getters return 0 for NULL, same as JDBC. Check isNull if it matters
+	public int getInt(int row, int column) {
+		checkRow(row);
+		switch (kinds[column]) {
+			case KIND_INT:
+				return ((int[]) values[column])[row];
+			case KIND_LONG:
+				return (int) ((long[]) values[column])[row];
+			case KIND_DOUBLE:
+				return (int) ((double[]) values[column])[row];
+			default:
+				Object value = getObject(row, column);
+				return (value instanceof Number) ? ((Number) value).intValue() : 0;
+		}
+	}
+	public long getLong(int row, int column) {
+		checkRow(row);
+		switch (kinds[column]) {
+			case KIND_INT:
+				return ((int[]) values[column])[row];
+			case KIND_LONG:
+				return ((long[]) values[column])[row];
+			case KIND_DOUBLE:
+				return (long) ((double[]) values[column])[row];
+			default:
+				Object value = getObject(row, column);
+				return (value instanceof Number) ? ((Number) value).longValue() : 0L;
+		}
+	}
+	public double getDouble(int row, int column) {
+		checkRow(row);
+		switch (kinds[column]) {
+			case KIND_INT:
+				return ((int[]) values[column])[row];
+			case KIND_LONG:
+				return ((long[]) values[column])[row];
+			case KIND_DOUBLE:
+				return ((double[]) values[column])[row];
+			default:
+				Object value = getObject(row, column);
+				return (value instanceof Number) ? ((Number) value).doubleValue() : 0.0d;
+		}
+	}
+	public String getString(int row, int column) {
+		checkRow(row);
+		if (kinds[column] == KIND_STRING) {
+			return ((String[]) values[column])[row];
+		}
+		Object value = getObject(row, column);
+		return (value != null) ? value.toString() : null;
+	}
+	/**
+	 * Returns a cell as an object. Primitive columns are boxed on the way out.
+	 * 
+	 * @param row The zero-based row index
+	 * @param column The zero-based column index
+	 * @return The value, or null for NULL
+	 */
+	public Object getObject(int row, int column) {
+		if (isNull(row, column)) {
+			return null;
+		}
+		switch (kinds[column]) {
+			case KIND_INT:
+				return Integer.valueOf(((int[]) values[column])[row]);
+			case KIND_LONG:
+				return Long.valueOf(((long[]) values[column])[row]);
+			case KIND_DOUBLE:
+				return Double.valueOf(((double[]) values[column])[row]);
+			case KIND_STRING:
+				return ((String[]) values[column])[row];
+			default:
+				return ((Object[]) values[column])[row];
+		}
+	}
+	
+	// Whole columns, for tight loops. The arrays are the backing storage, not copies. Check getColumnKind first
+	public int[] getIntColumn(int column) {
+		return (int[]) checkKind(column, KIND_INT);
+	}
+	public long[] getLongColumn(int column) {
+		return (long[]) checkKind(column, KIND_LONG);
+	}
+	public double[] getDoubleColumn(int column) {
+		return (double[]) checkKind(column, KIND_DOUBLE);
+	}
+	public String[] getStringColumn(int column) {
+		return (String[]) checkKind(column, KIND_STRING);
+	}
+	
+	/**
+	 * Returns a view of a single row. Views are cheap and share this result's storage.
+	 * 
+	 * @param row The zero-based row index
+	 * @return The row view
+	 */
+	public SQLColumnarRow getRow(int row) {
+		checkRow(row);
+		return new SQLColumnarRow(this, row);
+	}
+	
+	/**
+	 * Copies the result into the row-based SQLData layout, for code that expects it.
+	 * 
+	 * @return The result as SQLData
+	 */
+	public SQLData toSQLData() {
+		SQLData retVal = new SQLData();
+		retVal.columns = columns;
+		retVal.data = new Object[rowCount][];
+		for (int i = 0; i < rowCount; i++) {
+			Object[] row = new Object[columns.length];
+			for (int j = 0; j < columns.length; j++) {
+				row[j] = getObject(i, j);
+			}
+			retVal.data[i] = row;
+		}
+		return retVal;
+	}
+	
+	//private
+	private void checkRow(int row) {
+		if (row < 0 || row >= rowCount) {
+			throw new IndexOutOfBoundsException("row " + row + " is out of bounds (" + rowCount + " rows).");
+		}
+	}
+	private Object checkKind(int column, byte kind) {
+		if (kinds[column] != kind) {
+			throw new IllegalStateException("Column \"" + columns[column] + "\" is not stored as the requested type.");
+		}
+		return values[column];
+	}
+}
@@ -0,0 +1,58 @@
+package ninja.egg82.core;
+
+public class SQLColumnarRow {
+	//vars
+	private SQLColumnarData data = null;
+	private int row = 0;
+	
+	//constructor
+	public SQLColumnarRow(SQLColumnarData data, int row) {
+		if (data == null) {
+			throw new IllegalArgumentException("data cannot be null.");
+		}
+		
+		this.data = data;
+		this.row = row;
+	}
+	
+	//public
+	public int getRowIndex() {
+		return row;
+	}
+	public String[] getColumns() {
+		return data.getColumns();
+	}
+	public int getColumnIndex(String name) {
+		return data.getColumnIndex(name);
+	}
+	
+	// Column indices are zero-based, same as SQLData
+	public boolean isNull(int column) {
+		return data.isNull(row, column);
+	}
+	public int getInt(int column) {
+		return data.getInt(row, column);
+	}
+	public long getLong(int column) {
+		return data.getLong(row, column);
+	}
+	public double getDouble(int column) {
+		return data.getDouble(row, column);
+	}
+	public String getString(int column) {
+		return data.getString(row, column);
+	}
+	public Object getObject(int column) {
+		return data.getObject(row, column);
+	}
+	public Object getObject(String name) {
+		int column = data.getColumnIndex(name);
+		if (column == -1) {
+			throw new IllegalArgumentException("Column \"" + name + "\" does not exist.");
+		}
+		return data.getObject(row, column);
+	}
+	
+	//private
+	
+}
@@ -5,6 +5,8 @@ public class SQLData {
 	public volatile String[] columns = null;
 	public volatile Object[][] data = null;
 	public volatile int recordsAffected = -1;
+	// Per-row update counts, only set for batch queries
+	public volatile int[] batchRecordsAffected = null;
 	
 	//constructor
 	public SQLData() {
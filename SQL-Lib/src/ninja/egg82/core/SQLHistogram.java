@@ -0,0 +1,151 @@
+package ninja.egg82.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+public class SQLHistogram {
+	//vars
+	
+	// Values are bucketed by power of two, with 8 linear sub-buckets each. That keeps every bucket within ~12% of the values it holds
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	// Recording is an increment on a striped adder plus one atomic bucket increment. No locks
+	private AtomicLongArray buckets = new AtomicLongArray(NUM_BUCKETS);
+	private LongAdder count = new LongAdder();
+	private LongAdder sum = new LongAdder();
+	private LongAccumulator max = new LongAccumulator(Math::max, 0L);
+	
+	//constructor
+	public SQLHistogram() {
+		
+	}
+	
+	//public
+	/**
+	 * Records a value. Negative values are recorded as 0.
+	 * 
+	 * @param value The value to record
+	 */
+	public void record(long value) {
+		if (value < 0L) {
+			value = 0L;
+		}
+		
+		buckets.incrementAndGet(getBucket(value));
+		count.increment();
+		sum.add(value);
+		max.accumulate(value);
+	}
+	
+	public long getCount() {
+		return count.sum();
+	}
+	public long getSum() {
+		return sum.sum();
+	}
+	public long getMax() {
+		return max.get();
+	}
+	public double getMean() {
+		long c = count.sum();
+		return (c == 0L) ? 0.0d : (double) sum.sum() / (double) c;
+	}
+	/**
+	 * Returns the approximate value at the given percentile.
+	 * 
+	 * @param percentile The percentile, from 0 to 100
+	 * @return The approximate value at the percentile, or 0 if nothing was recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			total += buckets.get(i);
+		}
+		if (total == 0L) {
+			return 0L;
+		}
+		
+		long target = (long) Math.ceil((Math.max(0.0d, Math.min(100.0d, percentile)) / 100.0d) * total);
+		if (target < 1L) {
+			target = 1L;
+		}
+		
+		long seen = 0L;
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			seen += buckets.get(i);
+			if (seen >= target) {
+				return Math.min(getBucketValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+	
+	/**
+	 * Copies the histogram. Recording continues on the original while the copy is read.
+	 * 
+	 * @return A copy of the histogram
+	 */
+	public SQLHistogram snapshot() {
+		SQLHistogram retVal = new SQLHistogram();
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			retVal.buckets.set(i, buckets.get(i));
+		}
+		retVal.count.add(count.sum());
+		retVal.sum.add(sum.sum());
+		retVal.max.accumulate(max.get());
+		return retVal;
+	}
+	/**
+	 * Adds everything recorded in another histogram to this one.
+	 * 
+	 * @param other The histogram to add
+	 */
+	public void add(SQLHistogram other) {
+		if (other == null) {
+			throw new IllegalArgumentException("other cannot be null.");
+		}
+		
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			long value = other.buckets.get(i);
+			if (value != 0L) {
+				buckets.addAndGet(i, value);
+			}
+		}
+		count.add(other.count.sum());
+		sum.add(other.sum.sum());
+		max.accumulate(other.max.get());
+	}
+	public void reset() {
+		for (int i = 0; i < NUM_BUCKETS; i++) {
+			buckets.set(i, 0L);
+		}
+		count.reset();
+		sum.reset();
+		max.reset();
+	}
+	
+	//private
+	private static int getBucket(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+		return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+	}
+	private static long getBucketValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		
+		// The middle of the bucket's range
+		int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+		long subBucket = bucket % SUB_BUCKETS;
+		long width = 1L << (exponent - SUB_BUCKET_BITS);
+		return ((SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS)) + width / 2L;
+	}
+}
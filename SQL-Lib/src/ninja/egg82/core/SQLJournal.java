@@ -0,0 +1,235 @@
+package ninja.egg82.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * An append-only, on-disk queue of fire-and-forget queries. Used to hold queries that don't fit in a full backlog.
+ * Each record is a length-prefixed serialized query. Parameters have to be Serializable.
+ * 
+ * Records stay on disk until they're read back into the backlog. From then on they're only held in memory, the same as queries that never spilled,
+ * so a crash can lose whatever was read back but not yet sent. A clean disconnect writes anything unsent back to the front of the journal.
+ */
+public class SQLJournal {
+	//vars
+	private File file = null;
+	private RandomAccessFile journal = null;
+	
+	// Where the next record is read from, and how many records are left to read
+	private long readPosition = 0L;
+	private int pending = 0;
+	
+	//constructor
+	public SQLJournal(File file) throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("file cannot be null.");
+		}
+		
+		if (!SQLFileUtil.pathExists(file)) {
+			try {
+				SQLFileUtil.createFile(file);
+			} catch (Exception ex) {
+				throw new IOException("Could not create file.", ex);
+			}
+		} else if (!SQLFileUtil.pathIsFile(file)) {
+			throw new IOException("file is not a valid file.");
+		}
+		
+		this.file = file;
+		journal = new RandomAccessFile(file, "rw");
+		
+		// Count what's left over from last time
+		long length = journal.length();
+		long position = 0L;
+		while (position + 4L <= length) {
+			journal.seek(position);
+			int recordLength = journal.readInt();
+			if (recordLength < 0 || position + 4L + recordLength > length) {
+				// Torn write at the end, most likely from a crash. Drop it
+				journal.setLength(position);
+				break;
+			}
+			position += 4L + recordLength;
+			pending++;
+		}
+	}
+	
+	//public
+	/**
+	 * Writes a query to the end of the journal.
+	 * 
+	 * @param queryData The query to write. Queries with a future can't be written
+	 * @throws IOException If the query could not be written, including if a parameter isn't Serializable
+	 */
+	public synchronized void append(SQLQueueData queryData) throws IOException {
+		if (queryData == null) {
+			throw new IllegalArgumentException("queryData cannot be null.");
+		}
+		
+		byte[] record = serialize(queryData);
+		journal.seek(journal.length());
+		journal.writeInt(record.length);
+		journal.write(record);
+		pending++;
+	}
+	/**
+	 * Reads up to max queries back from the journal, oldest first.
+	 * If reading fails partway through, the queries read before the failure are still returned and the rest stay in the journal.
+	 * 
+	 * @param max The max number of queries to read
+	 * @param failed Where records that can't be decoded go, with whatever could be recovered of their query and the reason. They're taken out of the journal and count towards max
+	 * @return The queries read, which may be empty
+	 * @throws IOException If the journal could not be read and nothing was read before the failure
+	 */
+	@SuppressWarnings("unchecked")
+	public synchronized List<SQLQueueData> read(int max, Map<SQLQueueData, Exception> failed) throws IOException {
+		if (failed == null) {
+			throw new IllegalArgumentException("failed cannot be null.");
+		}
+		
+		List<SQLQueueData> retVal = new ArrayList<SQLQueueData>();
+		int read = 0;
+		
+		while (pending > 0 && read < max) {
+			byte[] record = null;
+			try {
+				journal.seek(readPosition);
+				record = new byte[journal.readInt()];
+				journal.readFully(record);
+			} catch (EOFException ex) {
+				pending = 0;
+				break;
+			} catch (IOException ex) {
+				// Leave this record where it is for the next read, and hand back what we already have
+				if (read == 0) {
+					throw ex;
+				}
+				return retVal;
+			}
+			readPosition += 4L + record.length;
+			pending--;
+			read++;
+			
+			UUID uuid = null;
+			String query = null;
+			try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(record))) {
+				uuid = (UUID) in.readObject();
+				query = (String) in.readObject();
+				Map<String, Object> namedParams = (Map<String, Object>) in.readObject();
+				Object[] unnamedParams = (Object[]) in.readObject();
+				List<Object[]> batchParams = (List<Object[]>) in.readObject();
+				boolean parallel = in.readBoolean();
+				
+				if (batchParams != null) {
+					retVal.add(new SQLQueueData(uuid, query, batchParams, parallel));
+				} else {
+					retVal.add(new SQLQueueData(uuid, query, namedParams, unnamedParams, parallel));
+				}
+			} catch (ClassNotFoundException | IOException | ClassCastException ex) {
+				// Corrupt record, or a parameter class that isn't around anymore. It can't be sent, but the caller can still report it
+				failed.put(new SQLQueueData(uuid, (query != null) ? query : "", null, new Object[0], false), ex);
+			}
+		}
+		
+		// Everything's been read back, start over with an empty file
+		if (pending == 0) {
+			journal.setLength(0L);
+			readPosition = 0L;
+		}
+		
+		return retVal;
+	}
+	/**
+	 * Writes queries to the front of the journal, ahead of anything not yet read. Used on disconnect, for queries that were already taken out of the journal but never sent.
+	 * 
+	 * @param queries The queries to write, oldest first
+	 * @throws IOException If the queries could not be written
+	 */
+	public synchronized void prepend(List<SQLQueueData> queries) throws IOException {
+		if (queries == null) {
+			throw new IllegalArgumentException("queries cannot be null.");
+		}
+		if (queries.isEmpty()) {
+			return;
+		}
+		
+		// Serialize everything first, so a bad parameter doesn't leave us with half a file
+		List<byte[]> records = new ArrayList<byte[]>();
+		for (SQLQueueData queryData : queries) {
+			records.add(serialize(queryData));
+		}
+		
+		// Write the new records to a temp file, copy the unread part of the journal after them and swap the files
+		File temp = new File(file.getPath() + ".tmp");
+		try (RandomAccessFile out = new RandomAccessFile(temp, "rw")) {
+			out.setLength(0L);
+			for (byte[] record : records) {
+				out.writeInt(record.length);
+				out.write(record);
+			}
+			
+			FileChannel in = journal.getChannel();
+			long position = readPosition;
+			long length = journal.length();
+			while (position < length) {
+				position += in.transferTo(position, length - position, out.getChannel());
+			}
+		}
+		
+		journal.close();
+		Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		journal = new RandomAccessFile(file, "rw");
+		readPosition = 0L;
+		pending += records.size();
+	}
+	
+	public synchronized int size() {
+		return pending;
+	}
+	public synchronized boolean isEmpty() {
+		return pending == 0;
+	}
+	public File getFile() {
+		return file;
+	}
+	
+	public synchronized void close() {
+		try {
+			journal.close();
+		} catch (Exception ex) {
+			
+		}
+	}
+	
+	//private
+	private static byte[] serialize(SQLQueueData queryData) throws IOException {
+		if (queryData.hasCaller()) {
+			throw new IOException("Async, streaming and transaction queries can't be journaled.");
+		}
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+			out.writeObject(queryData.getUuid());
+			out.writeObject(queryData.getQuery());
+			out.writeObject((queryData.getNamedParams() != null) ? new HashMap<String, Object>(queryData.getNamedParams()) : null);
+			out.writeObject(queryData.getUnnamedParams());
+			out.writeObject((queryData.getBatchParams() != null) ? new ArrayList<Object[]>(queryData.getBatchParams()) : null);
+			out.writeBoolean(queryData.getParallel());
+		}
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,84 @@
+package ninja.egg82.core;
+
+import java.util.concurrent.atomic.LongAdder;
+
+public class SQLMetrics {
+	//vars
+	
+	// Times are in nanoseconds
+	private SQLHistogram queueWait = new SQLHistogram();
+	private SQLHistogram executeTime = new SQLHistogram();
+	private SQLHistogram rows = new SQLHistogram();
+	private SQLHistogram batchSizes = new SQLHistogram();
+	
+	private LongAdder queries = new LongAdder();
+	private LongAdder errors = new LongAdder();
+	private LongAdder reconnects = new LongAdder();
+	// Queries turned away, dropped or written to disk because the backlog was full
+	private LongAdder rejected = new LongAdder();
+	private LongAdder dropped = new LongAdder();
+	private LongAdder spilled = new LongAdder();
+	
+	//constructor
+	public SQLMetrics() {
+		
+	}
+	
+	//public
+	public void recordQueueWait(long nanos) {
+		queueWait.record(nanos);
+	}
+	public void recordExecute(long nanos) {
+		queries.increment();
+		executeTime.record(nanos);
+	}
+	public void recordRows(long numRows) {
+		rows.record(numRows);
+	}
+	public void recordBatch(int batchSize) {
+		batchSizes.record(batchSize);
+	}
+	public void recordError() {
+		errors.increment();
+	}
+	public void recordReconnect() {
+		reconnects.increment();
+	}
+	public void recordRejected() {
+		rejected.increment();
+	}
+	public void recordDropped() {
+		dropped.increment();
+	}
+	public void recordSpill() {
+		spilled.increment();
+	}
+	
+	/**
+	 * Takes a copy of the current metrics, along with the driver's current connection and backlog state.
+	 * 
+	 * @param freeConnections The number of idle connections
+	 * @param usedConnections The number of connections currently sending a query
+	 * @param backlog The number of queries waiting to be sent
+	 * @param journaled The number of queries waiting in the overflow journal
+	 * @return A snapshot of the metrics
+	 */
+	public SQLMetricsSnapshot snapshot(int freeConnections, int usedConnections, int backlog, int journaled) {
+		return new SQLMetricsSnapshot(queueWait.snapshot(), executeTime.snapshot(), rows.snapshot(), batchSizes.snapshot(), queries.sum(), errors.sum(), reconnects.sum(), rejected.sum(), dropped.sum(), spilled.sum(), freeConnections, usedConnections, backlog, journaled);
+	}
+	public void reset() {
+		queueWait.reset();
+		executeTime.reset();
+		rows.reset();
+		batchSizes.reset();
+		queries.reset();
+		errors.reset();
+		reconnects.reset();
+		rejected.reset();
+		dropped.reset();
+		spilled.reset();
+	}
+	
+	//private
+	
+}
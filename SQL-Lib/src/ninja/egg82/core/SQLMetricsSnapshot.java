@@ -0,0 +1,182 @@
+package ninja.egg82.core;
+
+public class SQLMetricsSnapshot {
+	//vars
+	private SQLHistogram queueWait = null;
+	private SQLHistogram executeTime = null;
+	private SQLHistogram rows = null;
+	private SQLHistogram batchSizes = null;
+	
+	private long queries = 0L;
+	private long errors = 0L;
+	private long reconnects = 0L;
+	private long rejected = 0L;
+	private long dropped = 0L;
+	private long spilled = 0L;
+	
+	private int freeConnections = 0;
+	private int usedConnections = 0;
+	private int backlog = 0;
+	private int journaled = 0;
+	
+	private long time = 0L;
+	
+	//constructor
+	public SQLMetricsSnapshot(SQLHistogram queueWait, SQLHistogram executeTime, SQLHistogram rows, SQLHistogram batchSizes, long queries, long errors, long reconnects, long rejected, long dropped, long spilled, int freeConnections, int usedConnections, int backlog, int journaled) {
+		this.queueWait = queueWait;
+		this.executeTime = executeTime;
+		this.rows = rows;
+		this.batchSizes = batchSizes;
+		this.queries = queries;
+		this.errors = errors;
+		this.reconnects = reconnects;
+		this.rejected = rejected;
+		this.dropped = dropped;
+		this.spilled = spilled;
+		this.freeConnections = freeConnections;
+		this.usedConnections = usedConnections;
+		this.backlog = backlog;
+		this.journaled = journaled;
+		
+		time = System.currentTimeMillis();
+	}
+	
+	//public
+	/**
+	 * Combines snapshots from several drivers into one, as if they were a single driver.
+	 * 
+	 * @param snapshots The snapshots to combine
+	 * @return The combined snapshot
+	 */
+	public static SQLMetricsSnapshot combine(SQLMetricsSnapshot... snapshots) {
+		if (snapshots == null) {
+			throw new IllegalArgumentException("snapshots cannot be null.");
+		}
+		
+		SQLHistogram queueWait = new SQLHistogram();
+		SQLHistogram executeTime = new SQLHistogram();
+		SQLHistogram rows = new SQLHistogram();
+		SQLHistogram batchSizes = new SQLHistogram();
+		long queries = 0L;
+		long errors = 0L;
+		long reconnects = 0L;
+		long rejected = 0L;
+		long dropped = 0L;
+		long spilled = 0L;
+		int freeConnections = 0;
+		int usedConnections = 0;
+		int backlog = 0;
+		int journaled = 0;
+		
+		for (SQLMetricsSnapshot snapshot : snapshots) {
+			queueWait.add(snapshot.queueWait);
+			executeTime.add(snapshot.executeTime);
+			rows.add(snapshot.rows);
+			batchSizes.add(snapshot.batchSizes);
+			queries += snapshot.queries;
+			errors += snapshot.errors;
+			reconnects += snapshot.reconnects;
+			rejected += snapshot.rejected;
+			dropped += snapshot.dropped;
+			spilled += snapshot.spilled;
+			freeConnections += snapshot.freeConnections;
+			usedConnections += snapshot.usedConnections;
+			backlog += snapshot.backlog;
+			journaled += snapshot.journaled;
+		}
+		
+		return new SQLMetricsSnapshot(queueWait, executeTime, rows, batchSizes, queries, errors, reconnects, rejected, dropped, spilled, freeConnections, usedConnections, backlog, journaled);
+	}
+	
+	/**
+	 * Time spent in the backlog, from being queued to being picked up by a connection.
+	 * 
+	 * @return The queue wait histogram, in nanoseconds
+	 */
+	public SQLHistogram getQueueWait() {
+		return queueWait;
+	}
+	/**
+	 * Time spent executing, including reading the results. Batches count once per batch.
+	 * 
+	 * @return The execution time histogram, in nanoseconds
+	 */
+	public SQLHistogram getExecuteTime() {
+		return executeTime;
+	}
+	/**
+	 * Rows returned by queries that return a result set, including streamed rows.
+	 * 
+	 * @return The row count histogram
+	 */
+	public SQLHistogram getRows() {
+		return rows;
+	}
+	/**
+	 * Number of rows in each JDBC batch, explicit or coalesced.
+	 * 
+	 * @return The batch size histogram
+	 */
+	public SQLHistogram getBatchSizes() {
+		return batchSizes;
+	}
+	
+	public long getQueries() {
+		return queries;
+	}
+	public long getErrors() {
+		return errors;
+	}
+	public long getReconnects() {
+		return reconnects;
+	}
+	/**
+	 * Queries turned away because the backlog was full, either up front or (async queries) through their future.
+	 * 
+	 * @return The number of rejected queries
+	 */
+	public long getRejected() {
+		return rejected;
+	}
+	/**
+	 * Queued parallel queries failed to make room for new ones, with BacklogPolicy.DROP_OLDEST_PARALLEL.
+	 * 
+	 * @return The number of dropped queries
+	 */
+	public long getDropped() {
+		return dropped;
+	}
+	/**
+	 * Queries written to the overflow journal, with BacklogPolicy.SPILL_TO_DISK.
+	 * 
+	 * @return The number of spilled queries
+	 */
+	public long getSpilled() {
+		return spilled;
+	}
+	
+	public int getFreeConnections() {
+		return freeConnections;
+	}
+	public int getUsedConnections() {
+		return usedConnections;
+	}
+	public int getBacklog() {
+		return backlog;
+	}
+	public int getJournaled() {
+		return journaled;
+	}
+	
+	/**
+	 * When the snapshot was taken.
+	 * 
+	 * @return The snapshot time, in milliseconds since the epoch
+	 */
+	public long getTime() {
+		return time;
+	}
+	
+	//private
+	
+}
@@ -0,0 +1,44 @@
+package ninja.egg82.core;
+
+public class SQLQueryUtil {
+	//vars
+	
+	//constructor
+	public SQLQueryUtil() {
+		
+	}
+	
+	//public
+	/**
+	 * Returns whether or not a query is a plain read: a SELECT, SHOW or EXPLAIN that doesn't lock anything.
+	 * Locking reads (FOR UPDATE, FOR SHARE, LOCK IN SHARE MODE) aren't plain reads, since they have to see and lock the primary's current rows.
+	 * 
+	 * @param q The query
+	 * @return Whether or not the query can be sent to a replica or answered from a cache
+	 */
+	public static boolean isRead(String q) {
+		if (q == null) {
+			return false;
+		}
+		
+		int start = 0;
+		while (start < q.length() && Character.isWhitespace(q.charAt(start))) {
+			start++;
+		}
+		
+		if (!q.regionMatches(true, start, "SELECT", 0, 6) && !q.regionMatches(true, start, "SHOW", 0, 4) && !q.regionMatches(true, start, "EXPLAIN", 0, 7)) {
+			return false;
+		}
+		return !containsIgnoreCase(q, "FOR UPDATE") && !containsIgnoreCase(q, "FOR SHARE") && !containsIgnoreCase(q, "LOCK IN SHARE MODE");
+	}
+	
+	//private
+	private static boolean containsIgnoreCase(String haystack, String needle) {
+		for (int i = haystack.length() - needle.length(); i >= 0; i--) {
+			if (haystack.regionMatches(true, i, needle, 0, needle.length())) {
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -1,29 +1,71 @@
 package ninja.egg82.core;
 
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
 public class SQLQueueData {
 	//vars
 	private String query = null;
 	private Map<String, Object> namedParams = null;
 	private Object[] unnamedParams = null;
+	private List<Object[]> batchParams = null;
 	private UUID uuid = null;
 	private boolean parallel = false;
+	private boolean coalescable = false;
+	private CompletableFuture<SQLData> future = null;
+	private Consumer<SQLRow> rowConsumer = null;
+	private SQLTransactionData<?> transaction = null;
+	// System.nanoTime() of when the query was queued
+	private long queuedTime = 0L;
 	
 	//constructor
+	public SQLQueueData(SQLTransactionData<?> transaction) {
+		this.transaction = transaction;
+		
+		queuedTime = System.nanoTime();
+	}
 	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, boolean parallel) {
 		this(uuid, query, namedParams, null, parallel);
 	}
 	public SQLQueueData(UUID uuid, String query, Object[] unnamedParams, boolean parallel) {
 		this(uuid, query, null, unnamedParams, parallel);
 	}
+	public SQLQueueData(UUID uuid, String query, List<Object[]> batchParams, boolean parallel) {
+		this(uuid, query, batchParams, parallel, null);
+	}
+	public SQLQueueData(UUID uuid, String query, List<Object[]> batchParams, boolean parallel, CompletableFuture<SQLData> future) {
+		this(uuid, query, null, null, batchParams, parallel, false, future);
+	}
 	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, boolean parallel) {
+		this(uuid, query, namedParams, unnamedParams, parallel, null);
+	}
+	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, boolean parallel, CompletableFuture<SQLData> future) {
+		this(uuid, query, namedParams, unnamedParams, null, parallel, namedParams == null && isWrite(query), future);
+	}
+	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, List<Object[]> batchParams, boolean parallel, boolean coalescable) {
+		this(uuid, query, namedParams, unnamedParams, batchParams, parallel, coalescable, null);
+	}
+	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, boolean parallel, CompletableFuture<SQLData> future, Consumer<SQLRow> rowConsumer) {
+		this(uuid, query, namedParams, unnamedParams, null, parallel, false, future, rowConsumer);
+	}
+	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, List<Object[]> batchParams, boolean parallel, boolean coalescable, CompletableFuture<SQLData> future) {
+		this(uuid, query, namedParams, unnamedParams, batchParams, parallel, coalescable, future, null);
+	}
+	public SQLQueueData(UUID uuid, String query, Map<String, Object> namedParams, Object[] unnamedParams, List<Object[]> batchParams, boolean parallel, boolean coalescable, CompletableFuture<SQLData> future, Consumer<SQLRow> rowConsumer) {
 		this.uuid = uuid;
 		this.query = query;
 		this.namedParams = namedParams;
 		this.unnamedParams = unnamedParams;
+		this.batchParams = batchParams;
 		this.parallel = parallel;
+		this.coalescable = coalescable;
+		this.future = future;
+		this.rowConsumer = rowConsumer;
+		
+		queuedTime = System.nanoTime();
 	}
 	
 	//public
@@ -36,13 +78,99 @@ public class SQLQueueData {
 	public Object[] getUnnamedParams() {
 		return unnamedParams;
 	}
+	public List<Object[]> getBatchParams() {
+		return batchParams;
+	}
 	public UUID getUuid() {
 		return uuid;
 	}
 	public boolean getParallel() {
 		return parallel;
 	}
+	/**
+	 * When the query was queued, for measuring backlog wait.
+	 * 
+	 * @return The System.nanoTime() the query was queued at
+	 */
+	public long getQueuedTime() {
+		return queuedTime;
+	}
+	/**
+	 * The future to complete with the query's result, if it was queued through one of the async methods.
+	 * Queries with a future skip the onData/onError events entirely.
+	 * 
+	 * @return The future to complete, or null if the result should be sent through the events
+	 */
+	public CompletableFuture<SQLData> getFuture() {
+		return future;
+	}
+	/**
+	 * The callback that receives each row of a streaming query, as it's read.
+	 * 
+	 * @return The row consumer, or null if the result should be collected into SQLData
+	 */
+	public Consumer<SQLRow> getRowConsumer() {
+		return rowConsumer;
+	}
+	/**
+	 * The transaction to run, if this entry is a transaction rather than a single query. Transactions have no query text of their own.
+	 * 
+	 * @return The transaction, or null if this is a regular query
+	 */
+	public SQLTransactionData<?> getTransaction() {
+		return transaction;
+	}
+	/**
+	 * Whether or not someone is waiting on this query's result directly, through a future, rather than through the events.
+	 * 
+	 * @return true for async, streaming and transaction queries
+	 */
+	public boolean hasCaller() {
+		return future != null || transaction != null;
+	}
+	/**
+	 * Whether or not this query may be merged into a JDBC batch with identical queries next to it in the backlog.
+	 * Only unnamed-parameter writes qualify, since batches can't return result sets.
+	 * 
+	 * @return true if the query can be coalesced, false if not
+	 */
+	public boolean getCoalescable() {
+		return coalescable;
+	}
+	/**
+	 * Returns a copy of this data that will never be coalesced. Used to re-run the members of a failed batch one at a time.
+	 * 
+	 * @return A copy of this data with coalescing disabled
+	 */
+	public SQLQueueData uncoalesced() {
+		SQLQueueData retVal = new SQLQueueData(uuid, query, namedParams, unnamedParams, batchParams, parallel, false, future, rowConsumer);
+		retVal.queuedTime = queuedTime;
+		return retVal;
+	}
+	/**
+	 * Whether or not this query can be coalesced with another, queued right after it.
+	 * 
+	 * @param other The query queued after this one
+	 * @return true if both queries can share a single JDBC batch
+	 */
+	public boolean canCoalesce(SQLQueueData other) {
+		return other != null && coalescable && other.coalescable && parallel == other.parallel && query.equals(other.query);
+	}
 	
 	//private
-	
+	private static boolean isWrite(String query) {
+		if (query == null) {
+			return false;
+		}
+		
+		int start = 0;
+		while (start < query.length() && Character.isWhitespace(query.charAt(start))) {
+			start++;
+		}
+		
+		return query.regionMatches(true, start, "INSERT", 0, 6)
+			|| query.regionMatches(true, start, "UPDATE", 0, 6)
+			|| query.regionMatches(true, start, "DELETE", 0, 6)
+			|| query.regionMatches(true, start, "REPLACE", 0, 7);
+	}
 }
@@ -0,0 +1,133 @@
+package ninja.egg82.core;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+
+public class SQLRow {
+	//vars
+	
+	// The result set this row reads from. The row always reflects the result set's current position, so it's only valid inside the callback it was handed to
+	private ResultSet results = null;
+	// Column names and their java.sql.Types
+	private String[] columns = null;
+	private int[] types = null;
+	// Column name -> index lookup, built on first use
+	private Map<String, Integer> columnIndices = null;
+	
+	//constructor
+	public SQLRow(ResultSet results, String[] columns, int[] types) {
+		if (results == null) {
+			throw new IllegalArgumentException("results cannot be null.");
+		}
+		if (columns == null) {
+			throw new IllegalArgumentException("columns cannot be null.");
+		}
+		if (types == null || types.length != columns.length) {
+			throw new IllegalArgumentException("types must match columns.");
+		}
+		
+		this.results = results;
+		this.columns = columns;
+		this.types = types;
+	}
+	
+	//public
+	/**
+	 * Returns the column names of the row.
+	 * 
+	 * @return The column names, in result order
+	 */
+	public String[] getColumns() {
+		return columns;
+	}
+	public int getColumnCount() {
+		return columns.length;
+	}
+	/**
+	 * Returns the SQL type of a column.
+	 * 
+	 * @param column The zero-based column index
+	 * @return The column type, as defined in java.sql.Types
+	 */
+	public int getColumnType(int column) {
+		return types[column];
+	}
+	/**
+	 * Returns the index of a column by name.
+	 * 
+	 * @param name The column name
+	 * @return The zero-based column index, or -1 if the column doesn't exist
+	 */
+	public int getColumnIndex(String name) {
+		if (columnIndices == null) {
+			Map<String, Integer> indices = new HashMap<String, Integer>();
+			for (int i = columns.length - 1; i >= 0; i--) {
+				indices.put(columns[i], Integer.valueOf(i));
+			}
+			columnIndices = indices;
+		}
+		
+		Integer index = columnIndices.get(name);
+		return (index != null) ? index.intValue() : -1;
+	}
+	
+	// Column indices are zero-based, same as SQLData
+	public Object getObject(int column) throws SQLException {
+		return results.getObject(column + 1);
+	}
+	public Object getObject(String name) throws SQLException {
+		return results.getObject(getIndexOrThrow(name) + 1);
+	}
+	public String getString(int column) throws SQLException {
+		return results.getString(column + 1);
+	}
+	public boolean getBoolean(int column) throws SQLException {
+		return results.getBoolean(column + 1);
+	}
+	public int getInt(int column) throws SQLException {
+		return results.getInt(column + 1);
+	}
+	public long getLong(int column) throws SQLException {
+		return results.getLong(column + 1);
+	}
+	public double getDouble(int column) throws SQLException {
+		return results.getDouble(column + 1);
+	}
+	public byte[] getBytes(int column) throws SQLException {
+		return results.getBytes(column + 1);
+	}
+	/**
+	 * Whether or not the last column read was SQL NULL. Needed after reading primitives, which return 0/false for NULL.
+	 * 
+	 * @return true if the last value read was NULL
+	 * @throws SQLException If the underlying result set errors
+	 */
+	public boolean wasNull() throws SQLException {
+		return results.wasNull();
+	}
+	
+	/**
+	 * Copies the current row into a new array. Use this if you need to keep the row after the callback returns.
+	 * 
+	 * @return The values of the current row
+	 * @throws SQLException If the underlying result set errors
+	 */
+	public Object[] toArray() throws SQLException {
+		Object[] retVal = new Object[columns.length];
+		for (int i = 0; i < columns.length; i++) {
+			retVal[i] = results.getObject(i + 1);
+		}
+		return retVal;
+	}
+	
+	//private
+	private int getIndexOrThrow(String name) throws SQLException {
+		int index = getColumnIndex(name);
+		if (index == -1) {
+			throw new SQLException("Column \"" + name + "\" does not exist.");
+		}
+		return index;
+	}
+}
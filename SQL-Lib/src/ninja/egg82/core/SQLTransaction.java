@@ -0,0 +1,192 @@
+package ninja.egg82.core;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.function.Consumer;
+
+/**
+ * Runs statements on the connection a transaction is pinned to. Statements run right away, on the calling thread, and return their results directly.
+ * Only valid inside the ITransactionCallback it was handed to.
+ */
+public class SQLTransaction {
+	//vars
+	
+	// Statement cache of the pinned connection
+	private PreparedStatementCache cache = null;
+	// Whether or not named-parameter SQL is parsed with backslash escapes in string literals
+	private boolean backslashEscapes = false;
+	// Set once the callback returns, so a transaction that escaped the callback can't be used on a connection it no longer owns
+	private volatile boolean finished = false;
+	
+	//constructor
+	public SQLTransaction(PreparedStatementCache cache) {
+		this(cache, false);
+	}
+	public SQLTransaction(PreparedStatementCache cache, boolean backslashEscapes) {
+		if (cache == null) {
+			throw new IllegalArgumentException("cache cannot be null.");
+		}
+		
+		this.cache = cache;
+		this.backslashEscapes = backslashEscapes;
+	}
+	
+	//public
+	public SQLData query(String q, Object... queryParams) throws SQLException {
+		checkFinished();
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		
+		PreparedStatement command = cache.prepare(q);
+		try {
+			if (queryParams != null) {
+				for (int i = 0; i < queryParams.length; i++) {
+					command.setObject(i + 1, queryParams[i]);
+				}
+			}
+			SQLData retVal = execute(command);
+			cache.release(command);
+			return retVal;
+		} catch (SQLException ex) {
+			cache.invalidate(command);
+			throw ex;
+		}
+	}
+	public SQLData query(String q, Map<String, Object> namedQueryParams) throws SQLException {
+		checkFinished();
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (namedQueryParams == null) {
+			throw new IllegalArgumentException("namedQueryParams cannot be null.");
+		}
+		
+		NamedParameterStatement command = new NamedParameterStatement(cache, q, backslashEscapes);
+		try {
+			for (Entry<String, Object> kvp : namedQueryParams.entrySet()) {
+				command.setObject(kvp.getKey(), kvp.getValue());
+			}
+			SQLData retVal = execute(command.getPreparedStatement());
+			cache.release(command.getPreparedStatement());
+			return retVal;
+		} catch (SQLException ex) {
+			cache.invalidate(command.getPreparedStatement());
+			throw ex;
+		}
+	}
+	/**
+	 * Sends rows as a single JDBC batch, inside the transaction.
+	 * 
+	 * @param q The query to run for each row
+	 * @param rows The parameters of each row
+	 * @return The total number of records affected, with the per-row counts in batchRecordsAffected
+	 * @throws SQLException If the batch failed
+	 */
+	public SQLData batchQuery(String q, List<Object[]> rows) throws SQLException {
+		checkFinished();
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (rows == null) {
+			throw new IllegalArgumentException("rows cannot be null.");
+		}
+		
+		PreparedStatement command = cache.prepare(q);
+		try {
+			for (Object[] params : rows) {
+				if (params != null) {
+					for (int i = 0; i < params.length; i++) {
+						command.setObject(i + 1, params[i]);
+					}
+				}
+				command.addBatch();
+			}
+			
+			SQLData retVal = new SQLData();
+			retVal.columns = new String[0];
+			retVal.data = new Object[0][];
+			retVal.batchRecordsAffected = command.executeBatch();
+			retVal.recordsAffected = 0;
+			for (int i = 0; i < retVal.batchRecordsAffected.length; i++) {
+				if (retVal.batchRecordsAffected[i] > 0) {
+					retVal.recordsAffected += retVal.batchRecordsAffected[i];
+				}
+			}
+			return retVal;
+		} finally {
+			// Batched statements never go back into the cache, some drivers keep the old batch around
+			cache.invalidate(command);
+		}
+	}
+	
+	/**
+	 * Inserts a large number of rows into a single table, as fast as the database allows. See SQLBulkLoader.
+	 * 
+	 * @param table The table to insert into
+	 * @param columns The columns each row has values for, in order
+	 * @param rows The rows to insert
+	 * @param progress Called with the number of rows sent so far, as they're sent. May be null
+	 * @return The total number of records inserted
+	 * @throws SQLException If any of the rows could not be inserted
+	 */
+	public SQLData bulkInsert(String table, String[] columns, Iterator<Object[]> rows, Consumer<SQLBulkProgress> progress) throws SQLException {
+		checkFinished();
+		return new SQLBulkLoader(cache, progress).load(table, columns, rows);
+	}
+	
+	/**
+	 * Marks the transaction as finished. Called once the callback returns.
+	 */
+	public void finish() {
+		finished = true;
+	}
+	
+	//private
+	private void checkFinished() throws SQLException {
+		if (finished) {
+			throw new SQLException("Transaction is already finished.");
+		}
+	}
+	
+	private static SQLData execute(PreparedStatement command) throws SQLException {
+		SQLData retVal = new SQLData();
+		
+		if (!command.execute()) {
+			retVal.columns = new String[0];
+			retVal.data = new Object[0][];
+			retVal.recordsAffected = command.getUpdateCount();
+			return retVal;
+		}
+		
+		ResultSet results = command.getResultSet();
+		ResultSetMetaData metaData = results.getMetaData();
+		retVal.columns = new String[metaData.getColumnCount()];
+		for (int i = 0; i < retVal.columns.length; i++) {
+			retVal.columns[i] = metaData.getColumnName(i + 1);
+		}
+		
+		// Read every page of results, same as queued queries
+		List<Object[]> rows = new ArrayList<Object[]>();
+		while (results != null) {
+			while (results.next()) {
+				Object[] row = new Object[retVal.columns.length];
+				for (int i = 0; i < row.length; i++) {
+					row[i] = results.getObject(i + 1);
+				}
+				rows.add(row);
+			}
+			results = (command.getMoreResults()) ? command.getResultSet() : null;
+		}
+		
+		retVal.data = rows.toArray(new Object[0][]);
+		return retVal;
+	}
+}
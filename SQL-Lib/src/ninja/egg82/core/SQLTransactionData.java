@@ -0,0 +1,47 @@
+package ninja.egg82.core;
+
+import java.util.concurrent.CompletableFuture;
+
+public class SQLTransactionData<T> {
+	//vars
+	private ITransactionCallback<T> callback = null;
+	private CompletableFuture<T> future = null;
+	
+	//constructor
+	public SQLTransactionData(ITransactionCallback<T> callback, CompletableFuture<T> future) {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null.");
+		}
+		if (future == null) {
+			throw new IllegalArgumentException("future cannot be null.");
+		}
+		
+		this.callback = callback;
+		this.future = future;
+	}
+	
+	//public
+	/**
+	 * Runs the callback and holds on to its result. The result isn't handed out until complete is called, after the commit.
+	 * 
+	 * @param transaction The transaction to hand to the callback
+	 * @return The result of the callback
+	 * @throws Exception If the callback threw
+	 */
+	public T run(SQLTransaction transaction) throws Exception {
+		return callback.run(transaction);
+	}
+	public void complete(T result) {
+		future.complete(result);
+	}
+	public void fail(Throwable ex) {
+		future.completeExceptionally(ex);
+	}
+	
+	public CompletableFuture<T> getFuture() {
+		return future;
+	}
+	
+	//private
+	
+}
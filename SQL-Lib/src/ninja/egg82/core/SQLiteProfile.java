@@ -0,0 +1,157 @@
+package ninja.egg82.core;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * PRAGMA settings applied to every SQLite connection as it's opened. Anything left unset keeps SQLite's default.
+ */
+public class SQLiteProfile {
+	//vars
+	private static final List<String> JOURNAL_MODES = Arrays.asList("DELETE", "TRUNCATE", "PERSIST", "MEMORY", "WAL", "OFF");
+	private static final List<String> SYNCHRONOUS_MODES = Arrays.asList("OFF", "NORMAL", "FULL", "EXTRA");
+	private static final List<String> TEMP_STORES = Arrays.asList("DEFAULT", "FILE", "MEMORY");
+	
+	// Unset values are null or -1. PRAGMA values can't be bound as parameters, so everything is checked before it gets anywhere near SQL
+	private String journalMode = null;
+	private String synchronous = null;
+	private long mmapSize = -1L;
+	private Integer cacheSize = null;
+	private String tempStore = null;
+	private int busyTimeout = -1;
+	
+	//constructor
+	public SQLiteProfile() {
+		
+	}
+	
+	//public
+	/**
+	 * SQLite's own defaults: rollback journal, synchronous=FULL. Nothing is changed.
+	 * 
+	 * @return A new, empty profile
+	 */
+	public static SQLiteProfile defaults() {
+		return new SQLiteProfile();
+	}
+	/**
+	 * WAL journaling with synchronous=NORMAL, 256MB of memory-mapped I/O, a 64MB page cache and temp tables in memory.
+	 * WAL lets readers run alongside the (single) writer. With synchronous=NORMAL a power loss can lose the last few commits, but never corrupts the database.
+	 * 
+	 * @return A new profile tuned for throughput
+	 */
+	public static SQLiteProfile performance() {
+		return new SQLiteProfile().setJournalMode("WAL").setSynchronous("NORMAL").setMmapSize(256L * 1024L * 1024L).setCacheSize(-64 * 1024).setTempStore("MEMORY").setBusyTimeout(5000);
+	}
+	
+	public SQLiteProfile setJournalMode(String journalMode) {
+		this.journalMode = checkValue("journalMode", journalMode, JOURNAL_MODES);
+		return this;
+	}
+	public SQLiteProfile setSynchronous(String synchronous) {
+		this.synchronous = checkValue("synchronous", synchronous, SYNCHRONOUS_MODES);
+		return this;
+	}
+	/**
+	 * @param mmapSize Max bytes of the database to memory-map, 0 to disable or -1 to leave as-is
+	 * @return This profile
+	 */
+	public SQLiteProfile setMmapSize(long mmapSize) {
+		this.mmapSize = (mmapSize < -1L) ? -1L : mmapSize;
+		return this;
+	}
+	/**
+	 * @param cacheSize Page cache size. Positive is a number of pages, negative is a number of KiB, same as PRAGMA cache_size
+	 * @return This profile
+	 */
+	public SQLiteProfile setCacheSize(int cacheSize) {
+		this.cacheSize = Integer.valueOf(cacheSize);
+		return this;
+	}
+	public SQLiteProfile setTempStore(String tempStore) {
+		this.tempStore = checkValue("tempStore", tempStore, TEMP_STORES);
+		return this;
+	}
+	/**
+	 * @param busyTimeout How long to wait on a locked database before giving up with SQLITE_BUSY, in milliseconds. -1 to leave as-is
+	 * @return This profile
+	 */
+	public SQLiteProfile setBusyTimeout(int busyTimeout) {
+		this.busyTimeout = (busyTimeout < -1) ? -1 : busyTimeout;
+		return this;
+	}
+	
+	public String getJournalMode() {
+		return journalMode;
+	}
+	public String getSynchronous() {
+		return synchronous;
+	}
+	public long getMmapSize() {
+		return mmapSize;
+	}
+	public Integer getCacheSize() {
+		return cacheSize;
+	}
+	public String getTempStore() {
+		return tempStore;
+	}
+	public int getBusyTimeout() {
+		return busyTimeout;
+	}
+	
+	/**
+	 * Applies the profile to a freshly-opened connection.
+	 * 
+	 * @param conn The connection to apply the profile to
+	 * @param readOnly Whether or not the connection should refuse writes. Read-only connections leave the journal mode alone, since changing it needs a write lock
+	 * @throws SQLException If a PRAGMA failed
+	 */
+	public void apply(Connection conn, boolean readOnly) throws SQLException {
+		if (conn == null) {
+			throw new IllegalArgumentException("conn cannot be null.");
+		}
+		
+		try (Statement statement = conn.createStatement()) {
+			// Busy timeout first, so the rest can wait out a writer holding the lock
+			if (busyTimeout > -1) {
+				statement.execute("PRAGMA busy_timeout = " + busyTimeout);
+			}
+			if (journalMode != null && !readOnly) {
+				statement.execute("PRAGMA journal_mode = " + journalMode);
+			}
+			if (synchronous != null) {
+				statement.execute("PRAGMA synchronous = " + synchronous);
+			}
+			if (mmapSize > -1L) {
+				statement.execute("PRAGMA mmap_size = " + mmapSize);
+			}
+			if (cacheSize != null) {
+				statement.execute("PRAGMA cache_size = " + cacheSize.intValue());
+			}
+			if (tempStore != null) {
+				statement.execute("PRAGMA temp_store = " + tempStore);
+			}
+			if (readOnly) {
+				statement.execute("PRAGMA query_only = ON");
+			}
+		}
+	}
+	
+	//private
+	private static String checkValue(String name, String value, List<String> allowed) {
+		if (value == null) {
+			return null;
+		}
+		
+		String retVal = value.trim().toUpperCase(Locale.ROOT);
+		if (!allowed.contains(retVal)) {
+			throw new IllegalArgumentException(name + " must be one of " + allowed + ".");
+		}
+		return retVal;
+	}
+}
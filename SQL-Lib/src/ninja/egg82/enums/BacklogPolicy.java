@@ -0,0 +1,8 @@
+package ninja.egg82.enums;
+
+public enum BacklogPolicy {
+	BLOCK,
+	FAIL_FAST,
+	DROP_OLDEST_PARALLEL,
+	SPILL_TO_DISK
+}
@@ -0,0 +1,10 @@
+package ninja.egg82.enums;
+
+public enum CircuitState {
+	// Connected and sending queries
+	CLOSED,
+	// The database is unreachable. Queries stay queued until it's back
+	OPEN,
+	// Checking whether or not the database is back
+	HALF_OPEN
+}
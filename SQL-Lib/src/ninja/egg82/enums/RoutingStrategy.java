@@ -0,0 +1,6 @@
+package ninja.egg82.enums;
+
+public enum RoutingStrategy {
+	ROUND_ROBIN,
+	LEAST_LOADED
+}
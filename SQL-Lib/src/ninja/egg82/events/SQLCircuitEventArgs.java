@@ -0,0 +1,49 @@
+package ninja.egg82.events;
+
+import ninja.egg82.enums.CircuitState;
+import ninja.egg82.patterns.events.EventArgs;
+
+public class SQLCircuitEventArgs extends EventArgs {
+	//vars
+	private CircuitState previousState = null;
+	private CircuitState state = null;
+	private int attempts = 0;
+	private long nextAttemptMillis = 0L;
+	
+	//constructor
+	public SQLCircuitEventArgs(CircuitState previousState, CircuitState state, int attempts, long nextAttemptMillis) {
+		super();
+		
+		this.previousState = previousState;
+		this.state = state;
+		this.attempts = attempts;
+		this.nextAttemptMillis = nextAttemptMillis;
+	}
+	
+	//public
+	public CircuitState getPreviousState() {
+		return previousState;
+	}
+	public CircuitState getState() {
+		return state;
+	}
+	/**
+	 * The number of failed reconnect attempts so far in this outage.
+	 * 
+	 * @return The number of failed attempts, 0 once the circuit closes
+	 */
+	public int getAttempts() {
+		return attempts;
+	}
+	/**
+	 * How long until the next reconnect attempt, when the circuit opens.
+	 * 
+	 * @return The delay before the next attempt in milliseconds, or 0 if none is scheduled
+	 */
+	public long getNextAttemptMillis() {
+		return nextAttemptMillis;
+	}
+	
+	//private
+	
+}
@@ -0,0 +1,24 @@
+package ninja.egg82.events;
+
+import ninja.egg82.core.SQLMetricsSnapshot;
+import ninja.egg82.patterns.events.EventArgs;
+
+public class SQLMetricsEventArgs extends EventArgs {
+	//vars
+	private SQLMetricsSnapshot metrics = null;
+	
+	//constructor
+	public SQLMetricsEventArgs(SQLMetricsSnapshot metrics) {
+		super();
+		
+		this.metrics = metrics;
+	}
+	
+	//public
+	public SQLMetricsSnapshot getMetrics() {
+		return metrics;
+	}
+	
+	//private
+	
+}
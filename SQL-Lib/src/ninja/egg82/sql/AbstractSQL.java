@@ -0,0 +1,2067 @@
+package ninja.egg82.sql;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ninja.egg82.concurrent.DynamicConcurrentDeque;
+import ninja.egg82.concurrent.FixedConcurrentDeque;
+import ninja.egg82.concurrent.IConcurrentDeque;
+import ninja.egg82.core.ITransactionCallback;
+import ninja.egg82.core.NamedParameterStatement;
+import ninja.egg82.core.PreparedStatementCache;
+import ninja.egg82.core.SQLBulkProgress;
+import ninja.egg82.core.SQLColumnarBuilder;
+import ninja.egg82.core.SQLColumnarData;
+import ninja.egg82.core.SQLData;
+import ninja.egg82.core.SQLError;
+import ninja.egg82.core.SQLJournal;
+import ninja.egg82.core.SQLMetrics;
+import ninja.egg82.core.SQLMetricsSnapshot;
+import ninja.egg82.core.SQLQueueData;
+import ninja.egg82.core.SQLRow;
+import ninja.egg82.core.SQLTransaction;
+import ninja.egg82.core.SQLTransactionData;
+import ninja.egg82.enums.BacklogPolicy;
+import ninja.egg82.enums.BaseSQLType;
+import ninja.egg82.enums.CircuitState;
+import ninja.egg82.events.SQLCircuitEventArgs;
+import ninja.egg82.events.SQLEventArgs;
+import ninja.egg82.events.SQLMetricsEventArgs;
+import ninja.egg82.patterns.events.EventArgs;
+import ninja.egg82.patterns.events.EventHandler;
+import ninja.egg82.sql.providers.IConnectionProvider;
+import ninja.egg82.utils.ThreadUtil;
+
+/**
+ * The query engine shared by all JDBC-backed drivers: queueing, dispatch, statement caching, batching and streaming.
+ * Drivers only decide where connections come from, by handing an IConnectionProvider to connect.
+ */
+public abstract class AbstractSQL implements ISQL {
+	//vars
+	
+	// Event handlers
+	private final EventHandler<EventArgs> connect = new EventHandler<EventArgs>();
+	private final EventHandler<EventArgs> disconnect = new EventHandler<EventArgs>();
+	private final EventHandler<SQLEventArgs> data = new EventHandler<SQLEventArgs>();
+	private final EventHandler<SQLEventArgs> error = new EventHandler<SQLEventArgs>();
+	private final EventHandler<SQLMetricsEventArgs> metrics = new EventHandler<SQLMetricsEventArgs>();
+	private final EventHandler<SQLCircuitEventArgs> circuitChange = new EventHandler<SQLCircuitEventArgs>();
+	
+	// free DB connection pool, where connections are taken from
+	private IConcurrentDeque<Connection> freeConnections = null;
+	// used DB connection pool, where connections are added while in use
+	private IConcurrentDeque<Connection> usedConnections = new DynamicConcurrentDeque<Connection>();
+	
+	// Query backlog/queue - for queuing queries and ensuring data consistency
+	private IConcurrentDeque<SQLQueueData> backlog = new DynamicConcurrentDeque<SQLQueueData>();
+	// Number of queries in the backlog. Kept separately because the deque's size() walks the whole thing
+	private AtomicInteger backlogSize = new AtomicInteger(0);
+	// Max number of queries in the backlog, 0 for unbounded, and what to do with new queries once it's full
+	private volatile int backlogCapacity = 0;
+	private volatile BacklogPolicy backlogPolicy = BacklogPolicy.BLOCK;
+	// Callers waiting for room in the backlog, when using BacklogPolicy.BLOCK
+	private Lock capacityLock = new ReentrantLock();
+	private Condition spaceAvailable = capacityLock.newCondition();
+	private AtomicInteger blockedCallers = new AtomicInteger(0);
+	// Overflow journal, when using BacklogPolicy.SPILL_TO_DISK
+	private volatile SQLJournal journal = null;
+	// Only one thread moves queries from the journal to the backlog at a time, so they stay in order
+	private Lock replayLock = new ReentrantLock();
+	// Journal reads that failed in a row (disk errors..), and when to try again. Dispatchers wait this out instead of spinning on a journal they can't read
+	private AtomicInteger replayFailures = new AtomicInteger(0);
+	private volatile long replayRetryNanos = 0L;
+	
+	// Thread pool for event dispatch
+	private ScheduledExecutorService threadPool = null;
+	// A lock that, when locked, tells the current send threads to wait for the current blocking query to finish
+	private Lock parallelLock = new ReentrantLock();
+	// Dispatchers sleep on this condition until a query is queued
+	private Lock dispatchLock = new ReentrantLock();
+	private Condition workAvailable = dispatchLock.newCondition();
+	// One dispatcher thread per connection, each sending queries on its own connection
+	private ExecutorService dispatchPool = null;
+	// Name given to the thread pool
+	private String threadName = null;
+	
+	// Connected state. Atomic because multithreading is HARD
+	private AtomicBoolean connected = new AtomicBoolean(false);
+	// Where connections come from. Set on connect
+	private IConnectionProvider provider = null;
+	
+	// Circuit breaker around the database. Dispatchers hold off while it's open, and a single supervisor task probes the database until it's back
+	private AtomicReference<CircuitState> circuit = new AtomicReference<CircuitState>(CircuitState.CLOSED);
+	// Bumped every time the circuit opens, so dispatchers know to check their connection before using it again
+	private AtomicInteger circuitGeneration = new AtomicInteger(0);
+	// Failed probes in the current outage, which drives the backoff
+	private AtomicInteger reconnectAttempts = new AtomicInteger(0);
+	// Probe backoff. Doubles every failed attempt, up to the max, with jitter so a fleet of clients doesn't reconnect in lockstep
+	private volatile long reconnectInitialMillis = 250L;
+	private volatile long reconnectMaxMillis = 30000L;
+	// Connections opened by a successful probe, waiting for a dispatcher that needs one
+	private IConcurrentDeque<Connection> spareConnections = new DynamicConcurrentDeque<Connection>();
+	
+	// Prepared statement cache for each pooled connection. Statements are tied to the connection that created them
+	private Map<Connection, PreparedStatementCache> statementCaches = new ConcurrentHashMap<Connection, PreparedStatementCache>();
+	// Max number of statements cached per connection
+	private int statementCacheSize = PreparedStatementCache.DEFAULT_CAPACITY;
+	// Cache counters, shared between all connections so they can be used to size the cache
+	private AtomicLong statementCacheHits = new AtomicLong(0L);
+	private AtomicLong statementCacheMisses = new AtomicLong(0L);
+	
+	// Whether or not identical writes queued back-to-back are merged into a single JDBC batch
+	private AtomicBoolean coalesce = new AtomicBoolean(false);
+	// Max number of rows sent in a single JDBC batch
+	private volatile int maxBatchSize = 1000;
+	// How long a coalesced batch may wait for more rows before being sent
+	private volatile long lingerMillis = 0L;
+	// Fetch size used for streaming queries, so rows are pulled from the server in chunks rather than all at once
+	private volatile int streamFetchSize = 1000;
+	// How many times a transaction is retried after a deadlock or SQLITE_BUSY, and how long to wait before the first retry. The wait doubles every retry
+	private volatile int transactionRetries = 3;
+	private volatile long transactionBackoffMillis = 50L;
+	// Whether or not a backslash escapes the next character in string literals when parsing named parameters. Null to go by getType() (on for MySQL)
+	private volatile Boolean backslashEscapes = null;
+	
+	// Query metrics. Recording is lock-free, so it's always on
+	private SQLMetrics queryMetrics = new SQLMetrics();
+	// How often the metrics event fires, 0 to disable
+	private volatile long metricsInterval = 0L;
+	private ScheduledFuture<?> metricsFuture = null;
+	private Lock metricsLock = new ReentrantLock();
+	
+	//constructor
+	protected AbstractSQL(int numConnections, int statementCacheSize, String threadName) {
+		if (numConnections < 1) {
+			numConnections = 1;
+		}
+		if (statementCacheSize < 0) {
+			statementCacheSize = 0;
+		}
+		this.statementCacheSize = statementCacheSize;
+		freeConnections = new FixedConcurrentDeque<Connection>(numConnections);
+		
+		this.threadName = threadName;
+	}
+	
+	//public
+	/**
+	 * Connects using connections from the given provider. Any existing connection is closed first.
+	 * 
+	 * @param provider The provider to open connections with. It's closed again on disconnect
+	 */
+	public void connect(IConnectionProvider provider) {
+		connect(provider, getClass().getSimpleName());
+	}
+	
+	@SuppressWarnings("resource")
+	public void disconnect() {
+		// Set connected state to false, or return if it's already false
+		if (!connected.getAndSet(false)) {
+			return;
+		}
+		
+		// Wake up idle dispatchers so they see the new state, and give busy ones time to finish what they're sending
+		dispatchLock.lock();
+		try {
+			workAvailable.signalAll();
+		} finally {
+			dispatchLock.unlock();
+		}
+		try {
+			dispatchPool.shutdown();
+			if (!dispatchPool.awaitTermination(15000L, TimeUnit.MILLISECONDS)) {
+				dispatchPool.shutdownNow();
+			}
+		} catch (Exception ex) {
+			
+		}
+		
+		// Shutdown the send threads gracefully, then not-so-gracefully after 15 seconds
+		try {
+			threadPool.shutdown();
+			if (!threadPool.awaitTermination(15000L, TimeUnit.MILLISECONDS)) {
+				threadPool.shutdownNow();
+			}
+		} catch (Exception ex) {
+			
+		}
+		// Nothing queued is going to be sent anymore. Async callers get an exception rather than waiting forever
+		// Everything else goes back into the journal if there is one, to be sent on the next connect
+		List<SQLQueueData> unsent = new ArrayList<SQLQueueData>();
+		SQLQueueData queued = pollBacklog();
+		while (queued != null) {
+			if (queued.getTransaction() != null) {
+				queued.getTransaction().fail(new IllegalStateException("Disconnected before the transaction could be sent."));
+			} else if (queued.getFuture() != null) {
+				queued.getFuture().completeExceptionally(new IllegalStateException("Disconnected before the query could be sent."));
+			} else {
+				unsent.add(queued);
+			}
+			queued = pollBacklog();
+		}
+		if (!unsent.isEmpty()) {
+			boolean spilled = false;
+			replayLock.lock();
+			try {
+				if (journal != null) {
+					journal.prepend(unsent);
+					spilled = true;
+				}
+			} catch (Exception ex) {
+				
+			} finally {
+				replayLock.unlock();
+			}
+			if (!spilled) {
+				for (SQLQueueData queryData : unsent) {
+					fail(queryData, new IllegalStateException("Disconnected before the query could be sent."));
+				}
+			}
+		}
+		
+		// Close cached statements before their connections go away
+		PreparedStatementCache.clearAll(statementCaches);
+		
+		// Kill connections in use (hopefully zero)
+		while (!usedConnections.isEmpty()) {
+			Connection conn = usedConnections.pollLast();
+			
+			if (conn != null) {
+				// Close the connection gracefully
+				try {
+					conn.close();
+				} catch (Exception ex) {
+					// If this exception is ever raised something is really fucked. We'll ignore it.
+				}
+			} else {
+				break;
+			}
+		}
+		// Kill connections not in use
+		while (!freeConnections.isEmpty()) {
+			Connection conn = freeConnections.pollLast();
+			
+			if (conn != null) {
+				// Close the connection gracefully
+				try {
+					conn.close();
+				} catch (Exception ex) {
+					// If this exception is ever raised something is really fucked. We'll ignore it.
+				}
+			} else {
+				break;
+			}
+		}
+		
+		// Kill connections opened by the supervisor that nobody picked up
+		while (!spareConnections.isEmpty()) {
+			Connection conn = spareConnections.pollLast();
+			
+			if (conn != null) {
+				try {
+					conn.close();
+				} catch (Exception ex) {
+					
+				}
+			} else {
+				break;
+			}
+		}
+		
+		// Let go of the provider itself (pools, anchor connections, etc)
+		provider.close();
+		
+		disconnect.invoke(this, EventArgs.EMPTY);
+	}
+	
+	public UUID query(String q, Object... queryParams) {
+		return query(q, false, queryParams);
+	}
+	public UUID parallelQuery(String q, Object... queryParams) {
+		return query(q, true, queryParams);
+	}
+	public UUID query(String q, Map<String, Object> namedQueryParams) {
+		return query(q, false, namedQueryParams);
+	}
+	public UUID parallelQuery(String q, Map<String, Object> namedQueryParams) {
+		return query(q, true, namedQueryParams);
+	}
+	public UUID batchQuery(String q, List<Object[]> rows) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (rows == null) {
+			throw new IllegalArgumentException("rows cannot be null.");
+		}
+		
+		UUID u = UUID.randomUUID();
+		
+		// Grab a new data object and add it to the send queue. The rows are copied so the caller can re-use their list
+		SQLQueueData queryData = new SQLQueueData(u, q, new ArrayList<Object[]>(rows), false);
+		enqueue(queryData);
+		
+		return u;
+	}
+	
+	public CompletableFuture<SQLData> queryAsync(String q, Object... queryParams) {
+		return queryAsync(q, false, queryParams);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Object... queryParams) {
+		return queryAsync(q, true, queryParams);
+	}
+	public CompletableFuture<SQLData> queryAsync(String q, Map<String, Object> namedQueryParams) {
+		return queryAsync(q, false, namedQueryParams);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Map<String, Object> namedQueryParams) {
+		return queryAsync(q, true, namedQueryParams);
+	}
+	public CompletableFuture<SQLData> batchQueryAsync(String q, List<Object[]> rows) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (rows == null) {
+			throw new IllegalArgumentException("rows cannot be null.");
+		}
+		
+		CompletableFuture<SQLData> future = new CompletableFuture<SQLData>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(null, q, new ArrayList<Object[]>(rows), false, future);
+		enqueue(queryData);
+		
+		return future;
+	}
+	
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		return streamQuery(q, false, rowConsumer, queryParams);
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		return streamQuery(q, true, rowConsumer, queryParams);
+	}
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		return streamQuery(q, false, rowConsumer, namedQueryParams);
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		return streamQuery(q, true, rowConsumer, namedQueryParams);
+	}
+	
+	// Columnar queries are streamed straight into primitive column arrays, so the row-based result is never built
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Object... queryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, false, builder, queryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Object... queryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, true, builder, queryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Map<String, Object> namedQueryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, false, builder, namedQueryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Map<String, Object> namedQueryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, true, builder, namedQueryParams).thenApply(d -> builder.build(d.columns));
+	}
+	
+	/**
+	 * Runs the callback inside a transaction, on a single connection. The transaction is queued in order with everything else and runs serialized.
+	 * It's committed once the callback returns and rolled back if it throws. Deadlocks and SQLITE_BUSY are retried, so the callback may run more than once.
+	 * 
+	 * @param callback The statements to run
+	 * @return A future completed with the callback's result after the commit, or exceptionally after the rollback
+	 */
+	public <T> CompletableFuture<T> transaction(ITransactionCallback<T> callback) {
+		if (callback == null) {
+			throw new IllegalArgumentException("callback cannot be null.");
+		}
+		
+		CompletableFuture<T> future = new CompletableFuture<T>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(new SQLTransactionData<T>(callback, future));
+		enqueue(queryData);
+		
+		return future;
+	}
+	/**
+	 * Runs a list of queries inside a single transaction.
+	 * 
+	 * @param queries The queries to run, in order
+	 * @param queryParams The parameters of each query, or null if none of them have parameters
+	 * @return A future completed with the result of each query after the commit
+	 */
+	public CompletableFuture<List<SQLData>> transaction(List<String> queries, List<Object[]> queryParams) {
+		if (queries == null) {
+			throw new IllegalArgumentException("queries cannot be null.");
+		}
+		if (queryParams != null && queryParams.size() != queries.size()) {
+			throw new IllegalArgumentException("queryParams must match queries.");
+		}
+		
+		// Copied so the caller can re-use their lists
+		List<String> q = new ArrayList<String>(queries);
+		List<Object[]> params = (queryParams != null) ? new ArrayList<Object[]>(queryParams) : null;
+		return transaction(new ITransactionCallback<List<SQLData>>() {
+			public List<SQLData> run(SQLTransaction transaction) throws Exception {
+				List<SQLData> retVal = new ArrayList<SQLData>();
+				for (int i = 0; i < q.size(); i++) {
+					retVal.add(transaction.query(q.get(i), (params != null) ? params.get(i) : null));
+				}
+				return retVal;
+			}
+		});
+	}
+	
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows) {
+		return bulkInsert(table, columns, rows, null);
+	}
+	/**
+	 * Inserts a large number of rows into a single table, in one transaction. On MySQL the rows are streamed through LOAD DATA LOCAL INFILE, elsewhere they're sent as multi-row INSERTs.
+	 * The rows are read from the iterator on the dispatcher thread as they're sent, so they never all have to be in memory at once.
+	 * 
+	 * @param table The table to insert into
+	 * @param columns The columns each row has values for, in order
+	 * @param rows The rows to insert. Each row needs exactly one value per column
+	 * @param progress Called on the dispatcher thread with the number of rows sent so far, and the throughput. May be null
+	 * @return A future completed with the total number of records inserted, after the commit
+	 */
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows, Consumer<SQLBulkProgress> progress) {
+		if (table == null || table.isEmpty()) {
+			throw new IllegalArgumentException("table cannot be null or empty.");
+		}
+		if (columns == null || columns.length == 0) {
+			throw new IllegalArgumentException("columns cannot be null or empty.");
+		}
+		if (rows == null) {
+			throw new IllegalArgumentException("rows cannot be null.");
+		}
+		
+		String[] c = columns.clone();
+		AtomicBoolean started = new AtomicBoolean(false);
+		return transaction(tx -> {
+			// The iterator can only be read once, so a transaction that's retried (after a deadlock or a lost connection) has nothing left to send
+			if (!started.compareAndSet(false, true)) {
+				throw new SQLException("Bulk inserts can't be retried, the rows have already been read.");
+			}
+			return tx.bulkInsert(table, c, rows, progress);
+		});
+	}
+	
+	public boolean isConnected() {
+		return connected.get();
+	}
+	public boolean isBusy() {
+		return (usedConnections.size() > 0) ? true : false;
+	}
+	
+	public long getStatementCacheHits() {
+		return statementCacheHits.get();
+	}
+	public long getStatementCacheMisses() {
+		return statementCacheMisses.get();
+	}
+	
+	public void setBatchCoalescing(boolean enabled, int maxBatchSize, long lingerMillis) {
+		if (maxBatchSize < 1) {
+			maxBatchSize = 1;
+		}
+		if (lingerMillis < 0L) {
+			lingerMillis = 0L;
+		}
+		
+		this.maxBatchSize = maxBatchSize;
+		this.lingerMillis = lingerMillis;
+		coalesce.set(enabled);
+	}
+	public void setStreamFetchSize(int fetchSize) {
+		if (fetchSize < 1) {
+			fetchSize = 1;
+		}
+		streamFetchSize = fetchSize;
+	}
+	public void setBackslashEscapes(boolean enabled) {
+		backslashEscapes = Boolean.valueOf(enabled);
+	}
+	public void setTransactionRetries(int maxRetries, long backoffMillis) {
+		if (maxRetries < 0) {
+			maxRetries = 0;
+		}
+		if (backoffMillis < 0L) {
+			backoffMillis = 0L;
+		}
+		
+		transactionRetries = maxRetries;
+		transactionBackoffMillis = backoffMillis;
+	}
+	/**
+	 * Sets how long to wait between attempts to reach the database after it's been lost. The wait doubles every failed attempt, with jitter.
+	 * 
+	 * @param initialMillis The wait before the first attempt
+	 * @param maxMillis The longest the wait is allowed to get
+	 */
+	public void setReconnectBackoff(long initialMillis, long maxMillis) {
+		if (initialMillis < 1L) {
+			initialMillis = 1L;
+		}
+		if (maxMillis < initialMillis) {
+			maxMillis = initialMillis;
+		}
+		
+		reconnectInitialMillis = initialMillis;
+		reconnectMaxMillis = maxMillis;
+	}
+	public CircuitState getCircuitState() {
+		return circuit.get();
+	}
+	
+	public void setBacklogLimit(int capacity, BacklogPolicy policy) {
+		setBacklogLimit(capacity, policy, null);
+	}
+	/**
+	 * Limits the number of queries waiting to be sent. Queries already queued are kept, even if there's more of them than the new limit.
+	 * 
+	 * @param capacity The max number of queued queries, or 0 for no limit
+	 * @param policy What to do with new queries once the backlog is full
+	 * @param journalFile Where to spill queries to, for BacklogPolicy.SPILL_TO_DISK. Anything left in it from a previous run is sent on connect
+	 */
+	public void setBacklogLimit(int capacity, BacklogPolicy policy, File journalFile) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy cannot be null.");
+		}
+		if (policy == BacklogPolicy.SPILL_TO_DISK && journalFile == null) {
+			throw new IllegalArgumentException("journalFile cannot be null when spilling to disk.");
+		}
+		if (capacity < 0) {
+			capacity = 0;
+		}
+		
+		SQLJournal newJournal = null;
+		if (policy == BacklogPolicy.SPILL_TO_DISK) {
+			try {
+				newJournal = new SQLJournal(journalFile);
+			} catch (Exception ex) {
+				throw new RuntimeException("Could not open journal.", ex);
+			}
+		}
+		
+		// Swap the journal under the replay lock, so nobody is halfway through reading the old one. Anything left in the old journal stays on disk
+		replayLock.lock();
+		try {
+			if (journal != null) {
+				journal.close();
+			}
+			journal = newJournal;
+			replayFailures.set(0);
+		} finally {
+			replayLock.unlock();
+		}
+		
+		backlogPolicy = policy;
+		backlogCapacity = capacity;
+		
+		// Let blocked callers re-check against the new capacity
+		capacityLock.lock();
+		try {
+			spaceAvailable.signalAll();
+		} finally {
+			capacityLock.unlock();
+		}
+		
+		if (connected.get()) {
+			signalWork();
+		}
+	}
+	public int getBacklogSize() {
+		return backlogSize.get();
+	}
+	
+	public SQLMetricsSnapshot getMetrics() {
+		SQLJournal currentJournal = journal;
+		return queryMetrics.snapshot(freeConnections.size(), usedConnections.size(), backlogSize.get(), (currentJournal != null) ? currentJournal.size() : 0);
+	}
+	public void resetMetrics() {
+		queryMetrics.reset();
+	}
+	public void setMetricsInterval(long intervalMillis) {
+		if (intervalMillis < 0L) {
+			intervalMillis = 0L;
+		}
+		
+		metricsInterval = intervalMillis;
+		if (connected.get()) {
+			scheduleMetrics();
+		}
+	}
+	
+	public EventHandler<EventArgs> onConnect() {
+		return connect;
+	}
+	public EventHandler<EventArgs> onDisconnect() {
+		return disconnect;
+	}
+	public EventHandler<SQLEventArgs> onData() {
+		return data;
+	}
+	public EventHandler<SQLEventArgs> onError() {
+		return error;
+	}
+	public EventHandler<SQLMetricsEventArgs> onMetrics() {
+		return metrics;
+	}
+	public EventHandler<SQLCircuitEventArgs> onCircuitChange() {
+		return circuitChange;
+	}
+	
+	//protected
+	protected void connect(IConnectionProvider provider, String poolName) {
+		if (provider == null) {
+			throw new IllegalArgumentException("provider cannot be null.");
+		}
+		
+		// Disconnect if already connected
+		disconnect();
+		
+		this.provider = provider;
+		
+		// Connect to the database
+		while (freeConnections.getRemainingCapacity() > 0) {
+			try {
+				freeConnections.add(provider.getConnection());
+			} catch (Exception ex) {
+				// Don't leak the connections we did get
+				while (!freeConnections.isEmpty()) {
+					try {
+						freeConnections.pollLast().close();
+					} catch (Exception ex2) {
+						
+					}
+				}
+				provider.close();
+				throw new RuntimeException("Could not connect to database.", ex);
+			}
+		}
+		
+		// Create the thread pools. Why here instead of the constructor? Because we call shutdown() on these pools in disconnect
+		threadPool = ThreadUtil.createScheduledPool(1, freeConnections.size() * 2, 120L * 1000L, new ThreadFactoryBuilder().setNameFormat(threadName + "-" + poolName + "-%d").build());
+		dispatchPool = ThreadUtil.createPool(freeConnections.size(), freeConnections.size(), 120L * 1000L, new ThreadFactoryBuilder().setNameFormat(threadName + "-" + poolName + "-Dispatch-%d").build());
+		
+		// Set the connected state and start one dispatcher per connection
+		circuit.set(CircuitState.CLOSED);
+		reconnectAttempts.set(0);
+		connected.set(true);
+		for (Connection conn : freeConnections.toArray(new Connection[0])) {
+			dispatchPool.submit(new Dispatcher(conn));
+		}
+		// Pick up anything journaled while we were away
+		if (replayJournal()) {
+			signalWork();
+		}
+		scheduleMetrics();
+		connect.invoke(this, EventArgs.EMPTY);
+	}
+	
+	//private
+	private UUID query(String q, boolean parallel, Object... queryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		
+		UUID u = UUID.randomUUID();
+		
+		// Grab a new data object and add it to the send queue
+		SQLQueueData queryData = new SQLQueueData(u, q, queryParams, parallel);
+		enqueue(queryData);
+		
+		return u;
+	}
+	private UUID query(String q, boolean parallel, Map<String, Object> namedQueryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (namedQueryParams == null) {
+			throw new IllegalArgumentException("namedQueryParams cannot be null.");
+		}
+		
+		UUID u = UUID.randomUUID();
+		
+		// Grab a new data object and add it to the send queue
+		SQLQueueData queryData = new SQLQueueData(u, q, namedQueryParams, parallel);
+		enqueue(queryData);
+		
+		return u;
+	}
+	
+	private CompletableFuture<SQLData> queryAsync(String q, boolean parallel, Object... queryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		
+		CompletableFuture<SQLData> future = new CompletableFuture<SQLData>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(null, q, null, queryParams, parallel, future);
+		enqueue(queryData);
+		
+		return future;
+	}
+	private CompletableFuture<SQLData> queryAsync(String q, boolean parallel, Map<String, Object> namedQueryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (namedQueryParams == null) {
+			throw new IllegalArgumentException("namedQueryParams cannot be null.");
+		}
+		
+		CompletableFuture<SQLData> future = new CompletableFuture<SQLData>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(null, q, namedQueryParams, null, parallel, future);
+		enqueue(queryData);
+		
+		return future;
+	}
+	
+	private CompletableFuture<SQLData> streamQuery(String q, boolean parallel, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (rowConsumer == null) {
+			throw new IllegalArgumentException("rowConsumer cannot be null.");
+		}
+		
+		CompletableFuture<SQLData> future = new CompletableFuture<SQLData>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(null, q, null, queryParams, parallel, future, rowConsumer);
+		enqueue(queryData);
+		
+		return future;
+	}
+	private CompletableFuture<SQLData> streamQuery(String q, boolean parallel, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		if (q == null || q.isEmpty()) {
+			throw new IllegalArgumentException("q cannot be null or empty.");
+		}
+		if (rowConsumer == null) {
+			throw new IllegalArgumentException("rowConsumer cannot be null.");
+		}
+		if (namedQueryParams == null) {
+			throw new IllegalArgumentException("namedQueryParams cannot be null.");
+		}
+		
+		CompletableFuture<SQLData> future = new CompletableFuture<SQLData>();
+		
+		// Grab a new data object and add it to the send queue. The future is the handle, so no UUID is needed
+		SQLQueueData queryData = new SQLQueueData(null, q, namedQueryParams, null, parallel, future, rowConsumer);
+		enqueue(queryData);
+		
+		return future;
+	}
+	
+	private class Dispatcher implements Runnable {
+		// The connection this dispatcher sends on. Null if it was lost and hasn't been replaced yet
+		private Connection conn = null;
+		// The circuit generation the connection is known to be good for
+		private int generation = 0;
+		
+		public Dispatcher(Connection conn) {
+			this.conn = conn;
+			generation = circuitGeneration.get();
+		}
+		
+		@SuppressWarnings("resource")
+		public void run() {
+			while (connected.get()) {
+				// Move journaled queries into the backlog as room frees up
+				replayJournal();
+				
+				// Sleep until something is queued and the database is reachable. We're signalled the moment either happens, so there's no polling delay
+				dispatchLock.lock();
+				try {
+					while (connected.get() && (circuit.get() != CircuitState.CLOSED || (backlog.isEmpty() && !canReplay()))) {
+						// Reading the journal failed. Nobody signals when a disk comes back, so wake up to try again once the backoff is over
+						long delay = replayDelayNanos();
+						if (delay > 0L) {
+							workAvailable.awaitNanos(delay);
+						} else {
+							workAvailable.await();
+						}
+					}
+				} catch (InterruptedException ex) {
+					Thread.currentThread().interrupt();
+					return;
+				} finally {
+					dispatchLock.unlock();
+				}
+				
+				if (!connected.get()) {
+					return;
+				}
+				
+				// Make sure we have a working connection before taking anything out of the backlog
+				if (!ensureConnection()) {
+					continue;
+				}
+				
+				// Mark the connection as used while we're sending on it
+				if (freeConnections.remove(conn)) {
+					usedConnections.add(conn);
+				}
+				
+				// Send the next data in the queue. We get null back if the connection was lost
+				conn = sendNext(conn);
+				
+				if (conn != null && usedConnections.remove(conn)) {
+					freeConnections.add(conn);
+				}
+			}
+		}
+		
+		private boolean ensureConnection() {
+			// The circuit opened since we last sent anything. Our connection may have gone down with the others
+			int currentGeneration = circuitGeneration.get();
+			if (conn != null && generation != currentGeneration) {
+				generation = currentGeneration;
+				if (!isValid(conn)) {
+					discardConnection(conn);
+					conn = null;
+				}
+			}
+			if (conn != null) {
+				return true;
+			}
+			
+			// Take the connection the supervisor opened if it's still there, or open our own now that the database is back
+			Connection newConn = spareConnections.pollFirst();
+			if (newConn == null) {
+				try {
+					newConn = provider.getConnection();
+				} catch (Exception ex) {
+					tripCircuit();
+					return false;
+				}
+				queryMetrics.recordReconnect();
+			}
+			
+			conn = newConn;
+			generation = circuitGeneration.get();
+			freeConnections.add(conn);
+			return true;
+		}
+	}
+	
+	private void enqueue(SQLQueueData queryData) {
+		SQLJournal currentJournal = journal;
+		
+		// While older queries are still in the journal, new ones join them there so everything is sent in order
+		if (currentJournal != null && !queryData.hasCaller() && !currentJournal.isEmpty()) {
+			spill(currentJournal, queryData);
+			return;
+		}
+		
+		if (!reserve()) {
+			boolean wasConnected = connected.get();
+			switch (backlogPolicy) {
+				case BLOCK:
+					if (!awaitSpace()) {
+						reject(queryData, new RejectedExecutionException("Interrupted while waiting for room in the backlog."));
+						return;
+					}
+					// The room came from disconnect() draining the backlog. Nothing is going to send this now
+					if (wasConnected && !connected.get()) {
+						released();
+						reject(queryData, new RejectedExecutionException("Disconnected while waiting for room in the backlog."));
+						return;
+					}
+					break;
+				case DROP_OLDEST_PARALLEL:
+					// The dropped query's slot goes to the new one
+					if (!dropOldestParallel()) {
+						reject(queryData, new RejectedExecutionException("Backlog is full."));
+						return;
+					}
+					break;
+				case SPILL_TO_DISK:
+					if (currentJournal != null && !queryData.hasCaller()) {
+						spill(currentJournal, queryData);
+						return;
+					}
+					// Async, streaming and transaction queries can't be written to disk, their callers are still waiting on them
+					reject(queryData, new RejectedExecutionException("Backlog is full."));
+					return;
+				default:
+					reject(queryData, new RejectedExecutionException("Backlog is full."));
+					return;
+			}
+		}
+		
+		backlog.add(queryData);
+		
+		// Are we connected?
+		if (connected.get()) {
+			// Wake up an idle dispatcher
+			signalWork();
+		}
+	}
+	private void spill(SQLJournal currentJournal, SQLQueueData queryData) {
+		try {
+			currentJournal.append(queryData);
+		} catch (Exception ex) {
+			reject(queryData, new RejectedExecutionException("Backlog is full and the query could not be journaled.", ex));
+			return;
+		}
+		queryMetrics.recordSpill();
+		
+		if (connected.get()) {
+			signalWork();
+		}
+	}
+	private void reject(SQLQueueData queryData, RejectedExecutionException ex) {
+		queryMetrics.recordRejected();
+		
+		// Async callers get a failed future, everyone else gets the exception right away
+		if (queryData.getTransaction() != null) {
+			queryData.getTransaction().fail(ex);
+			return;
+		}
+		if (queryData.getFuture() != null) {
+			queryData.getFuture().completeExceptionally(ex);
+			return;
+		}
+		throw ex;
+	}
+	
+	// Takes a slot in the backlog, if there's one to take
+	private boolean reserve() {
+		while (true) {
+			int capacity = backlogCapacity;
+			int size = backlogSize.get();
+			if (capacity > 0 && size >= capacity) {
+				return false;
+			}
+			if (backlogSize.compareAndSet(size, size + 1)) {
+				return true;
+			}
+		}
+	}
+	private boolean awaitSpace() {
+		capacityLock.lock();
+		blockedCallers.incrementAndGet();
+		try {
+			while (!reserve()) {
+				spaceAvailable.await();
+			}
+			return true;
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return false;
+		} finally {
+			blockedCallers.decrementAndGet();
+			capacityLock.unlock();
+		}
+	}
+	private boolean dropOldestParallel() {
+		for (SQLQueueData queued : backlog) {
+			if (queued.getParallel() && backlog.removeFirstOccurrence(queued)) {
+				queryMetrics.recordDropped();
+				fail(queued, new RejectedExecutionException("Dropped from a full backlog."));
+				return true;
+			}
+		}
+		return false;
+	}
+	private void fail(SQLQueueData queryData, Exception ex) {
+		if (queryData.getTransaction() != null) {
+			queryMetrics.recordError();
+			queryData.getTransaction().fail(ex);
+			return;
+		}
+		
+		Object[] params = (queryData.getBatchParams() != null) ? queryData.getBatchParams().toArray() : queryData.getUnnamedParams();
+		SQLEventArgs args = new SQLEventArgs(queryData.getQuery(), params, queryData.getNamedParams(), new SQLError(ex), new SQLData(), queryData.getUuid());
+		
+		// There might not be an event thread to hand this off to (not connected yet, or disconnecting)
+		if (queryData.getFuture() == null && (threadPool == null || threadPool.isShutdown())) {
+			queryMetrics.recordError();
+			error.invoke(this, args);
+			return;
+		}
+		invokeError(args, queryData.getFuture());
+	}
+	
+	private SQLQueueData pollBacklog() {
+		SQLQueueData retVal = backlog.pollFirst();
+		if (retVal != null) {
+			released();
+		}
+		return retVal;
+	}
+	private boolean removeBacklog(SQLQueueData queryData) {
+		if (backlog.removeFirstOccurrence(queryData)) {
+			released();
+			return true;
+		}
+		return false;
+	}
+	private void requeue(SQLQueueData queryData) {
+		// Requeued queries were already let in once, so they skip the capacity check
+		backlogSize.incrementAndGet();
+		backlog.addFirst(queryData);
+	}
+	private void released() {
+		backlogSize.decrementAndGet();
+		if (blockedCallers.get() > 0) {
+			capacityLock.lock();
+			try {
+				spaceAvailable.signal();
+			} finally {
+				capacityLock.unlock();
+			}
+		}
+	}
+	
+	private boolean hasJournaled() {
+		SQLJournal currentJournal = journal;
+		return currentJournal != null && !currentJournal.isEmpty();
+	}
+	private boolean canReplay() {
+		return hasJournaled() && replayDelayNanos() == 0L;
+	}
+	// How long until the journal can be read again after a failed read, 0 if it can be read now
+	private long replayDelayNanos() {
+		if (replayFailures.get() == 0) {
+			return 0L;
+		}
+		long retVal = replayRetryNanos - System.nanoTime();
+		return (retVal > 0L) ? retVal : 0L;
+	}
+	// Moves as many journaled queries into the backlog as there's room for. Returns true if anything was moved
+	private boolean replayJournal() {
+		if (!canReplay() || !replayLock.tryLock()) {
+			return false;
+		}
+		
+		try {
+			SQLJournal currentJournal = journal;
+			if (currentJournal == null) {
+				return false;
+			}
+			
+			int capacity = backlogCapacity;
+			int room = (capacity > 0) ? capacity - backlogSize.get() : 1000;
+			if (room <= 0) {
+				return false;
+			}
+			
+			Map<SQLQueueData, Exception> undecodable = new LinkedHashMap<SQLQueueData, Exception>();
+			List<SQLQueueData> replayed = currentJournal.read(room, undecodable);
+			replayFailures.set(0);
+			
+			for (SQLQueueData queryData : replayed) {
+				backlogSize.incrementAndGet();
+				backlog.add(queryData);
+			}
+			// These were accepted once, so they're reported like any other query that failed
+			for (Entry<SQLQueueData, Exception> kvp : undecodable.entrySet()) {
+				fail(kvp.getKey(), kvp.getValue());
+			}
+			return !replayed.isEmpty();
+		} catch (Exception ex) {
+			// Back off the same way reconnects do
+			int failures = replayFailures.get() + 1;
+			long delay = Math.min(reconnectMaxMillis, reconnectInitialMillis << Math.min(failures - 1, 30));
+			if (delay <= 0L) {
+				delay = reconnectMaxMillis;
+			}
+			replayRetryNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+			replayFailures.set(failures);
+			return false;
+		} finally {
+			replayLock.unlock();
+		}
+	}
+	
+	private void signalWork() {
+		dispatchLock.lock();
+		try {
+			workAvailable.signal();
+		} finally {
+			dispatchLock.unlock();
+		}
+	}
+	
+	private Runnable onMetricsThread = new Runnable() {
+		public void run() {
+			metrics.invoke(AbstractSQL.this, new SQLMetricsEventArgs(getMetrics()));
+		}
+	};
+	
+	@SuppressWarnings("resource")
+	private Connection sendNext(Connection conn) {
+		if (!connected.get()) {
+			// We're no longer connected
+			return conn;
+		}
+		
+		// Take the parallel lock. If a serialized query is running we wait here and go as soon as it's done, rather than backing off
+		try {
+			parallelLock.lockInterruptibly();
+		} catch (InterruptedException ex) {
+			Thread.currentThread().interrupt();
+			return conn;
+		}
+		
+		// Grab the oldest data first
+		SQLQueueData first = pollBacklog();
+		if (first == null) {
+			// Another dispatcher got to it first
+			parallelLock.unlock();
+			return conn;
+		}
+		queryMetrics.recordQueueWait(System.nanoTime() - first.getQueuedTime());
+		
+		if (first.getParallel()) {
+			// Parallel connection. Release the parallel lock
+			parallelLock.unlock();
+		}
+		
+		if (first.getTransaction() != null) {
+			return executeTransaction(conn, first, first.getTransaction());
+		}
+		
+		// Explicit batches, and identical writes queued back-to-back when coalescing is enabled, go out as a single JDBC batch
+		if (first.getBatchParams() != null) {
+			return executeBatch(conn, Collections.singletonList(first));
+		}
+		if (coalesce.get() && first.getCoalescable()) {
+			List<SQLQueueData> group = coalesce(first);
+			if (group.size() > 1) {
+				return executeBatch(conn, group);
+			}
+		}
+		
+		// See what type of parameters we're using (named or unnamed) and send the query off
+		if (first.getNamedParams() != null) {
+			// The prepared statement to use
+			NamedParameterStatement command = null;
+			
+			// Try to create the statement
+			try {
+				command = new NamedParameterStatement(getStatementCache(conn), first.getQuery(), getBackslashEscapes());
+			} catch (Exception ex) {
+				if (isConnectionLost(ex) && connected.get()) {
+					// The connection died before the query went out. Put it back at the front of the queue and open the circuit
+					requeue(first);
+					if (!first.getParallel()) {
+						parallelLock.unlock();
+					}
+					discardConnection(conn);
+					tripCircuit();
+					return null;
+				}
+				
+				// Errored on creating the query, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(first.getQuery(), null, first.getNamedParams(), new SQLError(ex), new SQLData(), first.getUuid()), first.getFuture());
+				if (!first.getParallel()) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Is this a parameterized query?
+			if (first.getNamedParams() != null && first.getNamedParams().size() > 0) {
+				try {
+					// Loop the parameters and set them in the statement
+					for (Entry<String, Object> kvp : first.getNamedParams().entrySet()) {
+						command.setObject(kvp.getKey(), kvp.getValue());
+					}
+				} catch (Exception ex) {
+					// Couldn't add parameters, invoke the error method and try sending the next item in the queue
+					getStatementCache(conn).invalidate(command.getPreparedStatement());
+					invokeError(new SQLEventArgs(first.getQuery(), null, first.getNamedParams(), new SQLError(ex), new SQLData(), first.getUuid()), first.getFuture());
+					if (!first.getParallel()) {
+						parallelLock.unlock();
+					}
+					return conn;
+				}
+			}
+			
+			// Execute the new statement
+			return execute(conn, command.getPreparedStatement(), first);
+		} else {
+			// The prepared statement to use
+			PreparedStatement command = null;
+			
+			// Try to create the statement
+			try {
+				command = getStatementCache(conn).prepare(first.getQuery());
+			} catch (Exception ex) {
+				if (isConnectionLost(ex) && connected.get()) {
+					// The connection died before the query went out. Put it back at the front of the queue and open the circuit
+					requeue(first);
+					if (!first.getParallel()) {
+						parallelLock.unlock();
+					}
+					discardConnection(conn);
+					tripCircuit();
+					return null;
+				}
+				
+				// Errored on creating the query, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(first.getQuery(), first.getUnnamedParams(), null, new SQLError(ex), new SQLData(), first.getUuid()), first.getFuture());
+				if (!first.getParallel()) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Is this a parameterized query?
+			if (first.getUnnamedParams() != null && first.getUnnamedParams().length > 0) {
+				try {
+					// Loop the parameters and set them in the statement
+					for (int i = 0; i < first.getUnnamedParams().length; i++) {
+						command.setObject(i + 1, first.getUnnamedParams()[i]);
+					}
+				} catch (Exception ex) {
+					// Couldn't add parameters, invoke the error method and try sending the next item in the queue
+					getStatementCache(conn).invalidate(command);
+					invokeError(new SQLEventArgs(first.getQuery(), first.getUnnamedParams(), null, new SQLError(ex), new SQLData(), first.getUuid()), first.getFuture());
+					if (!first.getParallel()) {
+						parallelLock.unlock();
+					}
+					return conn;
+				}
+			}
+			
+			// Execute the new statement
+			return execute(conn, command, first);
+		}
+	}
+	
+	@SuppressWarnings("resource")
+	private Connection execute(Connection conn, PreparedStatement command, SQLQueueData queryData) {
+		boolean isParallel = queryData.getParallel();
+		String q = queryData.getQuery();
+		Map<String, Object> namedParameters = queryData.getNamedParams();
+		Object[] parameters = (namedParameters == null) ? queryData.getUnnamedParams() : null;
+		UUID u = queryData.getUuid();
+		CompletableFuture<SQLData> future = queryData.getFuture();
+		Consumer<SQLRow> rowConsumer = queryData.getRowConsumer();
+		
+		// Try to execute the statement
+		long start = System.nanoTime();
+		boolean hasResultSet = false;
+		try {
+			if (rowConsumer != null) {
+				command.setFetchSize(streamFetchSize);
+			}
+			hasResultSet = command.execute();
+		} catch (Exception ex) {
+			if (isConnectionLost(ex)) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Check connection state. Nothing is going to send this anymore, so whoever is waiting on it has to hear about it
+				if (!connected.get()) {
+					fail(queryData, new IllegalStateException("Disconnected before the query could be sent."));
+					if (!isParallel) {
+						parallelLock.unlock();
+					}
+					return conn;
+				}
+				
+				// Add the original entry back to the beginning of the send queue (preserving order, queue time and flags)
+				requeue(queryData);
+				
+				// Unlock the parallel lock if it's currently locked
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				
+				// Drop the connection and open the circuit. The supervisor takes it from here, this thread goes straight back to waiting
+				discardConnection(conn);
+				tripCircuit();
+				return null;
+			} else {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored on execution, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+		}
+		
+		// Create the return data object
+		SQLData d = new SQLData();
+		
+		// Try to get the number of rows affected
+		if (!hasResultSet) {
+			try {
+				d.recordsAffected = command.getUpdateCount();
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+		}
+		
+		// The result set from the query
+		ResultSet results = null;
+		
+		// Try to get the results
+		if (hasResultSet) {
+			try {
+				results = command.getResultSet();
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+		}
+		
+		// Do we have a result set?
+		if (results != null) {
+			// The result meta from the query
+			ResultSetMetaData metaData = null;
+			
+			// Try to get the result meta
+			try {
+				metaData = results.getMetaData();
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Create column data
+			ArrayList<String> tColumns = new ArrayList<String>();
+			
+			// Try to get the number of columns in the results and the names of those columns
+			try {
+				for (int i = 1; i <= metaData.getColumnCount(); i++) {
+					tColumns.add(metaData.getColumnName(i));
+				}
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			d.columns = tColumns.toArray(new String[0]);
+			
+			// Streaming queries hand each row to the caller as it's read instead of collecting the whole result
+			if (rowConsumer != null) {
+				long rows = 0L;
+				try {
+					int[] types = new int[d.columns.length];
+					for (int i = 0; i < types.length; i++) {
+						types[i] = metaData.getColumnType(i + 1);
+					}
+					
+					// One row view for the whole result, it always points at the current row
+					SQLRow row = new SQLRow(results, d.columns, types);
+					do {
+						while (results.next()) {
+							rowConsumer.accept(row);
+							rows++;
+						}
+						results = (command.getMoreResults()) ? command.getResultSet() : null;
+						if (results != null) {
+							row = new SQLRow(results, d.columns, types);
+						}
+					} while (results != null);
+					
+					command.setFetchSize(0);
+				} catch (Exception ex) {
+					// Release resources
+					getStatementCache(conn).invalidate(command);
+					
+					// Errored, invoke the error method and try sending the next item in the queue
+					invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+					if (!isParallel) {
+						parallelLock.unlock();
+					}
+					return conn;
+				}
+				
+				// Release resources
+				getStatementCache(conn).release(command);
+				
+				// No data is kept, just the number of rows streamed
+				d.data = new Object[0][];
+				d.recordsAffected = (int) Math.min(rows, Integer.MAX_VALUE);
+				queryMetrics.recordExecute(System.nanoTime() - start);
+				queryMetrics.recordRows(rows);
+				
+				// Invoke the data event and try sending the next item in the queue
+				invokeData(new SQLEventArgs(q, parameters, namedParameters, new SQLError(), d, u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Create table data
+			ArrayList<Object[]> tData = new ArrayList<Object[]>();
+			
+			// Try to get the number of rows and the data returned
+			try {
+				// Loop the rows
+				while (results.next()) {
+					// Create a row with the size of the data returned
+					Object[] tVals = new Object[tColumns.size()];
+					// Iterate cells and add them to the current return row
+					for (int i = 0; i < tColumns.size(); i++) {
+						tVals[i] = results.getObject(i + 1);
+					}
+					// Add the row to the current return data
+					tData.add(tVals);
+				}
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Get the next X number of results, if (and as) requested. SQL queries return "pages" and we'll loop through all of them
+			try {
+				// Loop through the rest of the pages
+				while(command.getMoreResults()) {
+					// Get the result set and add data as we did above
+					results = command.getResultSet();
+					while (results.next()) {
+						Object[] tVals = new Object[tColumns.size()];
+						for (int i = 0; i < tColumns.size(); i++) {
+							tVals[i] = results.getObject(i + 1);
+						}
+						tData.add(tVals);
+					}
+				}
+			} catch (Exception ex) {
+				// Release resources
+				getStatementCache(conn).invalidate(command);
+				
+				// Errored, invoke the error method and try sending the next item in the queue
+				invokeError(new SQLEventArgs(q, parameters, namedParameters, new SQLError(ex), new SQLData(), u), future);
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				return conn;
+			}
+			
+			// Add the current return data to the data object
+			d.data = new Object[tData.size()][tColumns.size()];
+			for (int i = 0; i < tData.size(); i++) {
+				for (int j = 0; j < tColumns.size(); j++) {
+					d.data[i][j] = tData.get(i)[j];
+				}
+			}
+			queryMetrics.recordExecute(System.nanoTime() - start);
+			queryMetrics.recordRows(d.data.length);
+			
+			// Release resources
+			getStatementCache(conn).release(command);
+			
+			// Invoke the data event and try sending the next item in the queue
+			invokeData(new SQLEventArgs(q, parameters, namedParameters, new SQLError(), d, u), future);
+			if (!isParallel) {
+				parallelLock.unlock();
+			}
+			return conn;
+		} else {
+			queryMetrics.recordExecute(System.nanoTime() - start);
+			
+			// Release resources
+			getStatementCache(conn).release(command);
+			
+			// Set dummy data in the return data object so nobody hits an unexpected null value
+			d.columns = new String[0];
+			d.data = new Object[0][];
+			// Invoke the data event and try sending the next item in the queue
+			invokeData(new SQLEventArgs(q, parameters, namedParameters, new SQLError(), d, u), future);
+			if (!isParallel) {
+				parallelLock.unlock();
+			}
+			return conn;
+		}
+	}
+	
+	private List<SQLQueueData> coalesce(SQLQueueData first) {
+		List<SQLQueueData> group = new ArrayList<SQLQueueData>();
+		group.add(first);
+		
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(lingerMillis);
+		while (group.size() < maxBatchSize && connected.get()) {
+			SQLQueueData next = backlog.peekFirst();
+			if (next == null) {
+				// Nothing else queued (yet). Wait around for more rows until the linger time runs out
+				if (System.nanoTime() >= deadline) {
+					break;
+				}
+				LockSupport.parkNanos(250000L);
+				continue;
+			}
+			if (!first.canCoalesce(next)) {
+				break;
+			}
+			
+			// Another send thread may have taken it between the peek and the remove
+			if (removeBacklog(next)) {
+				queryMetrics.recordQueueWait(System.nanoTime() - next.getQueuedTime());
+				group.add(next);
+			}
+		}
+		
+		return group;
+	}
+	
+	@SuppressWarnings("resource")
+	private Connection executeBatch(Connection conn, List<SQLQueueData> group) {
+		SQLQueueData first = group.get(0);
+		boolean isParallel = first.getParallel();
+		String q = first.getQuery();
+		
+		// Explicit batches carry their own rows, coalesced batches have one row per queued query
+		List<Object[]> rows = first.getBatchParams();
+		if (rows == null) {
+			rows = new ArrayList<Object[]>(group.size());
+			for (SQLQueueData queryData : group) {
+				rows.add(queryData.getUnnamedParams());
+			}
+		}
+		
+		// The prepared statement to use
+		PreparedStatement command = null;
+		
+		// Try to create the statement
+		try {
+			command = getStatementCache(conn).prepare(q);
+		} catch (Exception ex) {
+			if (isConnectionLost(ex) && connected.get()) {
+				// The connection died before the batch went out. Put it back at the front of the queue and open the circuit
+				for (int i = group.size() - 1; i >= 0; i--) {
+					requeue(group.get(i));
+				}
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				discardConnection(conn);
+				tripCircuit();
+				return null;
+			}
+			
+			// Errored on creating the query, invoke the error method and try sending the next item in the queue
+			invokeBatchError(group, ex);
+			if (!isParallel) {
+				parallelLock.unlock();
+			}
+			return conn;
+		}
+		
+		// Send the rows in chunks of maxBatchSize, all inside a single transaction
+		int[] counts = new int[rows.size()];
+		boolean autoCommit = true;
+		long start = System.nanoTime();
+		try {
+			autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+			
+			int offset = 0;
+			while (offset < rows.size()) {
+				int end = Math.min(offset + maxBatchSize, rows.size());
+				for (int i = offset; i < end; i++) {
+					Object[] params = rows.get(i);
+					if (params != null) {
+						for (int j = 0; j < params.length; j++) {
+							command.setObject(j + 1, params[j]);
+						}
+					}
+					command.addBatch();
+				}
+				
+				int[] result = command.executeBatch();
+				System.arraycopy(result, 0, counts, offset, Math.min(result.length, end - offset));
+				offset = end;
+			}
+			
+			conn.commit();
+			queryMetrics.recordExecute(System.nanoTime() - start);
+			queryMetrics.recordBatch(rows.size());
+		} catch (Exception ex) {
+			// Undo anything that made it through and release resources
+			try {
+				conn.rollback();
+			} catch (Exception ex2) {
+				
+			}
+			try {
+				conn.setAutoCommit(autoCommit);
+			} catch (Exception ex2) {
+				
+			}
+			getStatementCache(conn).invalidate(command);
+			
+			if (isConnectionLost(ex)) {
+				// Check connection state. Nothing is going to send these anymore, so whoever is waiting on them has to hear about it
+				if (!connected.get()) {
+					for (SQLQueueData queryData : group) {
+						fail(queryData, new IllegalStateException("Disconnected before the query could be sent."));
+					}
+					if (!isParallel) {
+						parallelLock.unlock();
+					}
+					return conn;
+				}
+				
+				// Add the batch back to the beginning of the send queue (preserving order)
+				for (int i = group.size() - 1; i >= 0; i--) {
+					requeue(group.get(i));
+				}
+				
+				// Unlock the parallel lock if it's currently locked
+				if (!isParallel) {
+					parallelLock.unlock();
+				}
+				
+				// Drop the connection and open the circuit. The supervisor takes it from here, this thread goes straight back to waiting
+				discardConnection(conn);
+				tripCircuit();
+				return null;
+			}
+			
+			if (group.size() > 1) {
+				// Coalesced queries are unrelated to each other, so re-send them one at a time. That way only the offending query gets the error
+				for (int i = group.size() - 1; i >= 0; i--) {
+					requeue(group.get(i).uncoalesced());
+				}
+			} else {
+				invokeBatchError(group, ex);
+			}
+			if (!isParallel) {
+				parallelLock.unlock();
+			}
+			return conn;
+		}
+		
+		// Release resources
+		try {
+			conn.setAutoCommit(autoCommit);
+		} catch (Exception ex) {
+			
+		}
+		// Don't hand batched statements back to the cache. Some drivers (sqlite-jdbc) keep their batch buffers around, which breaks later single executes
+		getStatementCache(conn).invalidate(command);
+		
+		// Invoke the data event(s) and try sending the next item in the queue
+		if (first.getBatchParams() != null) {
+			// One result for the whole batch, with the per-row counts attached
+			SQLData d = new SQLData();
+			d.columns = new String[0];
+			d.data = new Object[0][];
+			d.batchRecordsAffected = counts;
+			d.recordsAffected = 0;
+			for (int i = 0; i < counts.length; i++) {
+				if (counts[i] > 0) {
+					d.recordsAffected += counts[i];
+				}
+			}
+			invokeData(new SQLEventArgs(q, first.getBatchParams().toArray(), null, new SQLError(), d, first.getUuid()), first.getFuture());
+		} else {
+			// One result per coalesced query, under its original UUID. Events are sent from a single task rather than one per query
+			List<SQLEventArgs> events = new ArrayList<SQLEventArgs>();
+			for (int i = 0; i < group.size(); i++) {
+				SQLData d = new SQLData();
+				d.columns = new String[0];
+				d.data = new Object[0][];
+				d.recordsAffected = counts[i];
+				if (group.get(i).getFuture() != null) {
+					group.get(i).getFuture().complete(d);
+				} else {
+					events.add(new SQLEventArgs(q, group.get(i).getUnnamedParams(), null, new SQLError(), d, group.get(i).getUuid()));
+				}
+			}
+			if (!events.isEmpty()) {
+				threadPool.submit(new Runnable() {
+					public void run() {
+						for (SQLEventArgs args : events) {
+							data.invoke(this, args);
+						}
+					}
+				});
+			}
+		}
+		if (!isParallel) {
+			parallelLock.unlock();
+		}
+		return conn;
+	}
+	// Transactions are never parallel, so we're holding the parallel lock the whole time
+	@SuppressWarnings("resource")
+	private <T> Connection executeTransaction(Connection conn, SQLQueueData queryData, SQLTransactionData<T> transaction) {
+		long start = System.nanoTime();
+		int attempt = 0;
+		
+		while (true) {
+			boolean autoCommit = true;
+			SQLTransaction handle = new SQLTransaction(getStatementCache(conn), getBackslashEscapes());
+			T result = null;
+			try {
+				autoCommit = conn.getAutoCommit();
+				conn.setAutoCommit(false);
+				
+				result = transaction.run(handle);
+				handle.finish();
+				
+				conn.commit();
+			} catch (Exception ex) {
+				handle.finish();
+				
+				// Undo anything that made it through
+				try {
+					conn.rollback();
+				} catch (Exception ex2) {
+					
+				}
+				try {
+					conn.setAutoCommit(autoCommit);
+				} catch (Exception ex2) {
+					
+				}
+				
+				if (isConnectionLost(ex)) {
+					// Check connection state
+					if (!connected.get()) {
+						transaction.fail(new IllegalStateException("Disconnected before the transaction could be sent."));
+						parallelLock.unlock();
+						return conn;
+					}
+					
+					// Add the transaction back to the beginning of the send queue (preserving order)
+					requeue(queryData);
+					
+					parallelLock.unlock();
+					
+					// Drop the connection and open the circuit. The supervisor takes it from here, this thread goes straight back to waiting
+					discardConnection(conn);
+					tripCircuit();
+					return null;
+				}
+				
+				// Lock contention usually clears up by itself, so give it a moment and run the whole thing again
+				if (attempt < transactionRetries && connected.get() && isRetryable(ex)) {
+					long backoff = transactionBackoffMillis << Math.min(attempt, 16);
+					attempt++;
+					if (backoff > 0L) {
+						try {
+							Thread.sleep(backoff + ThreadLocalRandom.current().nextLong(backoff));
+						} catch (InterruptedException ex2) {
+							Thread.currentThread().interrupt();
+						}
+					}
+					continue;
+				}
+				
+				// Errored, fail the transaction and try sending the next item in the queue
+				queryMetrics.recordError();
+				transaction.fail(ex);
+				parallelLock.unlock();
+				return conn;
+			}
+			
+			// Release resources
+			try {
+				conn.setAutoCommit(autoCommit);
+			} catch (Exception ex) {
+				
+			}
+			queryMetrics.recordExecute(System.nanoTime() - start);
+			
+			// Complete the future and try sending the next item in the queue
+			transaction.complete(result);
+			parallelLock.unlock();
+			return conn;
+		}
+	}
+	
+	private void invokeBatchError(List<SQLQueueData> group, Exception ex) {
+		List<SQLEventArgs> events = new ArrayList<SQLEventArgs>();
+		for (SQLQueueData queryData : group) {
+			queryMetrics.recordError();
+			Object[] params = (queryData.getBatchParams() != null) ? queryData.getBatchParams().toArray() : queryData.getUnnamedParams();
+			if (queryData.getFuture() != null) {
+				queryData.getFuture().completeExceptionally(ex);
+			} else {
+				events.add(new SQLEventArgs(queryData.getQuery(), params, null, new SQLError(ex), new SQLData(), queryData.getUuid()));
+			}
+		}
+		if (!events.isEmpty()) {
+			threadPool.submit(new Runnable() {
+				public void run() {
+					for (SQLEventArgs args : events) {
+						error.invoke(this, args);
+					}
+				}
+			});
+		}
+	}
+	private void invokeData(SQLEventArgs args, CompletableFuture<SQLData> future) {
+		// Async queries complete their future right here and skip the (broadcast) event entirely
+		if (future != null) {
+			future.complete(args.getData());
+			return;
+		}
+		threadPool.submit(new Runnable() {
+			public void run() {
+				data.invoke(this, args);
+			}
+		});
+	}
+	private void invokeError(SQLEventArgs args, CompletableFuture<SQLData> future) {
+		queryMetrics.recordError();
+		
+		// Async queries complete their future right here and skip the (broadcast) event entirely
+		if (future != null) {
+			future.completeExceptionally(args.getSQLError().ex);
+			return;
+		}
+		threadPool.submit(new Runnable() {
+			public void run() {
+				error.invoke(this, args);
+			}
+		});
+	}
+	
+	private void discardConnection(Connection conn) {
+		usedConnections.remove(conn);
+		freeConnections.remove(conn);
+		
+		// Statements die with the old connection
+		PreparedStatementCache cache = statementCaches.remove(conn);
+		if (cache != null) {
+			cache.clear();
+		}
+		
+		try {
+			conn.close();
+		} catch (Exception ex) {
+			
+		}
+	}
+	private static boolean isValid(Connection conn) {
+		try {
+			return conn.isValid(5);
+		} catch (Exception ex) {
+			return false;
+		}
+	}
+	
+	private void tripCircuit() {
+		// Only the first failure of an outage opens the circuit. Anything that fails after that was already in flight
+		if (!circuit.compareAndSet(CircuitState.CLOSED, CircuitState.OPEN)) {
+			return;
+		}
+		circuitGeneration.incrementAndGet();
+		scheduleProbe(CircuitState.CLOSED);
+	}
+	private void scheduleProbe(CircuitState previousState) {
+		if (!connected.get()) {
+			return;
+		}
+		
+		// Exponential backoff with "equal" jitter: somewhere between half and all of the current delay
+		int attempts = reconnectAttempts.get();
+		long delay = Math.min(reconnectMaxMillis, reconnectInitialMillis << Math.min(attempts, 30));
+		if (delay <= 0L) {
+			delay = reconnectMaxMillis;
+		}
+		delay = delay / 2L + ThreadLocalRandom.current().nextLong(delay / 2L + 1L);
+		
+		circuitChange.invoke(this, new SQLCircuitEventArgs(previousState, CircuitState.OPEN, attempts, delay));
+		try {
+			threadPool.schedule(onProbeThread, delay, TimeUnit.MILLISECONDS);
+		} catch (RejectedExecutionException ex) {
+			// Shutting down
+		}
+	}
+	
+	private Runnable onProbeThread = new Runnable() {
+		public void run() {
+			if (!connected.get() || !circuit.compareAndSet(CircuitState.OPEN, CircuitState.HALF_OPEN)) {
+				return;
+			}
+			circuitChange.invoke(AbstractSQL.this, new SQLCircuitEventArgs(CircuitState.OPEN, CircuitState.HALF_OPEN, reconnectAttempts.get(), 0L));
+			
+			Connection conn = null;
+			try {
+				conn = provider.getConnection();
+			} catch (Exception ex) {
+				
+			}
+			
+			if (conn == null || !isValid(conn)) {
+				if (conn != null) {
+					try {
+						conn.close();
+					} catch (Exception ex) {
+						
+					}
+				}
+				
+				// Still down. Try again later
+				reconnectAttempts.incrementAndGet();
+				circuit.set(CircuitState.OPEN);
+				scheduleProbe(CircuitState.HALF_OPEN);
+				return;
+			}
+			
+			// Back up. Hand the connection to whichever dispatcher needs one first and let everyone resume, oldest query first
+			queryMetrics.recordReconnect();
+			spareConnections.add(conn);
+			int attempts = reconnectAttempts.getAndSet(0);
+			circuit.set(CircuitState.CLOSED);
+			circuitChange.invoke(AbstractSQL.this, new SQLCircuitEventArgs(CircuitState.HALF_OPEN, CircuitState.CLOSED, attempts, 0L));
+			
+			dispatchLock.lock();
+			try {
+				workAvailable.signalAll();
+			} finally {
+				dispatchLock.unlock();
+			}
+		}
+	};
+	
+	private void scheduleMetrics() {
+		metricsLock.lock();
+		try {
+			if (metricsFuture != null) {
+				metricsFuture.cancel(false);
+				metricsFuture = null;
+			}
+			
+			long interval = metricsInterval;
+			if (interval > 0L) {
+				metricsFuture = threadPool.scheduleAtFixedRate(onMetricsThread, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			metricsLock.unlock();
+		}
+	}
+	
+	private PreparedStatementCache getStatementCache(Connection conn) {
+		PreparedStatementCache cache = statementCaches.get(conn);
+		if (cache == null) {
+			cache = new PreparedStatementCache(conn, statementCacheSize, statementCacheHits, statementCacheMisses);
+			PreparedStatementCache oldCache = statementCaches.putIfAbsent(conn, cache);
+			if (oldCache != null) {
+				cache = oldCache;
+			}
+		}
+		return cache;
+	}
+	private boolean getBackslashEscapes() {
+		Boolean retVal = backslashEscapes;
+		return (retVal != null) ? retVal.booleanValue() : getType() == BaseSQLType.MySQL;
+	}
+	
+	// Deadlocks, lock wait timeouts and SQLITE_BUSY/SQLITE_LOCKED. Anything that's likely to go through if it's simply run again
+	private static boolean isRetryable(Throwable ex) {
+		while (ex != null) {
+			if (ex instanceof SQLException) {
+				SQLException sqlEx = (SQLException) ex;
+				if ("40001".equals(sqlEx.getSQLState()) || sqlEx.getClass().getSimpleName().equals("MySQLTransactionRollbackException")) {
+					return true;
+				}
+				if (sqlEx.getClass().getSimpleName().equals("SQLiteException")) {
+					// SQLite uses the low byte for the primary result code, extended codes sit above it
+					int code = sqlEx.getErrorCode() & 0xFF;
+					if (code == 5 || code == 6) {
+						return true;
+					}
+				} else if (sqlEx.getErrorCode() == 1213 || sqlEx.getErrorCode() == 1205) {
+					return true;
+				}
+				if (sqlEx.getMessage() != null && (sqlEx.getMessage().contains("SQLITE_BUSY") || sqlEx.getMessage().contains("SQLITE_LOCKED"))) {
+					return true;
+				}
+			}
+			ex = ex.getCause();
+		}
+		return false;
+	}
+	
+	private static boolean isConnectionLost(Exception ex) {
+		return ex.getClass().getSimpleName().equals("CommunicationsException") || ex.getClass().getSimpleName().equals("EOFException") || contains("CommunicationsException", ex.getCause());
+	}
+	private static boolean contains(String needle, Throwable cause) {
+		if (cause == null) {
+			return false;
+		}
+		if (cause.getClass().getSimpleName().equals(needle)) {
+			return true;
+		}
+		return contains(needle, cause.getCause());
+	}
+}
@@ -0,0 +1,555 @@
+package ninja.egg82.sql;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
+
+import ninja.egg82.core.ITransactionCallback;
+import ninja.egg82.core.SQLBulkProgress;
+import ninja.egg82.core.SQLColumnarData;
+import ninja.egg82.core.SQLData;
+import ninja.egg82.core.SQLMetricsSnapshot;
+import ninja.egg82.core.SQLQueryUtil;
+import ninja.egg82.core.SQLRow;
+import ninja.egg82.enums.BacklogPolicy;
+import ninja.egg82.enums.CircuitState;
+import ninja.egg82.enums.SQLType;
+import ninja.egg82.events.SQLCircuitEventArgs;
+import ninja.egg82.events.SQLEventArgs;
+import ninja.egg82.events.SQLMetricsEventArgs;
+import ninja.egg82.patterns.events.EventArgs;
+import ninja.egg82.patterns.events.EventHandler;
+
+/**
+ * Caches the results of async SELECTs in front of another ISQL. Entries are keyed on the query text and its parameters, and expire by age and count.
+ * Concurrent requests for the same uncached query share a single execution.
+ * 
+ * Every entry is tagged with the tables its query reads from. Anything that isn't a read (INSERT, UPDATE, DELETE, DDL) and goes through this ISQL drops the entries tagged with the tables it touches,
+ * once when it's queued and again when it completes. Writes that bypass this ISQL (other clients, triggers, direct use of the wrapped ISQL) are not seen, so pick the expiry accordingly.
+ * 
+ * Reads that no write could invalidate (no table found, or they use variables or functions like NOW() and RAND()) always go to the database.
+ * Only queryAsync and parallelQueryAsync are cached. Cached SQLData is shared between callers and must be treated as read-only.
+ */
+public class CachingSQL implements ISQL {
+	//vars
+	
+	// Keywords that are followed by a table name
+	private static final Set<String> TABLE_KEYWORDS = new HashSet<String>(Arrays.asList("FROM", "JOIN", "INTO", "UPDATE", "TABLE", "TRUNCATE"));
+	// Keywords that can follow a table name in place of an alias
+	private static final Set<String> CLAUSE_KEYWORDS = new HashSet<String>(Arrays.asList("WHERE", "JOIN", "INNER", "LEFT", "RIGHT", "FULL", "OUTER", "CROSS", "NATURAL", "ON", "USING", "GROUP", "ORDER", "HAVING", "LIMIT", "UNION", "SET", "VALUES", "SELECT", "WINDOW", "FOR", "LOCK"));
+	// Functions that can return something different every time they're called, so reads using them are never cached
+	private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<String>(Arrays.asList("NOW", "SYSDATE", "CURDATE", "CURTIME", "CURRENT_DATE", "CURRENT_TIME", "CURRENT_TIMESTAMP", "LOCALTIME", "LOCALTIMESTAMP", "UTC_DATE", "UTC_TIME", "UTC_TIMESTAMP", "UNIX_TIMESTAMP", "RAND", "RANDOM", "UUID", "UUID_SHORT", "SLEEP", "GET_LOCK", "RELEASE_LOCK", "CONNECTION_ID", "LAST_INSERT_ID", "LAST_INSERT_ROWID", "FOUND_ROWS", "ROW_COUNT", "CHANGES", "TOTAL_CHANGES"));
+	// The ones that don't need parentheses
+	private static final Set<String> VOLATILE_KEYWORDS = new HashSet<String>(Arrays.asList("CURRENT_DATE", "CURRENT_TIME", "CURRENT_TIMESTAMP", "LOCALTIME", "LOCALTIMESTAMP"));
+	
+	private ISQL sql = null;
+	private AsyncLoadingCache<CacheKey, SQLData> cache = null;
+	// Query -> tables it touches, so hits don't have to re-tokenize the query. Empty for reads that can't be cached
+	private Cache<String, Set<String>> tableCache = Caffeine.newBuilder().maximumSize(1000L).build();
+	
+	//constructor
+	/**
+	 * Wraps an ISQL with a result cache.
+	 * 
+	 * @param sql The ISQL to send queries to
+	 * @param maximumSize The max number of cached results
+	 * @param expireMillis How long a result is cached for after it's been read from the database
+	 */
+	public CachingSQL(ISQL sql, long maximumSize, long expireMillis) {
+		if (sql == null) {
+			throw new IllegalArgumentException("sql cannot be null.");
+		}
+		if (maximumSize < 0L) {
+			throw new IllegalArgumentException("maximumSize cannot be negative.");
+		}
+		if (expireMillis < 0L) {
+			throw new IllegalArgumentException("expireMillis cannot be negative.");
+		}
+		
+		this.sql = sql;
+		cache = Caffeine.newBuilder()
+			.maximumSize(maximumSize)
+			.expireAfterWrite(expireMillis, TimeUnit.MILLISECONDS)
+			.recordStats()
+			.buildAsync((CacheKey key, Executor executor) -> load(key, true));
+		
+		// Fire-and-forget writes only report back through the events
+		sql.onData().attach((sender, args) -> onWrite(args.getQuery()));
+		sql.onError().attach((sender, args) -> onWrite(args.getQuery()));
+	}
+	
+	//public
+	public void connect(String address, int port, String user, String pass, String dbName) {
+		sql.connect(address, port, user, pass, dbName);
+	}
+	public void connect(String address, String user, String pass, String dbName) {
+		sql.connect(address, user, pass, dbName);
+	}
+	public void connect(String filePath) {
+		sql.connect(filePath);
+	}
+	
+	public void disconnect() {
+		sql.disconnect();
+		invalidateAll();
+	}
+	
+	// Fire-and-forget queries report through the events, so they're never served from the cache
+	public UUID query(String q, Object... queryParams) {
+		onWrite(q);
+		return sql.query(q, queryParams);
+	}
+	public UUID parallelQuery(String q, Object... queryParams) {
+		onWrite(q);
+		return sql.parallelQuery(q, queryParams);
+	}
+	public UUID query(String q, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return sql.query(q, namedQueryParams);
+	}
+	public UUID parallelQuery(String q, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return sql.parallelQuery(q, namedQueryParams);
+	}
+	public UUID batchQuery(String q, List<Object[]> rows) {
+		onWrite(q);
+		return sql.batchQuery(q, rows);
+	}
+	
+	public CompletableFuture<SQLData> queryAsync(String q, Object... queryParams) {
+		return get(q, (queryParams != null) ? queryParams.clone() : new Object[0], null, false);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Object... queryParams) {
+		return get(q, (queryParams != null) ? queryParams.clone() : new Object[0], null, true);
+	}
+	public CompletableFuture<SQLData> queryAsync(String q, Map<String, Object> namedQueryParams) {
+		return get(q, null, (namedQueryParams != null) ? new HashMap<String, Object>(namedQueryParams) : Collections.emptyMap(), false);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Map<String, Object> namedQueryParams) {
+		return get(q, null, (namedQueryParams != null) ? new HashMap<String, Object>(namedQueryParams) : Collections.emptyMap(), true);
+	}
+	public CompletableFuture<SQLData> batchQueryAsync(String q, List<Object[]> rows) {
+		onWrite(q);
+		return complete(q, sql.batchQueryAsync(q, rows));
+	}
+	
+	// Rows are handed to the consumer as they're read, so there's nothing to cache
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		onWrite(q);
+		return complete(q, sql.streamQuery(q, rowConsumer, queryParams));
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		onWrite(q);
+		return complete(q, sql.parallelStreamQuery(q, rowConsumer, queryParams));
+	}
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return complete(q, sql.streamQuery(q, rowConsumer, namedQueryParams));
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return complete(q, sql.parallelStreamQuery(q, rowConsumer, namedQueryParams));
+	}
+	
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Object... queryParams) {
+		onWrite(q);
+		return complete(q, sql.columnarQuery(q, queryParams));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Object... queryParams) {
+		onWrite(q);
+		return complete(q, sql.parallelColumnarQuery(q, queryParams));
+	}
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return complete(q, sql.columnarQuery(q, namedQueryParams));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Map<String, Object> namedQueryParams) {
+		onWrite(q);
+		return complete(q, sql.parallelColumnarQuery(q, namedQueryParams));
+	}
+	
+	/**
+	 * Runs a transaction. There's no way to know which tables the callback writes to, so the whole cache is dropped when it's queued and again when it completes.
+	 */
+	public <T> CompletableFuture<T> transaction(ITransactionCallback<T> callback) {
+		invalidateAll();
+		return sql.transaction(callback).whenComplete((result, ex) -> invalidateAll());
+	}
+	public CompletableFuture<List<SQLData>> transaction(List<String> queries, List<Object[]> queryParams) {
+		if (queries == null) {
+			return sql.transaction(queries, queryParams);
+		}
+		
+		List<String> copy = new ArrayList<String>(queries);
+		for (String q : copy) {
+			onWrite(q);
+		}
+		return sql.transaction(queries, queryParams).whenComplete((result, ex) -> {
+			for (String q : copy) {
+				onWrite(q);
+			}
+		});
+	}
+	
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows) {
+		return bulkInsert(table, columns, rows, null);
+	}
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows, Consumer<SQLBulkProgress> progress) {
+		invalidate(table);
+		return sql.bulkInsert(table, columns, rows, progress).whenComplete((result, ex) -> invalidate(table));
+	}
+	
+	/**
+	 * Drops every cached result that reads from any of the given tables. Use this for writes that don't go through this ISQL.
+	 * 
+	 * @param tables The table names, case-insensitive
+	 */
+	public void invalidate(String... tables) {
+		if (tables == null || tables.length == 0) {
+			return;
+		}
+		
+		Set<String> lookup = new HashSet<String>();
+		for (String table : tables) {
+			if (table != null) {
+				lookup.add(normalize(table));
+			}
+		}
+		invalidate(lookup);
+	}
+	public void invalidateAll() {
+		cache.synchronous().invalidateAll();
+	}
+	/**
+	 * Returns the cache's stats. hitRate() is the share of requests served from the cache, averageLoadPenalty() the average time (in nanoseconds) spent loading a result on a miss.
+	 * 
+	 * @return A snapshot of the cache stats
+	 */
+	public CacheStats getCacheStats() {
+		return cache.synchronous().stats();
+	}
+	public long getCacheSize() {
+		return cache.synchronous().estimatedSize();
+	}
+	
+	public boolean isConnected() {
+		return sql.isConnected();
+	}
+	public boolean isBusy() {
+		return sql.isBusy();
+	}
+	
+	public long getStatementCacheHits() {
+		return sql.getStatementCacheHits();
+	}
+	public long getStatementCacheMisses() {
+		return sql.getStatementCacheMisses();
+	}
+	
+	public void setBatchCoalescing(boolean enabled, int maxBatchSize, long lingerMillis) {
+		sql.setBatchCoalescing(enabled, maxBatchSize, lingerMillis);
+	}
+	public void setStreamFetchSize(int fetchSize) {
+		sql.setStreamFetchSize(fetchSize);
+	}
+	public void setBackslashEscapes(boolean enabled) {
+		sql.setBackslashEscapes(enabled);
+	}
+	public void setTransactionRetries(int maxRetries, long backoffMillis) {
+		sql.setTransactionRetries(maxRetries, backoffMillis);
+	}
+	public void setReconnectBackoff(long initialMillis, long maxMillis) {
+		sql.setReconnectBackoff(initialMillis, maxMillis);
+	}
+	public CircuitState getCircuitState() {
+		return sql.getCircuitState();
+	}
+	
+	public void setBacklogLimit(int capacity, BacklogPolicy policy) {
+		sql.setBacklogLimit(capacity, policy);
+	}
+	public void setBacklogLimit(int capacity, BacklogPolicy policy, File journalFile) {
+		sql.setBacklogLimit(capacity, policy, journalFile);
+	}
+	public int getBacklogSize() {
+		return sql.getBacklogSize();
+	}
+	
+	public SQLMetricsSnapshot getMetrics() {
+		return sql.getMetrics();
+	}
+	public void resetMetrics() {
+		sql.resetMetrics();
+	}
+	public void setMetricsInterval(long intervalMillis) {
+		sql.setMetricsInterval(intervalMillis);
+	}
+	
+	public EventHandler<EventArgs> onConnect() {
+		return sql.onConnect();
+	}
+	public EventHandler<EventArgs> onDisconnect() {
+		return sql.onDisconnect();
+	}
+	public EventHandler<SQLEventArgs> onData() {
+		return sql.onData();
+	}
+	public EventHandler<SQLEventArgs> onError() {
+		return sql.onError();
+	}
+	public EventHandler<SQLMetricsEventArgs> onMetrics() {
+		return sql.onMetrics();
+	}
+	public EventHandler<SQLCircuitEventArgs> onCircuitChange() {
+		return sql.onCircuitChange();
+	}
+	
+	public SQLType getType() {
+		return sql.getType();
+	}
+	
+	//private
+	private CompletableFuture<SQLData> get(String q, Object[] queryParams, Map<String, Object> namedQueryParams, boolean parallel) {
+		if (!SQLQueryUtil.isRead(q)) {
+			// Writes and locking reads always go to the database
+			onWrite(q);
+			CompletableFuture<SQLData> future;
+			if (namedQueryParams != null) {
+				future = (parallel) ? sql.parallelQueryAsync(q, namedQueryParams) : sql.queryAsync(q, namedQueryParams);
+			} else {
+				future = (parallel) ? sql.parallelQueryAsync(q, queryParams) : sql.queryAsync(q, queryParams);
+			}
+			return complete(q, future);
+		}
+		
+		Set<String> tables = tableCache.get(q, CachingSQL::getReadTables);
+		if (tables.isEmpty()) {
+			// No write could ever invalidate this (SELECT NOW(), SELECT @@version..), or it changes between calls anyway
+			if (namedQueryParams != null) {
+				return (parallel) ? sql.parallelQueryAsync(q, namedQueryParams) : sql.queryAsync(q, namedQueryParams);
+			}
+			return (parallel) ? sql.parallelQueryAsync(q, queryParams) : sql.queryAsync(q, queryParams);
+		}
+		
+		// Identical misses share the same future until it completes. Failed loads are never cached
+		return cache.get(new CacheKey(q, queryParams, namedQueryParams, tables), (key, executor) -> load(key, parallel));
+	}
+	private CompletableFuture<SQLData> load(CacheKey key, boolean parallel) {
+		if (key.namedParams != null) {
+			return (parallel) ? sql.parallelQueryAsync(key.query, key.namedParams) : sql.queryAsync(key.query, key.namedParams);
+		}
+		return (parallel) ? sql.parallelQueryAsync(key.query, key.params) : sql.queryAsync(key.query, key.params);
+	}
+	
+	// Writes invalidate twice: once when queued, so nobody is handed a result from before the write, and once when complete, for results that were loaded while the write was still queued
+	private void onWrite(String q) {
+		if (q == null || SQLQueryUtil.isRead(q)) {
+			return;
+		}
+		
+		Set<String> tables = tableCache.get(q, CachingSQL::getTables);
+		if (tables.isEmpty()) {
+			// Can't tell what this touches
+			invalidateAll();
+		} else {
+			invalidate(tables);
+		}
+	}
+	private <T> CompletableFuture<T> complete(String q, CompletableFuture<T> future) {
+		if (q == null || SQLQueryUtil.isRead(q)) {
+			return future;
+		}
+		return future.whenComplete((result, ex) -> onWrite(q));
+	}
+	
+	private void invalidate(Set<String> tables) {
+		// Includes results that are still loading
+		cache.synchronous().asMap().keySet().removeIf(key -> key.readsFrom(tables));
+	}
+	
+	/**
+	 * Pulls table names out of a query: whatever follows FROM, JOIN, INTO, UPDATE, TABLE or TRUNCATE, including comma-separated FROM lists.
+	 * This is a tokenizer, not a parser. It errs towards finding too many tables, which only costs extra invalidations.
+	 */
+	private static Set<String> getTables(String q) {
+		return getTables(tokenize(q));
+	}
+	private static Set<String> getTables(List<String> tokens) {
+		Set<String> retVal = new HashSet<String>();
+		
+		for (int i = 0; i < tokens.size(); i++) {
+			String keyword = tokens.get(i).toUpperCase(Locale.ROOT);
+			if (!TABLE_KEYWORDS.contains(keyword)) {
+				continue;
+			}
+			
+			int j = i + 1;
+			while (j < tokens.size()) {
+				String token = tokens.get(j);
+				if (isPunctuation(token) || CLAUSE_KEYWORDS.contains(token.toUpperCase(Locale.ROOT))) {
+					// Subquery or nothing after the keyword
+					break;
+				}
+				if (token.equalsIgnoreCase("IF") || token.equalsIgnoreCase("NOT") || token.equalsIgnoreCase("EXISTS") || token.equalsIgnoreCase("ONLY") || token.equalsIgnoreCase("IGNORE")) {
+					j++;
+					continue;
+				}
+				
+				retVal.add(normalize(token));
+				j++;
+				
+				if (!keyword.equals("FROM")) {
+					break;
+				}
+				
+				// Skip the alias, then carry on if there's another table in the list
+				if (j < tokens.size() && tokens.get(j).equalsIgnoreCase("AS")) {
+					j++;
+				}
+				if (j < tokens.size() && !isPunctuation(tokens.get(j)) && !CLAUSE_KEYWORDS.contains(tokens.get(j).toUpperCase(Locale.ROOT))) {
+					j++;
+				}
+				if (j < tokens.size() && tokens.get(j).equals(",")) {
+					j++;
+					continue;
+				}
+				break;
+			}
+		}
+		
+		return retVal;
+	}
+	// The tables a cacheable read depends on. Empty if the read can't be cached
+	private static Set<String> getReadTables(String q) {
+		List<String> tokens = tokenize(q);
+		
+		for (int i = 0; i < tokens.size(); i++) {
+			String token = tokens.get(i);
+			if (token.equals("@")) {
+				// User or system variable, which can change without any write
+				return Collections.emptySet();
+			}
+			
+			String upper = token.toUpperCase(Locale.ROOT);
+			if (VOLATILE_FUNCTIONS.contains(upper) && (VOLATILE_KEYWORDS.contains(upper) || (i + 1 < tokens.size() && tokens.get(i + 1).equals("(")))) {
+				return Collections.emptySet();
+			}
+		}
+		
+		return getTables(tokens);
+	}
+	private static List<String> tokenize(String q) {
+		List<String> retVal = new ArrayList<String>();
+		
+		int i = 0;
+		while (i < q.length()) {
+			char c = q.charAt(i);
+			if (Character.isWhitespace(c)) {
+				i++;
+			} else if (c == '\'') {
+				// String literal. Skip it entirely, including doubled quotes
+				i++;
+				while (i < q.length()) {
+					if (q.charAt(i) == '\'') {
+						if (i + 1 < q.length() && q.charAt(i + 1) == '\'') {
+							i += 2;
+							continue;
+						}
+						break;
+					}
+					i++;
+				}
+				i++;
+			} else if (isIdentifierChar(c)) {
+				int start = i;
+				while (i < q.length() && isIdentifierChar(q.charAt(i))) {
+					i++;
+				}
+				retVal.add(q.substring(start, i));
+			} else {
+				retVal.add(String.valueOf(c));
+				i++;
+			}
+		}
+		
+		return retVal;
+	}
+	private static boolean isIdentifierChar(char c) {
+		return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '.' || c == '`' || c == '"' || c == '[' || c == ']';
+	}
+	private static boolean isPunctuation(String token) {
+		return token.length() == 1 && !isIdentifierChar(token.charAt(0));
+	}
+	// `db`.`Table` -> table
+	private static String normalize(String table) {
+		String retVal = table.replace("`", "").replace("\"", "").replace("[", "").replace("]", "");
+		int dot = retVal.lastIndexOf('.');
+		if (dot > -1) {
+			retVal = retVal.substring(dot + 1);
+		}
+		return retVal.toLowerCase(Locale.ROOT);
+	}
+	
+	private static class CacheKey {
+		//vars
+		private String query = null;
+		private Object[] params = null;
+		private Map<String, Object> namedParams = null;
+		// The tables the query reads from, for invalidation. Not part of the key itself, since it's derived from the query
+		private Set<String> tables = null;
+		private int hash = 0;
+		
+		//constructor
+		public CacheKey(String query, Object[] params, Map<String, Object> namedParams, Set<String> tables) {
+			this.query = query;
+			this.params = params;
+			this.namedParams = namedParams;
+			this.tables = tables;
+			
+			hash = 31 * query.hashCode() + ((params != null) ? Arrays.deepHashCode(params) : namedParams.hashCode());
+		}
+		
+		//public
+		public boolean readsFrom(Set<String> tables) {
+			for (String table : this.tables) {
+				if (tables.contains(table)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		
+		public int hashCode() {
+			return hash;
+		}
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			
+			CacheKey other = (CacheKey) obj;
+			return hash == other.hash && query.equals(other.query) && Arrays.deepEquals(params, other.params) && ((namedParams != null) ? namedParams.equals(other.namedParams) : other.namedParams == null);
+		}
+	}
+}
@@ -1,10 +1,25 @@
 package ninja.egg82.sql;
 
+import java.io.File;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
 
+import ninja.egg82.core.ITransactionCallback;
+import ninja.egg82.core.SQLBulkProgress;
+import ninja.egg82.core.SQLColumnarData;
+import ninja.egg82.core.SQLData;
+import ninja.egg82.core.SQLMetricsSnapshot;
+import ninja.egg82.core.SQLRow;
+import ninja.egg82.enums.BacklogPolicy;
+import ninja.egg82.enums.CircuitState;
 import ninja.egg82.enums.SQLType;
+import ninja.egg82.events.SQLCircuitEventArgs;
 import ninja.egg82.events.SQLEventArgs;
+import ninja.egg82.events.SQLMetricsEventArgs;
 import ninja.egg82.patterns.events.EventArgs;
 import ninja.egg82.patterns.events.EventHandler;
 
@@ -20,14 +35,57 @@ public interface ISQL {
 	UUID parallelQuery(String q, Object... queryParams);
 	UUID query(String q, Map<String, Object> namedQueryParams);
 	UUID parallelQuery(String q, Map<String, Object> namedQueryParams);
+	UUID batchQuery(String q, List<Object[]> rows);
+	
+	CompletableFuture<SQLData> queryAsync(String q, Object... queryParams);
+	CompletableFuture<SQLData> parallelQueryAsync(String q, Object... queryParams);
+	CompletableFuture<SQLData> queryAsync(String q, Map<String, Object> namedQueryParams);
+	CompletableFuture<SQLData> parallelQueryAsync(String q, Map<String, Object> namedQueryParams);
+	CompletableFuture<SQLData> batchQueryAsync(String q, List<Object[]> rows);
+	
+	CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams);
+	CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams);
+	CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams);
+	CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams);
+	
+	CompletableFuture<SQLColumnarData> columnarQuery(String q, Object... queryParams);
+	CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Object... queryParams);
+	CompletableFuture<SQLColumnarData> columnarQuery(String q, Map<String, Object> namedQueryParams);
+	CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Map<String, Object> namedQueryParams);
+	
+	<T> CompletableFuture<T> transaction(ITransactionCallback<T> callback);
+	CompletableFuture<List<SQLData>> transaction(List<String> queries, List<Object[]> queryParams);
+	
+	CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows);
+	CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows, Consumer<SQLBulkProgress> progress);
 	
 	boolean isConnected();
 	boolean isBusy();
 	
+	long getStatementCacheHits();
+	long getStatementCacheMisses();
+	
+	void setBatchCoalescing(boolean enabled, int maxBatchSize, long lingerMillis);
+	void setStreamFetchSize(int fetchSize);
+	void setBackslashEscapes(boolean enabled);
+	void setTransactionRetries(int maxRetries, long backoffMillis);
+	void setReconnectBackoff(long initialMillis, long maxMillis);
+	CircuitState getCircuitState();
+	
+	void setBacklogLimit(int capacity, BacklogPolicy policy);
+	void setBacklogLimit(int capacity, BacklogPolicy policy, File journalFile);
+	int getBacklogSize();
+	
+	SQLMetricsSnapshot getMetrics();
+	void resetMetrics();
+	void setMetricsInterval(long intervalMillis);
+	
 	EventHandler<EventArgs> onConnect();
 	EventHandler<EventArgs> onDisconnect();
 	EventHandler<SQLEventArgs> onData();
 	EventHandler<SQLEventArgs> onError();
+	EventHandler<SQLMetricsEventArgs> onMetrics();
+	EventHandler<SQLCircuitEventArgs> onCircuitChange();
 	
 	SQLType getType();
 }
@@ -0,0 +1,624 @@
+package ninja.egg82.sql;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import org.apache.commons.lang.NotImplementedException;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import ninja.egg82.core.ITransactionCallback;
+import ninja.egg82.core.SQLBulkProgress;
+import ninja.egg82.core.SQLColumnarBuilder;
+import ninja.egg82.core.SQLColumnarData;
+import ninja.egg82.core.SQLData;
+import ninja.egg82.core.SQLMetricsSnapshot;
+import ninja.egg82.core.SQLQueryUtil;
+import ninja.egg82.core.SQLRow;
+import ninja.egg82.enums.BacklogPolicy;
+import ninja.egg82.enums.CircuitState;
+import ninja.egg82.enums.RoutingStrategy;
+import ninja.egg82.enums.SQLType;
+import ninja.egg82.events.SQLCircuitEventArgs;
+import ninja.egg82.events.SQLEventArgs;
+import ninja.egg82.events.SQLMetricsEventArgs;
+import ninja.egg82.patterns.events.EventArgs;
+import ninja.egg82.patterns.events.EventHandler;
+import ninja.egg82.utils.ThreadUtil;
+
+/**
+ * Splits reads and writes across several databases: one primary and any number of read replicas, each with its own ISQL (and pool).
+ * Parallel SELECTs go to a healthy replica, everything else (writes, serialized queries, batches) goes to the primary.
+ * Replicas that fail a health check are taken out of rotation until they pass one again. If no replica is healthy, reads go to the primary.
+ * 
+ * Endpoints are connected individually, before or after being handed over. disconnect() disconnects all of them and stops the health checks for good.
+ */
+public class RoutingSQL implements ISQL {
+	//vars
+	
+	// Event handlers. Endpoint events are forwarded here
+	private final EventHandler<EventArgs> connect = new EventHandler<EventArgs>();
+	private final EventHandler<EventArgs> disconnect = new EventHandler<EventArgs>();
+	private final EventHandler<SQLEventArgs> data = new EventHandler<SQLEventArgs>();
+	private final EventHandler<SQLEventArgs> error = new EventHandler<SQLEventArgs>();
+	private final EventHandler<SQLMetricsEventArgs> metrics = new EventHandler<SQLMetricsEventArgs>();
+	private final EventHandler<SQLCircuitEventArgs> circuitChange = new EventHandler<SQLCircuitEventArgs>();
+	
+	private ISQL primary = null;
+	private Endpoint[] replicas = null;
+	private RoutingStrategy strategy = null;
+	// Round-robin position. Also used to break ties when least-loaded
+	private AtomicInteger nextReplica = new AtomicInteger(0);
+	
+	// Thread pool for health checks and the metrics event. Shut down on disconnect and created again when the primary reconnects
+	private String threadName = null;
+	private ScheduledExecutorService threadPool = null;
+	private volatile long healthCheckInterval = 5000L;
+	private volatile long healthCheckTimeout = 2000L;
+	private volatile long metricsInterval = 0L;
+	private ScheduledFuture<?> healthCheckFuture = null;
+	private ScheduledFuture<?> metricsFuture = null;
+	private Lock scheduleLock = new ReentrantLock();
+	
+	//constructor
+	public RoutingSQL(ISQL primary, List<ISQL> replicas, RoutingStrategy strategy, String threadName) {
+		if (primary == null) {
+			throw new IllegalArgumentException("primary cannot be null.");
+		}
+		if (replicas == null) {
+			throw new IllegalArgumentException("replicas cannot be null.");
+		}
+		if (strategy == null) {
+			throw new IllegalArgumentException("strategy cannot be null.");
+		}
+		
+		this.primary = primary;
+		this.strategy = strategy;
+		this.replicas = new Endpoint[replicas.size()];
+		for (int i = 0; i < this.replicas.length; i++) {
+			if (replicas.get(i) == null) {
+				throw new IllegalArgumentException("replicas cannot contain null.");
+			}
+			this.replicas[i] = new Endpoint(replicas.get(i));
+		}
+		
+		// Forward endpoint events. Replica events also mark the end of a routed query, for least-loaded routing
+		primary.onConnect().attach((sender, args) -> {
+			scheduleHealthCheck();
+			scheduleMetrics();
+			connect.invoke(this, args);
+		});
+		primary.onDisconnect().attach((sender, args) -> disconnect.invoke(this, args));
+		primary.onData().attach((sender, args) -> data.invoke(this, args));
+		primary.onError().attach((sender, args) -> error.invoke(this, args));
+		primary.onCircuitChange().attach((sender, args) -> circuitChange.invoke(this, args));
+		for (Endpoint replica : this.replicas) {
+			replica.sql.onData().attach((sender, args) -> {
+				replica.end();
+				data.invoke(this, args);
+			});
+			replica.sql.onError().attach((sender, args) -> {
+				replica.end();
+				error.invoke(this, args);
+			});
+		}
+		
+		this.threadName = threadName;
+		scheduleHealthCheck();
+	}
+	
+	//public
+	public void connect(String address, int port, String user, String pass, String dbName) {
+		throw new NotImplementedException("Endpoints are connected individually.");
+	}
+	public void connect(String address, String user, String pass, String dbName) {
+		throw new NotImplementedException("Endpoints are connected individually.");
+	}
+	public void connect(String filePath) {
+		throw new NotImplementedException("Endpoints are connected individually.");
+	}
+	
+	public void disconnect() {
+		// Shutdown the health checks gracefully, then not-so-gracefully after 15 seconds
+		scheduleLock.lock();
+		try {
+			if (healthCheckFuture != null) {
+				healthCheckFuture.cancel(false);
+				healthCheckFuture = null;
+			}
+			if (metricsFuture != null) {
+				metricsFuture.cancel(false);
+				metricsFuture = null;
+			}
+			if (threadPool != null) {
+				threadPool.shutdown();
+				if (!threadPool.awaitTermination(15000L, TimeUnit.MILLISECONDS)) {
+					threadPool.shutdownNow();
+				}
+				threadPool = null;
+			}
+		} catch (Exception ex) {
+			
+		} finally {
+			scheduleLock.unlock();
+		}
+		
+		for (Endpoint replica : replicas) {
+			replica.sql.disconnect();
+		}
+		primary.disconnect();
+	}
+	
+	// Serialized queries and anything that isn't a read go to the primary
+	public UUID query(String q, Object... queryParams) {
+		return primary.query(q, queryParams);
+	}
+	public UUID parallelQuery(String q, Object... queryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelQuery(q, queryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.sql.parallelQuery(q, queryParams);
+		} catch (RuntimeException ex) {
+			// Rejected before it was ever queued (full backlog, not connected..) so it won't fire an event or complete a future
+			replica.end();
+			throw ex;
+		}
+	}
+	public UUID query(String q, Map<String, Object> namedQueryParams) {
+		return primary.query(q, namedQueryParams);
+	}
+	public UUID parallelQuery(String q, Map<String, Object> namedQueryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelQuery(q, namedQueryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.sql.parallelQuery(q, namedQueryParams);
+		} catch (RuntimeException ex) {
+			replica.end();
+			throw ex;
+		}
+	}
+	public UUID batchQuery(String q, List<Object[]> rows) {
+		return primary.batchQuery(q, rows);
+	}
+	
+	public CompletableFuture<SQLData> queryAsync(String q, Object... queryParams) {
+		return primary.queryAsync(q, queryParams);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Object... queryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelQueryAsync(q, queryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.track(replica.sql.parallelQueryAsync(q, queryParams));
+		} catch (RuntimeException ex) {
+			replica.end();
+			throw ex;
+		}
+	}
+	public CompletableFuture<SQLData> queryAsync(String q, Map<String, Object> namedQueryParams) {
+		return primary.queryAsync(q, namedQueryParams);
+	}
+	public CompletableFuture<SQLData> parallelQueryAsync(String q, Map<String, Object> namedQueryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelQueryAsync(q, namedQueryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.track(replica.sql.parallelQueryAsync(q, namedQueryParams));
+		} catch (RuntimeException ex) {
+			replica.end();
+			throw ex;
+		}
+	}
+	public CompletableFuture<SQLData> batchQueryAsync(String q, List<Object[]> rows) {
+		return primary.batchQueryAsync(q, rows);
+	}
+	
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		return primary.streamQuery(q, rowConsumer, queryParams);
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Object... queryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelStreamQuery(q, rowConsumer, queryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.track(replica.sql.parallelStreamQuery(q, rowConsumer, queryParams));
+		} catch (RuntimeException ex) {
+			replica.end();
+			throw ex;
+		}
+	}
+	public CompletableFuture<SQLData> streamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		return primary.streamQuery(q, rowConsumer, namedQueryParams);
+	}
+	public CompletableFuture<SQLData> parallelStreamQuery(String q, Consumer<SQLRow> rowConsumer, Map<String, Object> namedQueryParams) {
+		Endpoint replica = getReader(q);
+		if (replica == null) {
+			return primary.parallelStreamQuery(q, rowConsumer, namedQueryParams);
+		}
+		
+		replica.begin();
+		try {
+			return replica.track(replica.sql.parallelStreamQuery(q, rowConsumer, namedQueryParams));
+		} catch (RuntimeException ex) {
+			replica.end();
+			throw ex;
+		}
+	}
+	
+	// Columnar queries ride on the streaming methods, so they're routed the same way
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Object... queryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, builder, queryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Object... queryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return parallelStreamQuery(q, builder, queryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> columnarQuery(String q, Map<String, Object> namedQueryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return streamQuery(q, builder, namedQueryParams).thenApply(d -> builder.build(d.columns));
+	}
+	public CompletableFuture<SQLColumnarData> parallelColumnarQuery(String q, Map<String, Object> namedQueryParams) {
+		SQLColumnarBuilder builder = new SQLColumnarBuilder();
+		return parallelStreamQuery(q, builder, namedQueryParams).thenApply(d -> builder.build(d.columns));
+	}
+	
+	// Transactions always go to the primary, even if they only read
+	public <T> CompletableFuture<T> transaction(ITransactionCallback<T> callback) {
+		return primary.transaction(callback);
+	}
+	public CompletableFuture<List<SQLData>> transaction(List<String> queries, List<Object[]> queryParams) {
+		return primary.transaction(queries, queryParams);
+	}
+	
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows) {
+		return primary.bulkInsert(table, columns, rows);
+	}
+	public CompletableFuture<SQLData> bulkInsert(String table, String[] columns, Iterator<Object[]> rows, Consumer<SQLBulkProgress> progress) {
+		return primary.bulkInsert(table, columns, rows, progress);
+	}
+	
+	public boolean isConnected() {
+		return primary.isConnected();
+	}
+	public boolean isBusy() {
+		if (primary.isBusy()) {
+			return true;
+		}
+		for (Endpoint replica : replicas) {
+			if (replica.sql.isBusy()) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	public long getStatementCacheHits() {
+		long retVal = primary.getStatementCacheHits();
+		for (Endpoint replica : replicas) {
+			retVal += replica.sql.getStatementCacheHits();
+		}
+		return retVal;
+	}
+	public long getStatementCacheMisses() {
+		long retVal = primary.getStatementCacheMisses();
+		for (Endpoint replica : replicas) {
+			retVal += replica.sql.getStatementCacheMisses();
+		}
+		return retVal;
+	}
+	
+	public void setBatchCoalescing(boolean enabled, int maxBatchSize, long lingerMillis) {
+		// Only the primary ever sees writes
+		primary.setBatchCoalescing(enabled, maxBatchSize, lingerMillis);
+	}
+	public void setStreamFetchSize(int fetchSize) {
+		primary.setStreamFetchSize(fetchSize);
+		for (Endpoint replica : replicas) {
+			replica.sql.setStreamFetchSize(fetchSize);
+		}
+	}
+	public void setBackslashEscapes(boolean enabled) {
+		primary.setBackslashEscapes(enabled);
+		for (Endpoint replica : replicas) {
+			replica.sql.setBackslashEscapes(enabled);
+		}
+	}
+	public void setTransactionRetries(int maxRetries, long backoffMillis) {
+		primary.setTransactionRetries(maxRetries, backoffMillis);
+	}
+	public void setReconnectBackoff(long initialMillis, long maxMillis) {
+		primary.setReconnectBackoff(initialMillis, maxMillis);
+		for (Endpoint replica : replicas) {
+			replica.sql.setReconnectBackoff(initialMillis, maxMillis);
+		}
+	}
+	/**
+	 * Returns the primary's circuit state. Replicas with an open circuit are simply skipped when routing reads.
+	 * 
+	 * @return The primary's circuit state
+	 */
+	public CircuitState getCircuitState() {
+		return primary.getCircuitState();
+	}
+	
+	public void setBacklogLimit(int capacity, BacklogPolicy policy) {
+		setBacklogLimit(capacity, policy, null);
+	}
+	/**
+	 * Limits the backlog of every endpoint. Each endpoint gets its own journal, replicas use the journal file name with their index appended.
+	 * 
+	 * @param capacity The max number of queued queries per endpoint, or 0 for no limit
+	 * @param policy What to do with new queries once an endpoint's backlog is full
+	 * @param journalFile The primary's journal, for BacklogPolicy.SPILL_TO_DISK
+	 */
+	public void setBacklogLimit(int capacity, BacklogPolicy policy, File journalFile) {
+		primary.setBacklogLimit(capacity, policy, journalFile);
+		for (int i = 0; i < replicas.length; i++) {
+			replicas[i].sql.setBacklogLimit(capacity, policy, (journalFile != null) ? new File(journalFile.getPath() + "." + (i + 1)) : null);
+		}
+	}
+	public int getBacklogSize() {
+		int retVal = primary.getBacklogSize();
+		for (Endpoint replica : replicas) {
+			retVal += replica.sql.getBacklogSize();
+		}
+		return retVal;
+	}
+	
+	/**
+	 * Returns the metrics of all endpoints combined.
+	 * 
+	 * @return The combined metrics
+	 */
+	public SQLMetricsSnapshot getMetrics() {
+		SQLMetricsSnapshot[] snapshots = new SQLMetricsSnapshot[replicas.length + 1];
+		snapshots[0] = primary.getMetrics();
+		for (int i = 0; i < replicas.length; i++) {
+			snapshots[i + 1] = replicas[i].sql.getMetrics();
+		}
+		return SQLMetricsSnapshot.combine(snapshots);
+	}
+	public void resetMetrics() {
+		primary.resetMetrics();
+		for (Endpoint replica : replicas) {
+			replica.sql.resetMetrics();
+		}
+	}
+	public void setMetricsInterval(long intervalMillis) {
+		if (intervalMillis < 0L) {
+			intervalMillis = 0L;
+		}
+		
+		metricsInterval = intervalMillis;
+		scheduleMetrics();
+	}
+	
+	/**
+	 * Sets how often replicas are checked, and how long a check may take before the replica is considered down.
+	 * 
+	 * @param intervalMillis Time between checks, 0 to disable checks (all replicas are then considered healthy)
+	 * @param timeoutMillis Max time a single check may take
+	 */
+	public void setHealthCheck(long intervalMillis, long timeoutMillis) {
+		if (intervalMillis < 0L) {
+			intervalMillis = 0L;
+		}
+		if (timeoutMillis < 1L) {
+			timeoutMillis = 1L;
+		}
+		
+		healthCheckInterval = intervalMillis;
+		healthCheckTimeout = timeoutMillis;
+		if (intervalMillis == 0L) {
+			for (Endpoint replica : replicas) {
+				replica.healthy = true;
+			}
+		}
+		scheduleHealthCheck();
+	}
+	/**
+	 * Whether or not a replica is currently in rotation.
+	 * 
+	 * @param replica The index of the replica, in the order they were given
+	 * @return true if the replica is healthy
+	 */
+	public boolean isHealthy(int replica) {
+		return replicas[replica].healthy;
+	}
+	public int getNumReplicas() {
+		return replicas.length;
+	}
+	
+	public EventHandler<EventArgs> onConnect() {
+		return connect;
+	}
+	public EventHandler<EventArgs> onDisconnect() {
+		return disconnect;
+	}
+	public EventHandler<SQLEventArgs> onData() {
+		return data;
+	}
+	public EventHandler<SQLEventArgs> onError() {
+		return error;
+	}
+	public EventHandler<SQLMetricsEventArgs> onMetrics() {
+		return metrics;
+	}
+	/**
+	 * Circuit changes of the primary. Replica circuits only affect read routing.
+	 * 
+	 * @return The circuit event handler
+	 */
+	public EventHandler<SQLCircuitEventArgs> onCircuitChange() {
+		return circuitChange;
+	}
+	
+	public SQLType getType() {
+		return primary.getType();
+	}
+	
+	//private
+	private Endpoint getReader(String q) {
+		if (replicas.length == 0 || !SQLQueryUtil.isRead(q)) {
+			return null;
+		}
+		
+		int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.length);
+		
+		if (strategy == RoutingStrategy.ROUND_ROBIN) {
+			for (int i = 0; i < replicas.length; i++) {
+				Endpoint replica = replicas[(start + i) % replicas.length];
+				if (isAvailable(replica)) {
+					return replica;
+				}
+			}
+			return null;
+		}
+		
+		Endpoint retVal = null;
+		int lowest = Integer.MAX_VALUE;
+		for (int i = 0; i < replicas.length; i++) {
+			Endpoint replica = replicas[(start + i) % replicas.length];
+			int load = replica.inFlight.get();
+			if (load < lowest && isAvailable(replica)) {
+				retVal = replica;
+				lowest = load;
+			}
+		}
+		return retVal;
+	}
+	
+	private static boolean isAvailable(Endpoint replica) {
+		return replica.healthy && replica.sql.isConnected() && replica.sql.getCircuitState() == CircuitState.CLOSED;
+	}
+	
+	private Runnable onHealthCheckThread = new Runnable() {
+		public void run() {
+			// Send all the checks first, then wait on them. That way a slow replica doesn't hold up the others
+			List<CompletableFuture<SQLData>> checks = new ArrayList<CompletableFuture<SQLData>>(replicas.length);
+			for (int i = 0; i < replicas.length; i++) {
+				checks.add((replicas[i].sql.isConnected()) ? replicas[i].sql.parallelQueryAsync("SELECT 1") : null);
+			}
+			
+			long deadline = System.currentTimeMillis() + healthCheckTimeout;
+			for (int i = 0; i < replicas.length; i++) {
+				CompletableFuture<SQLData> check = checks.get(i);
+				if (check == null) {
+					replicas[i].healthy = false;
+					continue;
+				}
+				
+				try {
+					check.get(Math.max(1L, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+					replicas[i].healthy = true;
+				} catch (Exception ex) {
+					replicas[i].healthy = false;
+				}
+			}
+		}
+	};
+	private Runnable onMetricsThread = new Runnable() {
+		public void run() {
+			metrics.invoke(RoutingSQL.this, new SQLMetricsEventArgs(getMetrics()));
+		}
+	};
+	
+	private void scheduleHealthCheck() {
+		scheduleLock.lock();
+		try {
+			if (healthCheckFuture != null) {
+				healthCheckFuture.cancel(false);
+				healthCheckFuture = null;
+			}
+			
+			long interval = healthCheckInterval;
+			if (interval > 0L && replicas.length > 0) {
+				healthCheckFuture = getThreadPool().scheduleWithFixedDelay(onHealthCheckThread, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			scheduleLock.unlock();
+		}
+	}
+	private void scheduleMetrics() {
+		scheduleLock.lock();
+		try {
+			if (metricsFuture != null) {
+				metricsFuture.cancel(false);
+				metricsFuture = null;
+			}
+			
+			long interval = metricsInterval;
+			if (interval > 0L) {
+				metricsFuture = getThreadPool().scheduleAtFixedRate(onMetricsThread, interval, interval, TimeUnit.MILLISECONDS);
+			}
+		} finally {
+			scheduleLock.unlock();
+		}
+	}
+	// Only call while holding scheduleLock
+	private ScheduledExecutorService getThreadPool() {
+		if (threadPool == null) {
+			threadPool = ThreadUtil.createScheduledPool(1, 1, 120L * 1000L, new ThreadFactoryBuilder().setNameFormat(threadName + "-Routing-%d").build());
+		}
+		return threadPool;
+	}
+	
+	private static class Endpoint {
+		//vars
+		private ISQL sql = null;
+		// Queries routed here that haven't finished yet
+		private AtomicInteger inFlight = new AtomicInteger(0);
+		private volatile boolean healthy = true;
+		
+		//constructor
+		public Endpoint(ISQL sql) {
+			this.sql = sql;
+		}
+		
+		//public
+		public void begin() {
+			inFlight.incrementAndGet();
+		}
+		public void end() {
+			// Events also fire for queries we didn't route (if someone uses the replica directly), so never go below zero
+			int current = inFlight.get();
+			while (current > 0 && !inFlight.compareAndSet(current, current - 1)) {
+				current = inFlight.get();
+			}
+		}
+		public CompletableFuture<SQLData> track(CompletableFuture<SQLData> future) {
+			future.whenComplete((result, ex) -> end());
+			return future;
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package ninja.egg82.sql.providers;
+
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.Properties;
+
+public class DriverManagerConnectionProvider implements IConnectionProvider {
+	//vars
+	
+	// DriverManager.getConnection(String, Properties, Class). Calling it with the driver class lets DriverManager use drivers from class loaders it can't otherwise see
+	private volatile static Method m = null;
+	
+	private String driverClass = null;
+	private String url = null;
+	private Properties props = null;
+	private ClassLoader loader = null;
+	
+	//constructor
+	public DriverManagerConnectionProvider(String driverClass, String url, Properties props, ClassLoader loader) {
+		if (driverClass == null) {
+			throw new IllegalArgumentException("driverClass cannot be null.");
+		}
+		if (url == null) {
+			throw new IllegalArgumentException("url cannot be null.");
+		}
+		
+		this.driverClass = driverClass;
+		this.url = url;
+		this.props = (props != null) ? props : new Properties();
+		this.loader = (loader != null) ? loader : ClassLoader.getSystemClassLoader();
+	}
+	
+	//public
+	public Connection getConnection() throws Exception {
+		return (Connection) getConnectionMethod().invoke(null, url, props, Class.forName(driverClass, true, loader));
+	}
+	public void close() {
+		
+	}
+	
+	//private
+	private static Method getConnectionMethod() throws NoSuchMethodException {
+		if (m == null) {
+			Method method = DriverManager.class.getDeclaredMethod("getConnection", String.class, Properties.class, Class.class);
+			method.setAccessible(true);
+			m = method;
+		}
+		return m;
+	}
+}
@@ -0,0 +1,18 @@
+package ninja.egg82.sql.providers;
+
+import java.sql.Connection;
+
+public interface IConnectionProvider {
+	//functions
+	/**
+	 * Opens a new connection to the database. Called once per pooled connection on connect, and again whenever a connection has to be re-established.
+	 * 
+	 * @return A new, open connection
+	 * @throws Exception If the connection could not be opened
+	 */
+	Connection getConnection() throws Exception;
+	/**
+	 * Releases anything the provider itself holds on to, such as a connection pool. Connections handed out are closed separately, before this is called.
+	 */
+	void close();
+}
@@ -0,0 +1,40 @@
+package ninja.egg82.sql.providers;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+public class MemorySQLiteConnectionProvider extends DriverManagerConnectionProvider {
+	//vars
+	
+	// SQLite drops a memory database as soon as its last connection closes. This one stays open so the database survives reconnects
+	private Connection anchor = null;
+	
+	//constructor
+	public MemorySQLiteConnectionProvider(String name, ClassLoader loader) {
+		super("org.sqlite.JDBC", "jdbc:sqlite:file:" + name + "?mode=memory&cache=shared", new Properties(), loader);
+		
+		if (name == null || name.isEmpty()) {
+			throw new IllegalArgumentException("name cannot be null or empty.");
+		}
+	}
+	
+	//public
+	public synchronized Connection getConnection() throws Exception {
+		if (anchor == null) {
+			anchor = super.getConnection();
+		}
+		return super.getConnection();
+	}
+	public synchronized void close() {
+		if (anchor == null) {
+			return;
+		}
+		
+		try {
+			anchor.close();
+		} catch (Exception ex) {
+			
+		}
+		anchor = null;
+	}
+}
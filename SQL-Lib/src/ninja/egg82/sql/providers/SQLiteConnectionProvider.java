@@ -0,0 +1,44 @@
+package ninja.egg82.sql.providers;
+
+import java.sql.Connection;
+import java.util.Properties;
+
+import ninja.egg82.core.SQLiteProfile;
+
+public class SQLiteConnectionProvider extends DriverManagerConnectionProvider {
+	//vars
+	private SQLiteProfile profile = null;
+	// Reader connections are opened with query_only, so a write sent to the wrong pool fails loudly instead of fighting the writer for the lock
+	private boolean readOnly = false;
+	
+	//constructor
+	public SQLiteConnectionProvider(String filePath, SQLiteProfile profile, boolean readOnly, ClassLoader loader) {
+		super("org.sqlite.JDBC", "jdbc:sqlite:" + filePath, new Properties(), loader);
+		
+		if (filePath == null || filePath.isEmpty()) {
+			throw new IllegalArgumentException("filePath cannot be null or empty.");
+		}
+		if (profile == null) {
+			throw new IllegalArgumentException("profile cannot be null.");
+		}
+		
+		this.profile = profile;
+		this.readOnly = readOnly;
+	}
+	
+	//public
+	public Connection getConnection() throws Exception {
+		Connection conn = super.getConnection();
+		try {
+			profile.apply(conn, readOnly);
+		} catch (Exception ex) {
+			try {
+				conn.close();
+			} catch (Exception ex2) {
+				
+			}
+			throw ex;
+		}
+		return conn;
+	}
+}